@@ -4,10 +4,19 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileInputStream;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import ovf2.OVF2;
 
 // a2 main command.
 // a2 scan files: outputs tokens
 // a2 parse files: outputs ast
+// a2 run files [ovf files]: executes the files
+// a2 jit files [ovf files]: compiles the files to JVM bytecode and executes them
+// When OVF2 files are given, they are read one at a time and each script is run
+// on each of them, with its components as field inputs named after the title:
+// mx, my, mz for "m". Scripts are only resolved (and compiled) again when the
+// input names change, so a time series is compiled once.
 public final class A2 {
 
 	public static void main(String[] args) throws Throwable {
@@ -25,6 +34,10 @@ public final class A2 {
 			mainSimplify(args);
 		} else if (cmd.equals("compile")) {
 			mainCompile(args);
+		} else if (cmd.equals("run")) {
+			mainRun(args);
+		} else if (cmd.equals("jit")) {
+			mainJit(args);
 		}
 		else {
 			badUsage();
@@ -37,11 +50,12 @@ public final class A2 {
 			String f = args[i];
 			Reader r = new FileReader(new File(f));
 			Scanner s = new Scanner(f, r);
-			for (Token t = s.next(); t.type != Token.EOF; t = s.next()) {
-				System.out.println(s.pos() + "\t" + typeName(t.type) + ":\t" +  t.value);
+			Token t = new Token();
+			for (s.next(t); t.type != Token.EOF; s.next(t)) {
+				System.out.println(s.pos(t.line) + "\t" + typeName(t.type) + ":\t" +  t.value);
 			}
-			Token t = s.next();
-			System.out.println(s.pos() + "\t" + typeName(t.type) + ":\t" +  t.value);
+			s.next(t);
+			System.out.println(s.pos(t.line) + "\t" + typeName(t.type) + ":\t" +  t.value);
 		}
 	}
 
@@ -76,14 +90,115 @@ public final class A2 {
 		for (int i=1; i<args.length; i++) {
 			String f = args[i];
 			StmtList ast = Parser.parse(f, new FileInputStream(new File(f)));
-			Scope scope = new Scope();
-			Compiler.resolve(ast, scope);
+			Compiler.resolve(ast);
 			ast.print(System.out, 0);
 		}
 	}
 
+	// main for running files
+	static void mainRun(String[] args) throws Throwable {
+		exec(args, false);
+	}
+
+	// main for compiling files to bytecode and running them
+	static void mainJit(String[] args) throws Throwable {
+		exec(args, true);
+	}
+
+	// runs the scripts in args, interpreted or compiled, on each of the OVF2 files (*.ovf) in args.
+	static void exec(String[] args, boolean jit) throws Throwable {
+		ArrayList<Script> scripts = new ArrayList<Script>();
+		ArrayList<File> data = new ArrayList<File>();
+		for (int i=1; i<args.length; i++) {
+			if (args[i].endsWith(".ovf")) {
+				data.add(new File(args[i]));
+			} else {
+				scripts.add(new Script(args[i], jit));
+			}
+		}
+		Machine m = new Machine(System.out);
+		if (data.isEmpty()) {
+			for (Script s: scripts) {
+				s.run(m, new String[0], new Field[0]);
+			}
+		}
+		for (File f: data) {
+			OVF2 d = OVF2.read(f);
+			String[] names = names(d);
+			Field[] in = fields(d);
+			for (Script s: scripts) {
+				s.run(m, names, in);
+			}
+		}
+	}
+
+	// Script is an a2 file, resolved for the input names it was last run with.
+	static final class Script {
+		final String file;
+		final boolean jit;
+		StmtList ast;
+		String[] names;  // input names ast is resolved for, null if not yet resolved
+		Jit.Program prog; // compiled ast, if jit
+
+		Script(String file, boolean jit) {
+			this.file = file;
+			this.jit = jit;
+		}
+
+		// runs the script with inputs called names, parsing, resolving and compiling as needed.
+		void run(Machine m, String[] names, Field[] in) throws Throwable {
+			if (ast == null) {
+				ast = Parser.parse(file, new FileInputStream(new File(file)));
+			}
+			if (this.names == null || !Arrays.equals(this.names, names)) {
+				Compiler.resolve(ast, names);
+				this.names = names;
+				if (jit) {
+					prog = Jit.compile(file, ast);
+				}
+			}
+			if (jit) {
+				prog.run(System.out, in);
+			} else {
+				m.run(ast, in);
+			}
+		}
+	}
+
+	// names of the input variables for the components of d:
+	// the title for a scalar, title + x, y, z for a vector.
+	// Titles that are not identifiers are replaced by "m".
+	static String[] names(OVF2 d) {
+		String title = d.title;
+		boolean ok = title.length() > 0 && Scanner.isAlpha(title.charAt(0));
+		for (int i=0; i<title.length(); i++) {
+			ok = ok && Scanner.isAlphaNum(title.charAt(i));
+		}
+		if (!ok) {
+			title = "m";
+		}
+		String[] names = new String[d.nComp()];
+		if (names.length == 1) {
+			names[0] = title;
+			return names;
+		}
+		for (int c=0; c<names.length; c++) {
+			names[c] = (names.length == 3) ? title + "xyz".charAt(c) : title + c;
+		}
+		return names;
+	}
+
+	// the components of d as fields.
+	static Field[] fields(OVF2 d) {
+		Field[] f = new Field[d.nComp()];
+		for (int c=0; c<f.length; c++) {
+			f[c] = Field.component(d, c);
+		}
+		return f;
+	}
+
 	static void badUsage() {
-		System.err.println("Usage: a2 scan|parse <file>");
+		System.err.println("Usage: a2 scan|parse|simplify|compile|run|jit <file> [ovf files]");
 		System.exit(1);
 	}
 
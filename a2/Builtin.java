@@ -0,0 +1,199 @@
+package a2;
+
+// Builtin implements the functions of the universe scope.
+// Each builtin evaluates its own arguments, so that calls need not box them.
+// Calls are typed by type(), and evaluated by the method for that type.
+final class Builtin {
+
+	static final int VARIADIC = -1; // nArgs for any number of arguments
+
+	// function codes
+	static final int PRINT = 0;
+	static final int ABS = 1;
+	static final int SQRT = 2;
+	static final int EXP = 3;
+	static final int LOG = 4;
+	static final int SIN = 5;
+	static final int COS = 6;
+	static final int TAN = 7;
+	static final int FLOOR = 8;
+	static final int CEIL = 9;
+	static final int POW = 10;
+	static final int ATAN2 = 11;
+	static final int MIN = 12;
+	static final int MAX = 13;
+	static final int INT = 14;
+	static final int FLOAT = 15;
+	static final int SUM = 16;
+	static final int MEAN = 17;
+
+	final String name;
+	final int code;
+	final int nArgs; // number of arguments, or VARIADIC
+
+	Builtin(String name, int code, int nArgs) {
+		this.name = name;
+		this.code = code;
+		this.nArgs = nArgs;
+	}
+
+	// all builtins, indexed by code
+	static Builtin[] all() {
+		return new Builtin[] {
+			new Builtin("print", PRINT, VARIADIC),
+			new Builtin("abs", ABS, 1),
+			new Builtin("sqrt", SQRT, 1),
+			new Builtin("exp", EXP, 1),
+			new Builtin("log", LOG, 1),
+			new Builtin("sin", SIN, 1),
+			new Builtin("cos", COS, 1),
+			new Builtin("tan", TAN, 1),
+			new Builtin("floor", FLOOR, 1),
+			new Builtin("ceil", CEIL, 1),
+			new Builtin("pow", POW, 2),
+			new Builtin("atan2", ATAN2, 2),
+			new Builtin("min", MIN, 2),
+			new Builtin("max", MAX, 2),
+			new Builtin("int", INT, 1),
+			new Builtin("float", FLOAT, 1),
+			new Builtin("sum", SUM, 1),
+			new Builtin("mean", MEAN, 1),
+		};
+	}
+
+	// returns the type of call c, whose arguments have been typed,
+	// or an error if the arguments do not suit the function.
+	int type(CallExpr c) throws Error {
+		boolean ints = true, fields = false;
+		for (int i=0; i<c.nArg(); i++) {
+			int t = c.arg(i).type();
+			if (t == Type.VOID) {
+				throw new Error(c.pos() + ": " + Type.name(t) + " used as value");
+			}
+			ints = ints && (t == Type.INT);
+			fields = fields || (t == Type.FIELD);
+		}
+		switch(code) {
+		case PRINT:
+			if (fields) {
+				throw new Error(c.pos() + ": cannot print " + Type.name(Type.FIELD));
+			}
+			return Type.VOID;
+		case ABS:
+			return c.arg(0).type();
+		case MIN:
+		case MAX:
+			return fields ? Type.FIELD : ints ? Type.INT : Type.FLOAT;
+		case INT:
+		case FLOAT:
+			if (fields) {
+				throw new Error(c.pos() + ": cannot convert " + Type.name(Type.FIELD) + " to " + name);
+			}
+			return (code == INT) ? Type.INT : Type.FLOAT;
+		case SUM:
+		case MEAN:
+			if (!fields) {
+				throw new Error(c.pos() + ": " + name + " needs " + Type.name(Type.FIELD) + ", have " + Type.name(c.arg(0).type()));
+			}
+			return Type.FLOAT;
+		}
+		return fields ? Type.FIELD : Type.FLOAT;
+	}
+
+	// print(a, b, ...): prints the arguments separated by spaces, followed by a newline.
+	void exec(Machine m, CallExpr c) throws Error {
+		if (code != PRINT) {
+			throw new IllegalStateException(name + " is not void");
+		}
+		for (int i=0; i<c.nArg(); i++) {
+			if (i > 0) {
+				m.out.print(' ');
+			}
+			Node a = c.arg(i);
+			if (a.type() == Type.INT) {
+				m.out.print(a.evalInt(m));
+			} else {
+				m.out.print(a.evalFloat(m));
+			}
+		}
+		m.out.println();
+	}
+
+	// evaluates call c of type int.
+	long evalInt(Machine m, CallExpr c) throws Error {
+		switch(code) {
+		case ABS:
+			return Math.abs(c.arg(0).evalInt(m));
+		case MIN:
+			return Math.min(c.arg(0).evalInt(m), c.arg(1).evalInt(m));
+		case MAX:
+			return Math.max(c.arg(0).evalInt(m), c.arg(1).evalInt(m));
+		case INT:
+			Node a = c.arg(0);
+			return (a.type() == Type.INT) ? a.evalInt(m) : (long)(a.evalFloat(m));
+		}
+		throw new IllegalStateException(name + " is not int");
+	}
+
+	// evaluates call c of type float.
+	double evalFloat(Machine m, CallExpr c) throws Error {
+		switch(code) {
+		case ABS:
+			return Math.abs(c.arg(0).evalFloat(m));
+		case SQRT:
+			return Math.sqrt(c.arg(0).evalFloat(m));
+		case EXP:
+			return Math.exp(c.arg(0).evalFloat(m));
+		case LOG:
+			return Math.log(c.arg(0).evalFloat(m));
+		case SIN:
+			return Math.sin(c.arg(0).evalFloat(m));
+		case COS:
+			return Math.cos(c.arg(0).evalFloat(m));
+		case TAN:
+			return Math.tan(c.arg(0).evalFloat(m));
+		case FLOOR:
+			return Math.floor(c.arg(0).evalFloat(m));
+		case CEIL:
+			return Math.ceil(c.arg(0).evalFloat(m));
+		case POW: {
+			double x = c.arg(0).evalFloat(m);
+			return Math.pow(x, c.arg(1).evalFloat(m));
+		}
+		case ATAN2: {
+			double y = c.arg(0).evalFloat(m);
+			return Math.atan2(y, c.arg(1).evalFloat(m));
+		}
+		case MIN: {
+			double x = c.arg(0).evalFloat(m);
+			return Math.min(x, c.arg(1).evalFloat(m));
+		}
+		case MAX: {
+			double x = c.arg(0).evalFloat(m);
+			return Math.max(x, c.arg(1).evalFloat(m));
+		}
+		case FLOAT:
+			return c.arg(0).evalFloat(m);
+		case SUM:
+			return c.arg(0).evalField(m).sum();
+		case MEAN:
+			return c.arg(0).evalField(m).mean();
+		}
+		throw new IllegalStateException(name + " is not float");
+	}
+
+	// code of a binary builtin for Kernel.BINARY.
+	int fieldCode() {
+		switch(code) {
+		case POW:
+			return BinOp.POW;
+		case ATAN2:
+			return Kernel.ATAN2;
+		case MIN:
+			return Kernel.MIN;
+		case MAX:
+			return Kernel.MAX;
+		}
+		throw new IllegalStateException(name + " is not binary");
+	}
+}
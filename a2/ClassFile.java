@@ -0,0 +1,573 @@
+package a2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// ClassFile assembles a JVM class file, just enough for the a2 code generator.
+// Class files are written in version 49 (Java 5), the last version that
+// does not require StackMapTable attributes, so branches need no frame bookkeeping.
+final class ClassFile {
+
+	static final int VERSION = 49;
+	static final int MAX_POOL = 0xffff; // JVM limit on constant pool size
+
+	// access flags
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	// constant pool tags
+	static final int CONSTANT_Utf8 = 1;
+	static final int CONSTANT_Long = 5;
+	static final int CONSTANT_Double = 6;
+	static final int CONSTANT_Class = 7;
+	static final int CONSTANT_String = 8;
+	static final int CONSTANT_Fieldref = 9;
+	static final int CONSTANT_Methodref = 10;
+	static final int CONSTANT_NameAndType = 12;
+
+	// opcodes
+	static final int ACONST_NULL = 0x01;
+	static final int LCONST_0 = 0x09;
+	static final int LCONST_1 = 0x0a;
+	static final int DCONST_0 = 0x0e;
+	static final int DCONST_1 = 0x0f;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC = 0x12;
+	static final int LDC_W = 0x13;
+	static final int LDC2_W = 0x14;
+	static final int ILOAD = 0x15;
+	static final int LLOAD = 0x16;
+	static final int FLOAD = 0x17;
+	static final int DLOAD = 0x18;
+	static final int ALOAD = 0x19;
+	static final int FALOAD = 0x30;
+	static final int AALOAD = 0x32;
+	static final int ISTORE = 0x36;
+	static final int LSTORE = 0x37;
+	static final int FSTORE = 0x38;
+	static final int DSTORE = 0x39;
+	static final int ASTORE = 0x3a;
+	static final int FASTORE = 0x51;
+	static final int AASTORE = 0x53;
+	static final int POP = 0x57;
+	static final int POP2 = 0x58;
+	static final int DUP = 0x59;
+	static final int LADD = 0x61;
+	static final int FADD = 0x62;
+	static final int DADD = 0x63;
+	static final int LSUB = 0x65;
+	static final int FSUB = 0x66;
+	static final int DSUB = 0x67;
+	static final int LMUL = 0x69;
+	static final int FMUL = 0x6a;
+	static final int DMUL = 0x6b;
+	static final int FDIV = 0x6e;
+	static final int DDIV = 0x6f;
+	static final int FREM = 0x72;
+	static final int DREM = 0x73;
+	static final int LAND = 0x7f;
+	static final int LOR = 0x81;
+	static final int IINC = 0x84;
+	static final int I2L = 0x85;
+	static final int I2D = 0x87;
+	static final int L2D = 0x8a;
+	static final int F2D = 0x8d;
+	static final int D2L = 0x8f;
+	static final int D2F = 0x90;
+	static final int LCMP = 0x94;
+	static final int DCMPL = 0x97;
+	static final int DCMPG = 0x98;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int IF_ICMPGE = 0xa2;
+	static final int GOTO = 0xa7;
+	static final int TABLESWITCH = 0xaa;
+	static final int RETURN = 0xb1;
+	static final int GETFIELD = 0xb4;
+	static final int PUTFIELD = 0xb5;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int NEWARRAY = 0xbc;
+	static final int ANEWARRAY = 0xbd;
+	static final int WIDE = 0xc4;
+
+	static final int T_FLOAT = 6; // newarray type
+
+	final String name;             // internal name, e.g. "a2/Script"
+	ByteArrayOutputStream pool;    // constant pool entries
+	DataOutputStream poolOut;
+	int poolCount;                 // number of constant pool slots used, plus one
+	HashMap<String, Integer> poolIndex;
+	ArrayList<byte[]> fields, methods;
+
+	ClassFile(String name) {
+		this.name = name;
+		this.pool = new ByteArrayOutputStream();
+		this.poolOut = new DataOutputStream(pool);
+		this.poolCount = 1;
+		this.poolIndex = new HashMap<String, Integer>();
+		this.fields = new ArrayList<byte[]>();
+		this.methods = new ArrayList<byte[]>();
+	}
+
+	// Constant pool
+
+	int utf8(String s) {
+		Integer i = poolIndex.get("U" + s);
+		if (i != null) {
+			return i;
+		}
+		try {
+			poolOut.writeByte(CONSTANT_Utf8);
+			poolOut.writeUTF(s);
+		} catch(IOException e) {
+			throw new IllegalStateException(e); // ByteArrayOutputStream does not throw
+		}
+		return add("U" + s, 1);
+	}
+
+	int classRef(String internalName) {
+		return ref1(CONSTANT_Class, "C", internalName);
+	}
+
+	int string(String s) {
+		return ref1(CONSTANT_String, "S", s);
+	}
+
+	int longConst(long v) {
+		Integer i = poolIndex.get("J" + v);
+		if (i != null) {
+			return i;
+		}
+		try {
+			poolOut.writeByte(CONSTANT_Long);
+			poolOut.writeLong(v);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return add("J" + v, 2);
+	}
+
+	int doubleConst(double v) {
+		long bits = Double.doubleToRawLongBits(v);
+		Integer i = poolIndex.get("D" + bits);
+		if (i != null) {
+			return i;
+		}
+		try {
+			poolOut.writeByte(CONSTANT_Double);
+			poolOut.writeLong(bits);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return add("D" + bits, 2);
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return ref3(CONSTANT_Fieldref, owner, name, desc);
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return ref3(CONSTANT_Methodref, owner, name, desc);
+	}
+
+	// entry with tag referring to one utf8 string
+	int ref1(int tag, String kind, String s) {
+		Integer i = poolIndex.get(kind + s);
+		if (i != null) {
+			return i;
+		}
+		int u = utf8(s);
+		try {
+			poolOut.writeByte(tag);
+			poolOut.writeShort(u);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return add(kind + s, 1);
+	}
+
+	// field or method reference
+	int ref3(int tag, String owner, String name, String desc) {
+		String key = tag + owner + "." + name + ":" + desc;
+		Integer i = poolIndex.get(key);
+		if (i != null) {
+			return i;
+		}
+		int c = classRef(owner);
+		int nt = nameAndType(name, desc);
+		try {
+			poolOut.writeByte(tag);
+			poolOut.writeShort(c);
+			poolOut.writeShort(nt);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return add(key, 1);
+	}
+
+	int nameAndType(String name, String desc) {
+		String key = "N" + name + ":" + desc;
+		Integer i = poolIndex.get(key);
+		if (i != null) {
+			return i;
+		}
+		int n = utf8(name);
+		int d = utf8(desc);
+		try {
+			poolOut.writeByte(CONSTANT_NameAndType);
+			poolOut.writeShort(n);
+			poolOut.writeShort(d);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return add(key, 1);
+	}
+
+	// registers the entry just written under key, which takes size slots.
+	int add(String key, int size) {
+		int i = poolCount;
+		poolCount += size;
+		if (poolCount > MAX_POOL) {
+			throw new IllegalStateException("constant pool overflow");
+		}
+		poolIndex.put(key, i);
+		return i;
+	}
+
+	// Members
+
+	void field(int access, String name, String desc) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(desc));
+			out.writeShort(0); // attributes
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		fields.add(b.toByteArray());
+	}
+
+	// adds a method with the code assembled in c.
+	void method(int access, String name, String desc, Code c) {
+		c.resolve();
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(desc));
+			out.writeShort(1); // attributes: Code
+			int lines = c.lines.size() / 2;
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + c.length() + 8 + 4 * lines);
+			out.writeShort(c.maxStack);
+			out.writeShort(c.maxLocals);
+			out.writeInt(c.length());
+			out.write(c.code.toByteArray());
+			out.writeShort(0); // exception table
+			out.writeShort(1); // attributes: LineNumberTable
+			out.writeShort(utf8("LineNumberTable"));
+			out.writeInt(2 + 4 * lines);
+			out.writeShort(lines);
+			for (int i=0; i<c.lines.size(); i++) {
+				out.writeShort(c.lines.get(i));
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methods.add(b.toByteArray());
+	}
+
+	// Returns the class file bytes.
+	byte[] toBytes(int access, String superName, String[] interfaces, String sourceFile) {
+		// add all remaining constants before writing the pool
+		int thisClass = classRef(name);
+		int superClass = classRef(superName);
+		int[] ifaces = new int[interfaces.length];
+		for (int i=0; i<ifaces.length; i++) {
+			ifaces[i] = classRef(interfaces[i]);
+		}
+		int sourceAttr = utf8("SourceFile");
+		int source = utf8(sourceFile);
+
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolCount);
+			out.write(pool.toByteArray());
+			out.writeShort(access);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(ifaces.length);
+			for(int i: ifaces) {
+				out.writeShort(i);
+			}
+			out.writeShort(fields.size());
+			for(byte[] f: fields) {
+				out.write(f);
+			}
+			out.writeShort(methods.size());
+			for(byte[] m: methods) {
+				out.write(m);
+			}
+			out.writeShort(1); // attributes: SourceFile
+			out.writeShort(sourceAttr);
+			out.writeInt(2);
+			out.writeShort(source);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return b.toByteArray();
+	}
+}
+
+// Code assembles the bytecode of one method.
+// It tracks the operand stack depth, which the caller adjusts
+// where control flow merges (see setStack).
+final class Code {
+
+	static final int MAX_LENGTH = 0xffff; // JVM limit on code length
+
+	final ClassFile cf;
+	ByteArrayOutputStream code;
+	int stack, maxStack, maxLocals;
+	ArrayList<Integer> labels;  // label positions, -1 if not yet marked
+	ArrayList<Integer> jumps;   // pairs of (instruction pc, label) to patch
+	ArrayList<Integer> targets; // triples of (instruction pc, offset pc, label) to patch, for tableswitch
+	ArrayList<Integer> lines;   // pairs of (pc, line) for the LineNumberTable
+
+	Code(ClassFile cf, int maxLocals) {
+		this.cf = cf;
+		this.code = new ByteArrayOutputStream();
+		this.maxLocals = maxLocals;
+		this.labels = new ArrayList<Integer>();
+		this.jumps = new ArrayList<Integer>();
+		this.targets = new ArrayList<Integer>();
+		this.lines = new ArrayList<Integer>();
+	}
+
+	int length() {
+		return code.size();
+	}
+
+	// emits a one-byte instruction that changes the stack depth by delta.
+	void op(int opcode, int delta) {
+		code.write(opcode);
+		push(delta);
+	}
+
+	void push(int delta) {
+		stack += delta;
+		if (stack > maxStack) {
+			maxStack = stack;
+		}
+	}
+
+	// sets the stack depth, at a point where control flow merges.
+	void setStack(int depth) {
+		stack = depth;
+	}
+
+	void u1(int v) {
+		code.write(v);
+	}
+
+	void u2(int v) {
+		code.write(v >>> 8);
+		code.write(v);
+	}
+
+	void u4(int v) {
+		u2(v >>> 16);
+		u2(v);
+	}
+
+	// load or store local variable i. delta is the stack effect.
+	void local(int opcode, int i, int delta) {
+		if (i > 0xff) {
+			u1(ClassFile.WIDE);
+			op(opcode, delta);
+			u2(i);
+		} else {
+			op(opcode, delta);
+			u1(i);
+		}
+	}
+
+	// small constants are pushed inline, others loaded from the constant pool.
+	void lconst(long v) {
+		if (v == 0 || v == 1) {
+			op(v == 0 ? ClassFile.LCONST_0 : ClassFile.LCONST_1, 2);
+			return;
+		}
+		if (v == (short)(v)) {
+			op(ClassFile.SIPUSH, 1);
+			u2((int)(v));
+			op(ClassFile.I2L, 1);
+			return;
+		}
+		op(ClassFile.LDC2_W, 2);
+		u2(cf.longConst(v));
+	}
+
+	void dconst(double v) {
+		if (Double.doubleToRawLongBits(v) == 0 || v == 1) {
+			op(v == 0 ? ClassFile.DCONST_0 : ClassFile.DCONST_1, 2);
+			return;
+		}
+		if (v == (short)(v) && v != 0) { // not -0.0
+			op(ClassFile.SIPUSH, 1);
+			u2((short)(v));
+			op(ClassFile.I2D, 1);
+			return;
+		}
+		op(ClassFile.LDC2_W, 2);
+		u2(cf.doubleConst(v));
+	}
+
+	void iconst(int v) {
+		if (v != (short)(v)) {
+			throw new IllegalArgumentException("iconst " + v);
+		}
+		op(ClassFile.SIPUSH, 1);
+		u2(v);
+	}
+
+	void sconst(String s) {
+		int i = cf.string(s);
+		if (i > 0xff) {
+			op(ClassFile.LDC_W, 1);
+			u2(i);
+		} else {
+			op(ClassFile.LDC, 1);
+			u1(i);
+		}
+	}
+
+	// getfield or putfield. delta is the stack effect.
+	void field(int opcode, String owner, String name, String desc, int delta) {
+		op(opcode, delta);
+		u2(cf.fieldRef(owner, name, desc));
+	}
+
+	// invoke instruction. delta is the stack effect.
+	void invoke(int opcode, String owner, String name, String desc, int delta) {
+		op(opcode, delta);
+		u2(cf.methodRef(owner, name, desc));
+	}
+
+	int newLabel() {
+		labels.add(-1);
+		return labels.size() - 1;
+	}
+
+	void mark(int label) {
+		labels.set(label, length());
+	}
+
+	// emits a branch to label. delta is the stack effect.
+	void jump(int opcode, int label, int delta) {
+		jumps.add(length());
+		jumps.add(label);
+		op(opcode, delta);
+		u2(0); // patched by resolve
+	}
+
+	// emits a tableswitch on the int on top of the stack,
+	// branching to labels[i] for values 0 to labels.length-1, and to dflt otherwise.
+	void tableswitch(int dflt, int[] labels) {
+		int pc = length();
+		op(ClassFile.TABLESWITCH, -1);
+		while (length() % 4 != 0) {
+			u1(0);
+		}
+		target(pc, dflt);
+		u4(0);
+		u4(labels.length - 1);
+		for(int l: labels) {
+			target(pc, l);
+		}
+	}
+
+	// emits a 4-byte offset from instruction pc to label.
+	void target(int pc, int label) {
+		targets.add(pc);
+		targets.add(length());
+		targets.add(label);
+		u4(0); // patched by resolve
+	}
+
+	// increments int local i by delta.
+	void iinc(int i, int delta) {
+		if (i > 0xff || delta != (byte)(delta)) {
+			u1(ClassFile.WIDE);
+			op(ClassFile.IINC, 0);
+			u2(i);
+			u2(delta);
+		} else {
+			op(ClassFile.IINC, 0);
+			u1(i);
+			u1(delta);
+		}
+	}
+
+	// records that the following code stems from source line.
+	void line(int line) {
+		int n = lines.size();
+		if (n > 0 && lines.get(n - 1) == line) {
+			return;
+		}
+		lines.add(length());
+		lines.add(line);
+	}
+
+	// patches jump offsets.
+	void resolve() {
+		byte[] b = code.toByteArray();
+		for (int i=0; i<jumps.size(); i+=2) {
+			int pc = jumps.get(i);
+			int target = labels.get(jumps.get(i+1));
+			if (target < 0) {
+				throw new IllegalStateException("unmarked label");
+			}
+			int off = target - pc;
+			b[pc+1] = (byte)(off >> 8);
+			b[pc+2] = (byte)(off);
+		}
+		for (int i=0; i<targets.size(); i+=3) {
+			int pc = targets.get(i);
+			int at = targets.get(i+1);
+			int target = labels.get(targets.get(i+2));
+			if (target < 0) {
+				throw new IllegalStateException("unmarked label");
+			}
+			int off = target - pc;
+			b[at] = (byte)(off >> 24);
+			b[at+1] = (byte)(off >> 16);
+			b[at+2] = (byte)(off >> 8);
+			b[at+3] = (byte)(off);
+		}
+		code.reset();
+		code.write(b, 0, b.length);
+		jumps.clear();
+		targets.clear();
+	}
+}
@@ -2,37 +2,216 @@ package a2;
 
 public final class Compiler {
 
-	static void resolve(Node n, Scope s) throws Error {
+	// Resolves and type-checks a program: binds every identifier to a builtin function,
+	// or to the (depth, slot) address of a variable, and infers the type of every
+	// expression and variable. inputs are the names of field variables provided
+	// by the caller, see Machine.run and Jit.Program.run.
+	static void resolve(StmtList prog, String... inputs) throws Error {
+		Scope s = new Scope(Scope.universe());
+		prog.inputs = new Symbol[inputs.length];
+		for (int i=0; i<inputs.length; i++) {
+			prog.inputs[i] = s.declare(prog.pos(), inputs[i], Type.FIELD);
+		}
+		resolve(prog, s);
+		prog.slots = s.slots;
+		fuse(prog);
+	}
+
+	// resolves n in scope s, records and returns its type.
+	static int resolve(Node n, Scope s) throws Error {
+		int t = check(n, s);
+		((AbsNode)(n)).type = t;
+		return t;
+	}
+
+	// resolves n, which must have a value, and returns its type.
+	static int value(Node n, Scope s) throws Error {
+		int t = resolve(n, s);
+		if (t == Type.VOID) {
+			throw new Error(n.pos() + ": " + Type.name(t) + " used as value");
+		}
+		return t;
+	}
+
+	static int check(Node n, Scope s) throws Error {
 
 		if (n instanceof Decl) {
 			Decl d = (Decl)(n);
-			resolve(n.children()[1], s); // resolve rhs before declaring lhs
-			s.declare(d.ident()); // TODO: type
+			int t = value(n.children()[1], s); // resolve rhs before declaring lhs
+			Ident ident = d.ident();
+			ident.sym = s.declare(ident, t);
+			ident.slot = ident.sym.slot;
+			ident.type = t;
+			return Type.VOID;
+		}
+
+		if (n instanceof StmtList) {
+			for(Node c: n.children()) {
+				resolve(c, s);
+			}
+			return Type.VOID;
 		}
 
 		if (n instanceof BlockStmt) {
-			Scope childScope = new Scope();
-			childScope.parent = s;
+			Scope childScope = new Scope(s);
 			for(Node c: n.children()) {
 				resolve(c, childScope);
 			}
-			return;
+			((BlockStmt)(n)).slots = childScope.slots;
+			return Type.VOID;
 		}
 
 		if (n instanceof Ident) {
-			Ident ident = (Ident)(n);
-			ident.sym = s.find(ident.name);
-			if (ident.sym == null) {
-				throw new Error(n.pos() + " undefined: " + ident.name);
+			Ident ident = resolveIdent((Ident)(n), s);
+			if (ident.sym.kind != Symbol.VAR) {
+				throw new Error(n.pos() + ": " + ident.name + " is not a value");
 			}
-			return;
+			return ident.sym.type;
 		}
 
-		Node[] c = n.children();
-		for(int i=0; i<c.length; i++) {
-			resolve(c[i], s);
+		if (n instanceof CallExpr) {
+			CallExpr call = (CallExpr)(n);
+			Node f = call.children()[0];
+			if (!(f instanceof Ident) || resolveIdent((Ident)(f), s).sym.kind != Symbol.FUNC) {
+				throw new Error(n.pos() + ": not a function");
+			}
+			call.func = ((Ident)(f)).sym.func;
+			if (call.func.nArgs != Builtin.VARIADIC && call.func.nArgs != call.nArg()) {
+				throw new Error(n.pos() + ": " + call.func.name + " needs " + call.func.nArgs + " arguments, have " + call.nArg());
+			}
+			for(int i=0; i<call.nArg(); i++) {
+				resolve(call.arg(i), s);
+			}
+			return call.func.type(call);
+		}
+
+		if (n instanceof AssignStmt) {
+			AssignStmt a = (AssignStmt)(n);
+			Ident lhs = assignable(n, s);
+			if (a.code < 0 && !a.op.equals("=")) {
+				throw new Error(n.pos() + ": unknown assignment operator " + a.op);
+			}
+			int t = value(n.children()[1], s);
+			if (a.code >= 0) {
+				t = binType(a.code, lhs.type, t, n.pos());
+			}
+			if (t != lhs.type && !(t == Type.INT && lhs.type == Type.FLOAT)) {
+				throw new Error(n.pos() + ": cannot assign " + Type.name(t) + " to " + Type.name(lhs.type) + " " + lhs.name);
+			}
+			return Type.VOID;
+		}
+
+		if (n instanceof PostfixStmt) {
+			Ident lhs = assignable(n, s);
+			if (lhs.type != Type.INT && lhs.type != Type.FLOAT) {
+				throw new Error(n.pos() + ": operator " + ((PostfixStmt)(n)).op + " not defined on " + Type.name(lhs.type));
+			}
+			return Type.VOID;
+		}
+
+		if (n instanceof BinOp) {
+			BinOp b = (BinOp)(n);
+			if (b.code < 0) {
+				throw new Error(n.pos() + ": unknown operator " + b.op);
+			}
+			int tx = value(b.children()[0], s);
+			int ty = value(b.children()[1], s);
+			return binType(b.code, tx, ty, n.pos());
+		}
+
+		if (n instanceof IntLit) {
+			return Type.INT;
+		}
+		if (n instanceof FloatLit) {
+			return Type.FLOAT;
+		}
+		if (n instanceof Nop) {
+			return Type.VOID;
+		}
+		throw new IllegalStateException(n.pos() + ": cannot resolve " + n.getClass().getSimpleName());
+	}
+
+	// resolves the left-hand side of an assignment or postfix statement,
+	// which must be a variable.
+	static Ident assignable(Node n, Scope s) throws Error {
+		Node lhs = n.children()[0];
+		if (!(lhs instanceof Ident)) {
+			throw new Error(n.pos() + ": cannot assign to non-variable");
 		}
+		resolve(lhs, s);
+		return (Ident)(lhs);
+	}
 
+	// binds ident to its symbol, and for variables, to its address relative to scope s.
+	static Ident resolveIdent(Ident ident, Scope s) throws Error {
+		ident.sym = s.find(ident.name);
+		if (ident.sym == null) {
+			throw new Error(ident.pos() + " undefined: " + ident.name);
+		}
+		ident.depth = s.depth - ident.sym.depth;
+		ident.slot = ident.sym.slot;
+		return ident;
+	}
+
+	// attaches a Kernel to every maximal element-wise field expression under n,
+	// and to every op= on a field.
+	static void fuse(Node n) {
+		if (Kernel.fusable(n)) {
+			Kernel k = new Kernel(n);
+			if (n instanceof BinOp) {
+				((BinOp)(n)).kernel = k;
+			} else {
+				((CallExpr)(n)).kernel = k;
+			}
+			for(Node x: k.numbers) {
+				fuse(x);
+			}
+			return;
+		}
+		if (n instanceof AssignStmt) {
+			AssignStmt a = (AssignStmt)(n);
+			Node lhs = n.children()[0], rhs = n.children()[1];
+			if (a.code >= 0 && lhs.type() == Type.FIELD) {
+				a.kernel = new Kernel(a.code, lhs, rhs, a.pos());
+				for(Node x: a.kernel.numbers) {
+					fuse(x);
+				}
+				// the rhs is part of the kernel
+				return;
+			}
+		}
+		for(Node c: n.children()) {
+			fuse(c);
+		}
+	}
+
+	// type of x op y, with op given by its BinOp code, or error if the operation is not defined.
+	// int op int yields int, except for ^. Numbers are promoted to float, or to field.
+	// Comparisons and logical operators yield int 0 or 1.
+	static int binType(int code, int tx, int ty, String pos) throws Error {
+		if (tx == Type.FIELD || ty == Type.FIELD) {
+			if (code > BinOp.POW) {
+				throw new Error(pos + ": operator " + BinOp.ops[code] + " not defined on " + Type.name(Type.FIELD));
+			}
+			return Type.FIELD;
+		}
+		boolean ints = (tx == Type.INT && ty == Type.INT);
+		switch(code) {
+		case BinOp.LAND:
+		case BinOp.LOR:
+		case BinOp.AND:
+		case BinOp.OR:
+			if (!ints) {
+				throw new Error(pos + ": operator " + BinOp.ops[code] + " not defined on " + Type.name(Type.FLOAT));
+			}
+			return Type.INT;
+		case BinOp.POW:
+			return Type.FLOAT;
+		}
+		if (code >= BinOp.EQ) {
+			return Type.INT;
+		}
+		return ints ? Type.INT : Type.FLOAT;
 	}
 
 
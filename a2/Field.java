@@ -0,0 +1,76 @@
+package a2;
+
+import ovf2.OVF2;
+
+// Field is the value of an a2 expression of type field:
+// one float per cell of a grid of nx x ny x nz cells, x varying fastest,
+// like a component of an OVF2.
+// Arithmetic on fields is element-wise, where numbers apply to every cell,
+// and is evaluated by Kernels.
+public final class Field {
+
+	final int nx, ny, nz;
+	final float[] data;
+
+	// Constructs a field of nx x ny x nz cells backed by data.
+	public Field(int nx, int ny, int nz, float[] data) {
+		if (data.length != nx * ny * nz) {
+			throw new IllegalArgumentException("data length " + data.length + " does not match " + nx + "x" + ny + "x" + nz);
+		}
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.data = data;
+	}
+
+	// Returns component c of f as a field.
+	// Shares f's heap array if it has one, copies the component otherwise.
+	public static Field component(OVF2 f, int c) {
+		float[] a = f.data.array(c);
+		if (a == null) {
+			a = new float[f.len()];
+			f.data.get(c, 0, a, 0, a.length);
+		}
+		return new Field(f.sizeX(), f.sizeY(), f.sizeZ(), a);
+	}
+
+	// Returns the values, indexed like an OVF2 component.
+	public float[] array() {
+		return data;
+	}
+
+	public int len() {
+		return data.length;
+	}
+
+	// returns a zero field of the same size
+	Field like() {
+		return new Field(nx, ny, nz, new float[data.length]);
+	}
+
+	// Returns the sum of all cells, in compensated (Neumaier) summation like ovf2.Stats,
+	// so that mean() agrees with Stats.avg().
+	public double sum() {
+		double s = 0;
+		double e = 0; // compensation: low bits lost from s
+		for (int i=0; i<data.length; i++) {
+			float v = data[i];
+			double t = s + v;
+			if (Math.abs(s) >= Math.abs(v)) {
+				e += (s - t) + v;
+			} else {
+				e += (v - t) + s;
+			}
+			s = t;
+		}
+		return s + e;
+	}
+
+	public double mean() {
+		return sum() / data.length;
+	}
+
+	public String toString() {
+		return "field " + nx + "x" + ny + "x" + nz;
+	}
+}
@@ -0,0 +1,696 @@
+package a2;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Jit compiles resolved a2 programs to JVM bytecode, loaded as a hidden class,
+// so that HotSpot can optimize scripts like regular Java code.
+//
+// Top-level variables become fields of the generated class, variables of nested
+// blocks become JVM locals. Ints are longs and floats are doubles throughout,
+// using the types inferred by Compiler.resolve().
+// Each fused field expression (see Kernel) becomes a static method kN looping over
+// a range of cells, and the generated class implements Kernel.Body to dispatch to them.
+// The top-level statements are spread over methods of at most about CHUNK bytes,
+// so that each stays below HotSpot's limit for JIT compilation (HugeMethodLimit).
+//
+// Run-time errors carry the file:line position of the offending node, like Machine's.
+public final class Jit {
+
+	// Program is a compiled a2 program.
+	// A program's variables are private to it, so separate instances may run concurrently.
+	public interface Program {
+		// Runs the program with its input variables set to inputs,
+		// with output of print() going to out.
+		void run(PrintStream out, Field... inputs) throws Error;
+	}
+
+	static final String CLASS = "a2/Script";              // generated class name (hidden classes get a suffix)
+	static final String PROGRAM = "a2/Jit$Program";
+	static final String OUT = "$out";                      // field holding the PrintStream
+	static final String PRINTSTREAM = "java/io/PrintStream";
+	static final String FIELD = "a2/Field";
+	static final String KERNEL = "a2/Kernel";
+	static final String BODY = "a2/Kernel$Body";
+	static final String LOOP = "([[F[F[FII)V";             // descriptor of a kernel method
+	static final int CHUNK = 4000;                         // target method size, bytes
+	static final int POOL_RESERVE = 4096;                  // constant pool slots kept free for the last statement and run()
+
+	ClassFile cf;
+	Code c;                          // method being generated
+	int nextLocal;                   // next free JVM local
+	HashMap<Symbol, Var> vars;       // storage of variables declared so far
+	int kernels;                     // number of kernel methods generated so far
+
+	// Var is the storage for a variable: a field of the generated class or a JVM local.
+	static final class Var {
+		int type;     // Type.INT, FLOAT or FIELD
+		String field; // field name, for top-level variables
+		int local;    // local index, otherwise
+	}
+
+	Jit() {
+		cf = new ClassFile(CLASS);
+		vars = new HashMap<Symbol, Var>();
+	}
+
+	// Compiles a program that has been resolved by Compiler.resolve(),
+	// returns a fresh instance of it.
+	public static Program compile(String file, StmtList prog) throws Error {
+		Jit j = new Jit();
+		for(Symbol in: prog.inputs) {
+			j.global(in);
+		}
+		int chunks = j.chunks(prog);
+		byte[] bytes = j.finish(chunks, prog, file);
+		return load(bytes);
+	}
+
+	// generates the top-level statements into methods s0, s1, ...
+	// returns the number of methods.
+	int chunks(StmtList prog) throws Error {
+		int chunks = 0;
+		begin();
+		Node last = prog;
+		for(Node n: prog.children()) {
+			stmt(n);
+			last = n;
+			if (cf.poolCount > ClassFile.MAX_POOL - POOL_RESERVE) {
+				throw new Error(n.pos() + ": program too large to compile");
+			}
+			if (c.length() > CHUNK) {
+				end(chunks++, n);
+				begin();
+			}
+		}
+		end(chunks++, last);
+		return chunks;
+	}
+
+	// starts a chunk method. Local 0 is this.
+	void begin() {
+		c = new Code(cf, 1);
+		nextLocal = 1;
+	}
+
+	// ends chunk method i, whose last statement is n.
+	void end(int i, Node n) throws Error {
+		c.op(ClassFile.RETURN, 0);
+		if (c.length() > Short.MAX_VALUE) {
+			throw new Error(n.pos() + ": statement too large to compile");
+		}
+		cf.method(ClassFile.ACC_FINAL, "s" + i, "()V", c);
+	}
+
+	// adds the constructor, run and loop methods, returns the class file.
+	byte[] finish(int chunks, StmtList prog, String file) {
+		cf.field(0, OUT, "L" + PRINTSTREAM + ";");
+
+		Code init = new Code(cf, 1);
+		init.local(ClassFile.ALOAD, 0, 1);
+		init.invoke(ClassFile.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", -1);
+		init.op(ClassFile.RETURN, 0);
+		cf.method(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+
+		Code run = new Code(cf, 3);
+		run.local(ClassFile.ALOAD, 0, 1);
+		run.local(ClassFile.ALOAD, 1, 1);
+		run.field(ClassFile.PUTFIELD, CLASS, OUT, "L" + PRINTSTREAM + ";", -2);
+		run.local(ClassFile.ALOAD, 2, 1);
+		run.iconst(prog.inputs.length);
+		run.invoke(ClassFile.INVOKESTATIC, "a2/Jit", "checkInputs", "([L" + FIELD + ";I)V", -2);
+		for (int i=0; i<prog.inputs.length; i++) {
+			run.local(ClassFile.ALOAD, 0, 1);
+			run.local(ClassFile.ALOAD, 2, 1);
+			run.iconst(i);
+			run.op(ClassFile.AALOAD, -1);
+			run.field(ClassFile.PUTFIELD, CLASS, vars.get(prog.inputs[i]).field, desc(Type.FIELD), -2);
+		}
+		for (int i=0; i<chunks; i++) {
+			run.local(ClassFile.ALOAD, 0, 1);
+			run.invoke(ClassFile.INVOKEVIRTUAL, CLASS, "s" + i, "()V", -1);
+		}
+		run.op(ClassFile.RETURN, 0);
+		cf.method(ClassFile.ACC_PUBLIC, "run", "(L" + PRINTSTREAM + ";[L" + FIELD + ";)V", run);
+
+		// loop(k, in, num, out, lo, hi) calls kernel method kk(in, num, out, lo, hi)
+		Code loop = new Code(cf, 7);
+		if (kernels > 0) {
+			int[] cases = new int[kernels];
+			for (int k=0; k<kernels; k++) {
+				cases[k] = loop.newLabel();
+			}
+			int dflt = loop.newLabel();
+			loop.local(ClassFile.ILOAD, 1, 1);
+			loop.tableswitch(dflt, cases);
+			for (int k=0; k<kernels; k++) {
+				loop.mark(cases[k]);
+				loop.local(ClassFile.ALOAD, 2, 1);
+				loop.local(ClassFile.ALOAD, 3, 1);
+				loop.local(ClassFile.ALOAD, 4, 1);
+				loop.local(ClassFile.ILOAD, 5, 1);
+				loop.local(ClassFile.ILOAD, 6, 1);
+				loop.invoke(ClassFile.INVOKESTATIC, CLASS, "k" + k, LOOP, -5);
+				loop.op(ClassFile.RETURN, 0);
+			}
+			loop.mark(dflt);
+		}
+		loop.op(ClassFile.RETURN, 0);
+		cf.method(ClassFile.ACC_PUBLIC, "loop", "(I" + LOOP.substring(1), loop);
+
+		return cf.toBytes(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER,
+		                  "java/lang/Object", new String[] {PROGRAM, BODY}, file);
+	}
+
+	// defines the class as a hidden class in this package, and instantiates it.
+	static Program load(byte[] bytes) {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return (Program)(l.lookupClass().getDeclaredConstructor().newInstance());
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException(e); // compiler bug
+		}
+	}
+
+	// Statements
+
+	void stmt(Node n) throws Error {
+		c.line(line(n));
+
+		if (n instanceof Nop) {
+			return;
+		}
+
+		if (n instanceof BlockStmt) {
+			int saved = nextLocal;
+			for(Node s: n.children()) {
+				stmt(s);
+			}
+			nextLocal = saved;
+			return;
+		}
+
+		if (n instanceof DeclAssign) {
+			declAssign((DeclAssign)(n));
+			return;
+		}
+
+		if (n instanceof AssignStmt) {
+			assign((AssignStmt)(n));
+			return;
+		}
+
+		if (n instanceof PostfixStmt) {
+			postfix((PostfixStmt)(n));
+			return;
+		}
+
+		// expression statement: discard the value
+		int t = expr(n);
+		if (t != Type.VOID) {
+			c.op(size(t) == 2 ? ClassFile.POP2 : ClassFile.POP, -size(t));
+		}
+	}
+
+	void declAssign(DeclAssign n) throws Error {
+		Node rhs = n.children()[1];
+		Ident ident = n.ident();
+		Var v;
+		if (ident.sym.depth == 0) {
+			v = global(ident.sym);
+		} else {
+			v = new Var();
+			v.type = ident.sym.type;
+			v.local = nextLocal;
+			nextLocal += size(v.type);
+			if (nextLocal > c.maxLocals) {
+				c.maxLocals = nextLocal;
+			}
+			vars.put(ident.sym, v);
+		}
+
+		if (v.field != null) {
+			c.local(ClassFile.ALOAD, 0, 1);
+		}
+		expr(rhs, v.type);
+		store(v);
+	}
+
+	// declares top-level variable sym as a field of the generated class.
+	Var global(Symbol sym) {
+		Var v = new Var();
+		v.type = sym.type;
+		v.field = sym.name;
+		cf.field(0, v.field, desc(v.type));
+		vars.put(sym, v);
+		return v;
+	}
+
+	void assign(AssignStmt n) throws Error {
+		Ident lhs = (Ident)(n.children()[0]);
+		Node rhs = n.children()[1];
+		Var v = vars.get(lhs.sym);
+		if (v.field != null) {
+			c.local(ClassFile.ALOAD, 0, 1);
+		}
+		if (n.code < 0) {
+			expr(rhs, v.type);
+		} else if (v.type == Type.FIELD) {
+			kernel(n.kernel);
+		} else {
+			int t = Compiler.binType(n.code, v.type, rhs.type(), n.pos());
+			binOp(n.code, lhs, rhs, t, n.pos());
+			convert(t, v.type);
+		}
+		store(v);
+	}
+
+	void postfix(PostfixStmt n) throws Error {
+		Ident lhs = (Ident)(n.children()[0]);
+		Var v = vars.get(lhs.sym);
+		boolean inc = n.op.equals("++");
+		if (v.field != null) {
+			c.local(ClassFile.ALOAD, 0, 1);
+			c.op(ClassFile.DUP, 1);
+			c.field(ClassFile.GETFIELD, CLASS, v.field, desc(v.type), size(v.type) - 1);
+		} else {
+			load(v);
+		}
+		if (v.type == Type.INT) {
+			c.lconst(1);
+			c.op(inc ? ClassFile.LADD : ClassFile.LSUB, -2);
+		} else {
+			c.dconst(1);
+			c.op(inc ? ClassFile.DADD : ClassFile.DSUB, -2);
+		}
+		store(v);
+	}
+
+	// loads variable v.
+	void load(Var v) {
+		if (v.field != null) {
+			c.local(ClassFile.ALOAD, 0, 1);
+			c.field(ClassFile.GETFIELD, CLASS, v.field, desc(v.type), size(v.type) - 1);
+			return;
+		}
+		c.local(LOAD[v.type], v.local, size(v.type));
+	}
+
+	// stores the value on top of the stack in v.
+	// for fields, this must have been loaded below the value.
+	void store(Var v) {
+		if (v.field != null) {
+			c.field(ClassFile.PUTFIELD, CLASS, v.field, desc(v.type), -1 - size(v.type));
+			return;
+		}
+		c.local(STORE[v.type], v.local, -size(v.type));
+	}
+
+	// load and store instructions by type
+	static final int[] LOAD = {0, ClassFile.LLOAD, ClassFile.DLOAD, ClassFile.ALOAD};
+	static final int[] STORE = {0, ClassFile.LSTORE, ClassFile.DSTORE, ClassFile.ASTORE};
+
+	// Expressions
+
+	// generates code for n, returns its type.
+	int expr(Node n) throws Error {
+		if (n instanceof IntLit) {
+			c.lconst(((IntLit)(n)).val);
+			return Type.INT;
+		}
+		if (n instanceof FloatLit) {
+			c.dconst(((FloatLit)(n)).val);
+			return Type.FLOAT;
+		}
+		if (n instanceof Ident) {
+			Var v = vars.get(((Ident)(n)).sym);
+			load(v);
+			return v.type;
+		}
+		if (n instanceof BinOp) {
+			BinOp b = (BinOp)(n);
+			if (b.type() == Type.FIELD) {
+				kernel(b.kernel);
+				return Type.FIELD;
+			}
+			return binOp(b.code, b.children()[0], b.children()[1], b.type(), b.pos());
+		}
+		if (n instanceof CallExpr) {
+			return call((CallExpr)(n));
+		}
+		throw new IllegalStateException("cannot compile " + n.getClass().getSimpleName());
+	}
+
+	// generates code for n, converted to type want.
+	void expr(Node n, int want) throws Error {
+		convert(expr(n), want);
+	}
+
+	// converts the value on top of the stack from type have to want.
+	void convert(int have, int want) {
+		if (have == Type.INT && want == Type.FLOAT) {
+			c.op(ClassFile.L2D, 0);
+		}
+	}
+
+	// generates x op y, of type t, with op given by BinOp code. Semantics as BinOp.
+	int binOp(int code, Node x, Node y, int t, String pos) throws Error {
+		int s = c.stack;
+
+		if (code == BinOp.LAND || code == BinOp.LOR) {
+			// short-circuit: jump to done as soon as the outcome is known
+			int done = c.newLabel();
+			int end = c.newLabel();
+			int branch = (code == BinOp.LAND) ? ClassFile.IFEQ : ClassFile.IFNE;
+			expr(x);
+			c.lconst(0);
+			c.op(ClassFile.LCMP, -3);
+			c.jump(branch, done, -1);
+			expr(y);
+			c.lconst(0);
+			c.op(ClassFile.LCMP, -3);
+			c.jump(branch, done, -1);
+			c.lconst(code == BinOp.LAND ? 1 : 0);
+			c.jump(ClassFile.GOTO, end, 0);
+			c.mark(done);
+			c.setStack(s);
+			c.lconst(code == BinOp.LAND ? 0 : 1);
+			c.mark(end);
+			return t;
+		}
+
+		if (code >= BinOp.EQ) {
+			// comparison: 1 if the condition holds, 0 otherwise
+			boolean ints = x.type() == Type.INT && y.type() == Type.INT;
+			int ot = ints ? Type.INT : Type.FLOAT;
+			expr(x, ot);
+			expr(y, ot);
+			if (ints) {
+				c.op(ClassFile.LCMP, -3);
+			} else {
+				// NaN compares false, except for !=
+				c.op((code == BinOp.LT || code == BinOp.LE) ? ClassFile.DCMPG : ClassFile.DCMPL, -3);
+			}
+			int yes = c.newLabel();
+			int end = c.newLabel();
+			c.jump(CONDITION[code - BinOp.EQ], yes, -1);
+			c.lconst(0);
+			c.jump(ClassFile.GOTO, end, 0);
+			c.mark(yes);
+			c.setStack(s);
+			c.lconst(1);
+			c.mark(end);
+			return t;
+		}
+
+		if (code == BinOp.POW) {
+			expr(x, Type.FLOAT);
+			expr(y, Type.FLOAT);
+			c.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", -2);
+			return t;
+		}
+
+		expr(x, t);
+		expr(y, t);
+		if (t == Type.INT) {
+			switch(code) {
+			case BinOp.DIV:
+			case BinOp.REM:
+				c.sconst(pos);
+				c.invoke(ClassFile.INVOKESTATIC, "a2/Jit", code == BinOp.DIV ? "div" : "rem", "(JJLjava/lang/String;)J", -3);
+				return t;
+			default:
+				c.op(INT_OP[code], -2);
+				return t;
+			}
+		}
+		c.op(FLOAT_OP[code], -2);
+		return t;
+	}
+
+	// branch opcodes for EQ, NE, LT, LE, GT, GE, applied to the result of lcmp or dcmp.
+	static final int[] CONDITION = {ClassFile.IFEQ, ClassFile.IFNE, ClassFile.IFLT, ClassFile.IFLE, ClassFile.IFGT, ClassFile.IFGE};
+
+	// opcodes for ADD, SUB, MUL, DIV, REM, POW, AND, OR (0: not a plain instruction).
+	static final int[] INT_OP = {ClassFile.LADD, ClassFile.LSUB, ClassFile.LMUL, 0, 0, 0, ClassFile.LAND, ClassFile.LOR};
+	static final int[] FLOAT_OP = {ClassFile.DADD, ClassFile.DSUB, ClassFile.DMUL, ClassFile.DDIV, ClassFile.DREM};
+
+	// generates a call to a builtin.
+	int call(CallExpr n) throws Error {
+		Builtin f = n.func;
+		int t = n.type();
+		if (t == Type.FIELD) {
+			kernel(n.kernel);
+			return t;
+		}
+		switch(f.code) {
+		case Builtin.PRINT:
+			for (int i=0; i<n.nArg(); i++) {
+				if (i > 0) {
+					out();
+					c.op(ClassFile.BIPUSH, 1);
+					c.u1(' ');
+					c.invoke(ClassFile.INVOKEVIRTUAL, PRINTSTREAM, "print", "(C)V", -2);
+				}
+				out();
+				int at = expr(n.arg(i));
+				c.invoke(ClassFile.INVOKEVIRTUAL, PRINTSTREAM, "print", at == Type.INT ? "(J)V" : "(D)V", -3);
+			}
+			out();
+			c.invoke(ClassFile.INVOKEVIRTUAL, PRINTSTREAM, "println", "()V", -1);
+			return t;
+		case Builtin.ABS:
+			expr(n.arg(0));
+			c.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", "abs", t == Type.INT ? "(J)J" : "(D)D", 0);
+			return t;
+		case Builtin.SQRT:
+		case Builtin.EXP:
+		case Builtin.LOG:
+		case Builtin.SIN:
+		case Builtin.COS:
+		case Builtin.TAN:
+		case Builtin.FLOOR:
+		case Builtin.CEIL:
+			expr(n.arg(0), Type.FLOAT);
+			c.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", f.name, "(D)D", 0);
+			return t;
+		case Builtin.POW:
+		case Builtin.ATAN2:
+		case Builtin.MIN:
+		case Builtin.MAX:
+			expr(n.arg(0), t);
+			expr(n.arg(1), t);
+			c.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", f.name, t == Type.INT ? "(JJ)J" : "(DD)D", -2);
+			return t;
+		case Builtin.INT:
+			if (expr(n.arg(0)) == Type.FLOAT) {
+				c.op(ClassFile.D2L, 0);
+			}
+			return t;
+		case Builtin.FLOAT:
+			expr(n.arg(0), Type.FLOAT);
+			return t;
+		case Builtin.SUM:
+		case Builtin.MEAN:
+			expr(n.arg(0));
+			c.invoke(ClassFile.INVOKEVIRTUAL, FIELD, f.name, "()D", 1);
+			return t;
+		}
+		throw new IllegalStateException("unknown builtin " + f.name);
+	}
+
+	// Kernels
+
+	// generates Kernel.pass(null, this, k, in, num, pos) for kernel k,
+	// evaluating its inputs in order, and generates its kernel method.
+	void kernel(Kernel k) throws Error {
+		int index = kernels++;
+		loopMethod(index, k);
+
+		c.op(ClassFile.ACONST_NULL, 1);
+		c.local(ClassFile.ALOAD, 0, 1);
+		c.iconst(index);
+		c.iconst(k.fields.length);
+		c.op(ClassFile.ANEWARRAY, 0);
+		c.u2(cf.classRef(FIELD));
+		for (int i=0; i<k.fields.length; i++) {
+			c.op(ClassFile.DUP, 1);
+			c.iconst(i);
+			expr(k.fields[i]);
+			c.op(ClassFile.AASTORE, -3);
+		}
+		c.iconst(k.numbers.length);
+		c.op(ClassFile.NEWARRAY, 0);
+		c.u1(ClassFile.T_FLOAT);
+		for (int i=0; i<k.numbers.length; i++) {
+			c.op(ClassFile.DUP, 1);
+			c.iconst(i);
+			expr(k.numbers[i], Type.FLOAT);
+			c.op(ClassFile.D2F, -1);
+			c.op(ClassFile.FASTORE, -3);
+		}
+		c.sconst(k.pos);
+		c.invoke(ClassFile.INVOKESTATIC, KERNEL, "pass",
+		         "(L" + KERNEL + ";L" + BODY + ";I[L" + FIELD + ";[FLjava/lang/String;)L" + FIELD + ";", -5);
+	}
+
+	// generates static method k<index>(in, num, out, lo, hi), which evaluates
+	// kernel k for cells lo to hi, like Kernel.interpret but one cell at a time:
+	//	for (i=lo; i<hi; i++) {
+	//		out[i] = <postfix program, with in[j][i] and num[j] kept in locals>
+	//	}
+	void loopMethod(int index, Kernel k) throws Error {
+		int IN = 0, NUM = 1, OUT = 2, LO = 3, HI = 4;
+		int arrays = 5;                          // first of the in[j] locals
+		int values = arrays + k.fields.length;   // first of the num[j] locals
+		int i = values + k.numbers.length;       // loop counter
+		Code m = new Code(cf, i + 1);
+		for (int j=0; j<k.fields.length; j++) {
+			m.local(ClassFile.ALOAD, IN, 1);
+			m.iconst(j);
+			m.op(ClassFile.AALOAD, -1);
+			m.local(ClassFile.ASTORE, arrays + j, -1);
+		}
+		for (int j=0; j<k.numbers.length; j++) {
+			m.local(ClassFile.ALOAD, NUM, 1);
+			m.iconst(j);
+			m.op(ClassFile.FALOAD, -1);
+			m.local(ClassFile.FSTORE, values + j, -1);
+		}
+		m.local(ClassFile.ILOAD, LO, 1);
+		m.local(ClassFile.ISTORE, i, -1);
+
+		int loop = m.newLabel();
+		int end = m.newLabel();
+		m.mark(loop);
+		m.local(ClassFile.ILOAD, i, 1);
+		m.local(ClassFile.ILOAD, HI, 1);
+		m.jump(ClassFile.IF_ICMPGE, end, -2);
+		m.local(ClassFile.ALOAD, OUT, 1);
+		m.local(ClassFile.ILOAD, i, 1);
+		for (int pc=0; pc<k.op.length; pc++) {
+			int arg = k.arg[pc];
+			switch(k.op[pc]) {
+			case Kernel.FIELD:
+				m.local(ClassFile.ALOAD, arrays + arg, 1);
+				m.local(ClassFile.ILOAD, i, 1);
+				m.op(ClassFile.FALOAD, -1);
+				break;
+			case Kernel.NUMBER:
+				m.local(ClassFile.FLOAD, values + arg, 1);
+				break;
+			case Kernel.UNARY:
+				unary(m, arg);
+				break;
+			case Kernel.BINARY:
+				binary(m, arg);
+				break;
+			}
+		}
+		m.op(ClassFile.FASTORE, -3);
+		m.iinc(i, 1);
+		m.jump(ClassFile.GOTO, loop, 0);
+		m.mark(end);
+		m.op(ClassFile.RETURN, 0);
+		if (m.length() > Short.MAX_VALUE) {
+			throw new Error(k.pos + ": statement too large to compile");
+		}
+		cf.method(ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "k" + index, LOOP, m);
+	}
+
+	// generates builtin fn on the float on top of the stack, semantics as Kernel.unary.
+	static void unary(Code m, int fn) {
+		switch(fn) {
+		case Builtin.ABS:
+			m.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", "abs", "(F)F", 0);
+			return;
+		case Builtin.SQRT:
+			m.op(ClassFile.F2D, 1);
+			m.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", "sqrt", "(D)D", 0);
+			m.op(ClassFile.D2F, -1);
+			return;
+		}
+		m.iconst(fn);
+		m.invoke(ClassFile.INVOKESTATIC, KERNEL, "apply", "(FI)F", -1);
+	}
+
+	// generates op on the two floats on top of the stack, semantics as Kernel.binary.
+	static void binary(Code m, int code) {
+		switch(code) {
+		case BinOp.ADD:
+		case BinOp.SUB:
+		case BinOp.MUL:
+		case BinOp.DIV:
+		case BinOp.REM:
+			m.op(CELL_OP[code], -1);
+			return;
+		case Kernel.MIN:
+		case Kernel.MAX:
+			m.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", code == Kernel.MIN ? "min" : "max", "(FF)F", -1);
+			return;
+		}
+		m.iconst(code);
+		m.invoke(ClassFile.INVOKESTATIC, KERNEL, "apply", "(FFI)F", -2);
+	}
+
+	// float opcodes for ADD, SUB, MUL, DIV, REM.
+	static final int[] CELL_OP = {ClassFile.FADD, ClassFile.FSUB, ClassFile.FMUL, ClassFile.FDIV, ClassFile.FREM};
+
+	// loads the PrintStream
+	void out() {
+		c.local(ClassFile.ALOAD, 0, 1);
+		c.field(ClassFile.GETFIELD, CLASS, OUT, "L" + PRINTSTREAM + ";", 0);
+	}
+
+	// Types
+
+	// JVM type descriptor for a2 type t.
+	static String desc(int t) {
+		switch(t) {
+		case Type.INT:
+			return "J";
+		case Type.FLOAT:
+			return "D";
+		}
+		return "L" + FIELD + ";";
+	}
+
+	// number of stack and local slots taken by a value of type t.
+	static int size(int t) {
+		return (t == Type.FIELD) ? 1 : 2;
+	}
+
+	// line number from a file:line position.
+	static int line(Node n) {
+		String pos = n.pos();
+		try {
+			return Integer.parseInt(pos.substring(pos.lastIndexOf(':') + 1));
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// Run-time support, called by the generated code
+
+	static void checkInputs(Field[] inputs, int n) {
+		if (inputs.length != n) {
+			throw new IllegalArgumentException("program has " + n + " inputs, have " + inputs.length);
+		}
+	}
+
+	static long div(long x, long y, String pos) throws Error {
+		if (y == 0) {
+			throw new Error(pos + ": integer division by zero");
+		}
+		return x / y;
+	}
+
+	static long rem(long x, long y, String pos) throws Error {
+		if (y == 0) {
+			throw new Error(pos + ": integer division by zero");
+		}
+		return x % y;
+	}
+}
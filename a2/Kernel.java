@@ -0,0 +1,343 @@
+package a2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+// Kernel is a fused field expression: a tree of element-wise field operations
+// (BinOps and builtin calls of type field) evaluated in a single pass over the cells,
+// instead of one pass and one temporary field per node.
+//
+// The leaves of the tree are its inputs: field-valued expressions that are not
+// element-wise (variables), and numbers, which are evaluated once per pass.
+// The tree is kept as a postfix program over a stack of per-cell float values.
+// Machine interprets the program a block of cells at a time, so that each instruction
+// is dispatched once per block and the stack stays in cache, Jit compiles it to a
+// plain loop (see Body). Either way, the cells are split in ranges evaluated in
+// parallel on the common fork-join pool, and the result is the only array allocated.
+//
+// Cell values are floats, numbers are rounded to float before use,
+// and every operation is rounded to float, as if each node were evaluated separately.
+final class Kernel {
+
+	static final int GRAIN = 1 << 15; // do not split ranges of fewer cells
+	static final int BLOCK = 256;     // cells per block in interpreted kernels
+
+	// codes for binary functions beyond the BinOp operators ADD...POW
+	static final int ATAN2 = 16;
+	static final int MIN = 17;
+	static final int MAX = 18;
+
+	// instructions
+	static final int FIELD = 0;  // push cell of input field arg
+	static final int NUMBER = 1; // push input number arg
+	static final int UNARY = 2;  // apply builtin arg (a Builtin code) to the top of the stack
+	static final int BINARY = 3; // apply binary op arg (BinOp code, ATAN2, MIN, MAX) to the top two
+
+	final String pos;    // position of the root, for errors
+	Node[] fields;       // field inputs, by index
+	Node[] numbers;      // number inputs, by index
+	int[] op, arg;       // postfix program
+	int depth;           // maximum stack depth
+
+	ArrayList<Node> fieldList = new ArrayList<Node>();
+	ArrayList<Node> numberList = new ArrayList<Node>();
+	ArrayList<Integer> ops = new ArrayList<Integer>();
+
+	// Body evaluates cells lo (inclusive) to hi (exclusive) of kernel k of a compiled program,
+	// storing the results in out. in and num hold the values of the kernel's inputs.
+	// Implemented by the classes generated by Jit.
+	interface Body {
+		void loop(int k, float[][] in, float[] num, float[] out, int lo, int hi);
+	}
+
+	// Constructs the kernel for the field expression rooted at n.
+	Kernel(Node n) {
+		this(n.pos());
+		add(n, 0);
+		done();
+	}
+
+	// Constructs the kernel for x op y, op given by BinOp code, as in x op= y.
+	Kernel(int code, Node x, Node y, String pos) {
+		this(pos);
+		add(x, 0);
+		add(y, 1);
+		emit(BINARY, code, 1);
+		done();
+	}
+
+	private Kernel(String pos) {
+		this.pos = pos;
+	}
+
+	// Reports whether n is an element-wise field operation, to be fused with its operands.
+	static boolean fusable(Node n) {
+		if (n.type() != Type.FIELD) {
+			return false;
+		}
+		return (n instanceof BinOp) || (n instanceof CallExpr);
+	}
+
+	// Adds the postfix code for n, to be evaluated with sp values on the stack.
+	void add(Node n, int sp) {
+		if (n.type() != Type.FIELD) {
+			numberList.add(n);
+			emit(NUMBER, numberList.size() - 1, sp + 1);
+			return;
+		}
+		if (n instanceof BinOp) {
+			BinOp b = (BinOp)(n);
+			add(b.children()[0], sp);
+			add(b.children()[1], sp + 1);
+			emit(BINARY, b.code, sp + 1);
+			return;
+		}
+		if (n instanceof CallExpr) {
+			CallExpr c = (CallExpr)(n);
+			if (c.func.nArgs == 1) {
+				add(c.arg(0), sp);
+				emit(UNARY, c.func.code, sp + 1);
+				return;
+			}
+			add(c.arg(0), sp);
+			add(c.arg(1), sp + 1);
+			emit(BINARY, c.func.fieldCode(), sp + 1);
+			return;
+		}
+		// variable: the same one is loaded only once
+		for (int i=0; i<fieldList.size(); i++) {
+			if (sameVar(fieldList.get(i), n)) {
+				emit(FIELD, i, sp + 1);
+				return;
+			}
+		}
+		fieldList.add(n);
+		emit(FIELD, fieldList.size() - 1, sp + 1);
+	}
+
+	static boolean sameVar(Node a, Node b) {
+		return (a instanceof Ident) && (b instanceof Ident) && ((Ident)(a)).sym == ((Ident)(b)).sym;
+	}
+
+	// appends an instruction, after which the stack holds sp values.
+	void emit(int op, int arg, int sp) {
+		ops.add(op);
+		ops.add(arg);
+		if (sp > depth) {
+			depth = sp;
+		}
+	}
+
+	// freezes the program.
+	void done() {
+		fields = fieldList.toArray(new Node[fieldList.size()]);
+		numbers = numberList.toArray(new Node[numberList.size()]);
+		op = new int[ops.size() / 2];
+		arg = new int[op.length];
+		for (int i=0; i<op.length; i++) {
+			op[i] = ops.get(2*i);
+			arg[i] = ops.get(2*i+1);
+		}
+		fieldList = null;
+		numberList = null;
+		ops = null;
+	}
+
+	// Evaluates the kernel's inputs and then the kernel, interpreted.
+	Field eval(Machine m) throws Error {
+		Field[] in = new Field[fields.length];
+		for (int i=0; i<in.length; i++) {
+			in[i] = fields[i].evalField(m);
+		}
+		float[] num = new float[numbers.length];
+		for (int i=0; i<num.length; i++) {
+			num[i] = (float)(numbers[i].evalFloat(m));
+		}
+		return pass(this, null, 0, in, num, pos);
+	}
+
+	// Runs a kernel over all cells of its field inputs in parallel, returns the result.
+	// Interprets kernel, or runs kernel k of body if kernel is null.
+	// There is at least one field input, which all must have the same size.
+	static Field pass(Kernel kernel, Body body, int k, Field[] in, float[] num, String pos) throws Error {
+		Field f = in[0];
+		float[][] data = new float[in.length][];
+		for (int i=0; i<in.length; i++) {
+			Field g = in[i];
+			if (g.nx != f.nx || g.ny != f.ny || g.nz != f.nz) {
+				throw new Error(pos + ": field size mismatch: " + f.nx + "x" + f.ny + "x" + f.nz + " vs " + g.nx + "x" + g.ny + "x" + g.nz);
+			}
+			data[i] = g.data;
+		}
+		Field r = f.like();
+		new Task(kernel, body, k, data, num, r.data, 0, r.data.length).invoke();
+		return r;
+	}
+
+	// Task evaluates cells lo (inclusive) to hi (exclusive),
+	// splitting the range in halves evaluated in parallel.
+	static final class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Kernel kernel;
+		final Body body;
+		final int k;
+		final float[][] in;
+		final float[] num, out;
+		final int lo, hi;
+
+		Task(Kernel kernel, Body body, int k, float[][] in, float[] num, float[] out, int lo, int hi) {
+			this.kernel = kernel;
+			this.body = body;
+			this.k = k;
+			this.in = in;
+			this.num = num;
+			this.out = out;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Task(kernel, body, k, in, num, out, lo, mid),
+				          new Task(kernel, body, k, in, num, out, mid, hi));
+				return;
+			}
+			if (kernel != null) {
+				kernel.interpret(in, num, out, lo, hi);
+			} else {
+				body.loop(k, in, num, out, lo, hi);
+			}
+		}
+	}
+
+	// interprets the program for cells lo to hi, one block at a time.
+	void interpret(float[][] in, float[] num, float[] out, int lo, int hi) {
+		float[][] stack = new float[depth][BLOCK];
+		for (int b=lo; b<hi; b+=BLOCK) {
+			int n = Math.min(BLOCK, hi - b);
+			int sp = 0;
+			for (int i=0; i<op.length; i++) {
+				switch(op[i]) {
+				case FIELD:
+					System.arraycopy(in[arg[i]], b, stack[sp++], 0, n);
+					break;
+				case NUMBER:
+					Arrays.fill(stack[sp++], 0, n, num[arg[i]]);
+					break;
+				case UNARY:
+					unary(arg[i], stack[sp-1], n);
+					break;
+				case BINARY:
+					sp--;
+					binary(arg[i], stack[sp-1], stack[sp], n);
+					break;
+				}
+			}
+			System.arraycopy(stack[0], 0, out, b, n);
+		}
+	}
+
+	// x[i] = x[i] op y[i] for the first n elements, op given by code.
+	static void binary(int code, float[] x, float[] y, int n) {
+		switch(code) {
+		case BinOp.ADD:
+			for (int i=0; i<n; i++) {
+				x[i] += y[i];
+			}
+			break;
+		case BinOp.SUB:
+			for (int i=0; i<n; i++) {
+				x[i] -= y[i];
+			}
+			break;
+		case BinOp.MUL:
+			for (int i=0; i<n; i++) {
+				x[i] *= y[i];
+			}
+			break;
+		case BinOp.DIV:
+			for (int i=0; i<n; i++) {
+				x[i] /= y[i];
+			}
+			break;
+		default:
+			for (int i=0; i<n; i++) {
+				x[i] = apply(x[i], y[i], code);
+			}
+		}
+	}
+
+	// x[i] = fn(x[i]) for the first n elements, fn given by its Builtin code.
+	static void unary(int fn, float[] x, int n) {
+		switch(fn) {
+		case Builtin.ABS:
+			for (int i=0; i<n; i++) {
+				x[i] = Math.abs(x[i]);
+			}
+			break;
+		case Builtin.SQRT:
+			for (int i=0; i<n; i++) {
+				x[i] = (float)(Math.sqrt(x[i]));
+			}
+			break;
+		default:
+			for (int i=0; i<n; i++) {
+				x[i] = apply(x[i], fn);
+			}
+		}
+	}
+
+	// Binary op on cell values, code is a BinOp code ADD...POW or ATAN2, MIN, MAX.
+	// The code comes last so that compiled kernels can push it after the operands.
+	static float apply(float x, float y, int code) {
+		switch(code) {
+		case BinOp.ADD:
+			return x + y;
+		case BinOp.SUB:
+			return x - y;
+		case BinOp.MUL:
+			return x * y;
+		case BinOp.DIV:
+			return x / y;
+		case BinOp.REM:
+			return x % y;
+		case BinOp.POW:
+			return (float)(Math.pow(x, y));
+		case ATAN2:
+			return (float)(Math.atan2(x, y));
+		case MIN:
+			return Math.min(x, y);
+		case MAX:
+			return Math.max(x, y);
+		}
+		throw new IllegalStateException("unknown op " + code);
+	}
+
+	// Unary builtin fn on a cell value.
+	static float apply(float x, int fn) {
+		switch(fn) {
+		case Builtin.ABS:
+			return Math.abs(x);
+		case Builtin.SQRT:
+			return (float)(Math.sqrt(x));
+		case Builtin.EXP:
+			return (float)(Math.exp(x));
+		case Builtin.LOG:
+			return (float)(Math.log(x));
+		case Builtin.SIN:
+			return (float)(Math.sin(x));
+		case Builtin.COS:
+			return (float)(Math.cos(x));
+		case Builtin.TAN:
+			return (float)(Math.tan(x));
+		case Builtin.FLOOR:
+			return (float)(Math.floor(x));
+		case Builtin.CEIL:
+			return (float)(Math.ceil(x));
+		}
+		throw new IllegalStateException("unknown function " + fn);
+	}
+}
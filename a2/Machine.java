@@ -0,0 +1,59 @@
+package a2;
+
+import java.io.PrintStream;
+
+// Machine runs resolved a2 programs.
+// Compiler.resolve() has typed every node, so each node is evaluated by
+// the method for its type (Node.evalInt, evalFloat, evalField), and values are
+// never boxed. Variables are addressed by (depth, slot) rather than by name.
+public final class Machine {
+
+	Frame frame;       // innermost frame
+	PrintStream out;   // output for print()
+
+	public Machine(PrintStream out) {
+		this.out = out;
+	}
+
+	// Runs a program that has been resolved by Compiler.resolve(),
+	// with its input variables set to inputs.
+	// May be called repeatedly, each run starts with fresh variables.
+	public void run(StmtList prog, Field... inputs) throws Error {
+		if (inputs.length != prog.inputs.length) {
+			throw new IllegalArgumentException("program has " + prog.inputs.length + " inputs, have " + inputs.length);
+		}
+		Frame f = frame;
+		try {
+			frame = new Frame(null, prog.slots);
+			for (int i=0; i<inputs.length; i++) {
+				frame.ref[prog.inputs[i].slot] = inputs[i];
+			}
+			prog.exec(this);
+		} finally {
+			frame = f;
+		}
+	}
+
+	// returns the frame hops levels up from the current one.
+	Frame frame(int hops) {
+		Frame f = frame;
+		for (int i=0; i<hops; i++) {
+			f = f.up;
+		}
+		return f;
+	}
+}
+
+// Frame holds the variables of one scope, by slot.
+// Ints are stored as is, floats by their raw bits, fields by reference.
+final class Frame {
+	final Frame up;    // frame of the enclosing scope
+	final long[] val;  // int and float slots
+	final Field[] ref; // field slots
+
+	Frame(Frame up, int slots) {
+		this.up = up;
+		this.val = new long[slots];
+		this.ref = new Field[slots];
+	}
+}
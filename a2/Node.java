@@ -20,4 +20,21 @@ public interface Node {
 	// (e.g. used by Compiler.simplify());
 	Node[] children();
 
+	// Type of the node's value, set by Compiler.resolve(). Type.VOID for statements.
+	int type();
+
+	// Evaluation, for nodes resolved by Compiler.resolve().
+	// Each expression is evaluated by the method for its type.
+
+	// Executes a statement, or evaluates an expression and discards its value.
+	void exec(Machine m) throws Error;
+
+	// Evaluates an int expression.
+	long evalInt(Machine m) throws Error;
+
+	// Evaluates a float expression, or an int expression converted to float.
+	double evalFloat(Machine m) throws Error;
+
+	// Evaluates a field expression.
+	Field evalField(Machine m) throws Error;
 }
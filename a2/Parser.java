@@ -39,8 +39,10 @@ public final class Parser {
 
 	private Parser(String filename, InputStream in) throws IOException {
 		this.scanner = new Scanner(filename, new InputStreamReader(in));
-		this.token = this.scan();
-		this.next = this.scan();
+		this.token = new Token();
+		this.next = new Token();
+		this.scan(this.token);
+		this.scan(this.next);
 	}
 
 	// Parsing
@@ -270,15 +272,20 @@ public final class Parser {
 
 	// Tokenizing
 
+	// position of the current token.
 	String pos() {
-		return scanner.pos();
+		return scanner.pos(token.line);
 	}
 
 	// Advances by one token.
+	// The token objects are recycled: the old current token is overwritten
+	// by the new next token.
 	void advance() throws Error {
 		try {
+			Token t = this.token;
 			this.token = this.next;
-			this.next = this.scan();
+			this.next = t;
+			this.scan(this.next);
 		} catch(IOException e) {
 			error(e.toString());
 		}
@@ -294,13 +301,12 @@ public final class Parser {
 		advance();
 	}
 
-	// scan next token but skip comments
-	Token scan() throws IOException {
-		Token t = this.scanner.next();
+	// scan next token into t but skip comments
+	void scan(Token t) throws IOException {
+		this.scanner.next(t);
 		while (t.type == Token.COMMENT) {
-			t = this.scanner.next();
+			this.scanner.next(t);
 		}
-		return t;
 	}
 
 	void skipEOL() throws Error {
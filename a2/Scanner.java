@@ -5,55 +5,91 @@ import java.io.IOException;
 import java.lang.Character;
 
 // Scanner tokenizes input text.
+// Input is read in bulk into a window of characters, which is compacted
+// (or grown, for very long tokens) when the current token reaches its end.
+// Identifiers and operators are interned: each is stored once for the
+// lifetime of the scanner, so scanning them allocates nothing but the first occurrence.
+// Numbers, strings and comments are mostly unique, they get a fresh String each
+// and do not grow the table.
+// Tokens are filled in place, see next(Token).
 final class Scanner {
 
+	static final int BUFSIZE = 1 << 16; // initial window size
+
 	Reader in;               // input stream
 	String file;             // file name to document token position
-	int current, next;       // current and next character
-	int startLine, lastLine; //
-	StringBuilder buf;       // builds token value
+	char[] buf;              // window of input characters
+	int start, pos, end;     // start of current token, current character, end of valid input in buf
+	boolean eof;             // in has been exhausted
+	int line, startLine;     // current line, line where the current token started
+	String posString;        // file:line for posLine, cached for pos(line)
+	int posLine;
+
+	String[] table;          // intern table, open addressing
+	int[] hashes;            // hash of each table entry
+	int count;               // number of entries in table
+
+	// values pre-interned, so that operators compare identical to their literals.
+	static final String[] OPERATORS = {"(", ")", "{", "}", ",", ":=", "=", "==", "!=",
+	                                   "+=", "-=", "*=", "/=", "%=", "^=", "++", "--",
+	                                   "+", "-", "*", "/", "%", "^", "&", "&&", "|", "||",
+	                                   "<", "<=", ">", ">="
+	                                  };
 
 	// Constructs a scanner that tokenizes the content delivered by in.
 	// filename is used to report token positions
 	Scanner(String filename, Reader in) throws IOException {
 		this.in = in;
-		this.buf = new StringBuilder();
 		this.file = filename;
-		this.lastLine = 1;
-		this.advance(); // set up current, next character
-		this.advance();
+		this.buf = new char[BUFSIZE];
+		this.line = 1;
+		this.table = new String[256];
+		this.hashes = new int[256];
+		for(String op: OPERATORS) {
+			intern(op);
+		}
 	}
 
-	// next() advances currentToken, nextToken by one token.
-	Token next() throws IOException {
-		startLine = lastLine;
+	// next() scans the next token into t, overwriting its contents.
+	// t.value stays valid after further calls.
+	void next(Token t) throws IOException {
+		startLine = line;
+		start = pos;
 		skipWhitespace();
-
-		Token t = new Token();
-
-		buf.setLength(0);
+		start = pos;
 		t.type = scanToken();
-
-		t.value = buf.toString();
-		if(t.type == Token.EOL) {
+		t.line = startLine;
+		switch(t.type) {
+		case Token.EOL:
 			t.value = "\\n";
+			break;
+		case Token.NUMBER:
+		case Token.STRING:
+		case Token.COMMENT:
+		case Token.INVALID:
+		case Token.EOF:
+			t.value = new String(buf, start, pos - start);
+			break;
+		default:
+			t.value = intern(buf, start, pos - start);
 		}
-
-		return t;
-	}
-
-	String pos() {
-		return file + ":" + line();
 	}
 
-	int line() {
-		return startLine;
+	// returns "file:line", for a token's line.
+	String pos(int line) {
+		if (posString == null || posLine != line) {
+			posLine = line;
+			posString = file + ":" + line;
+		}
+		return posString;
 	}
 
 	// scan the token staring at current position,
-	// append value to buf but not yet to token.value.
+	// leave its characters at buf[start...pos].
 	// returns the token type.
 	int scanToken() throws IOException {
+		int current = peek(0);
+		int next = peek(1);
 		// EOF
 		if (current == -1) {
 			return Token.EOF;
@@ -83,133 +119,144 @@ final class Scanner {
 			consumeQuotedString();
 			return Token.STRING;
 		}
-		// parenthesis
-		if (current == '(') {
-			consumeChar();
+		switch(current) {
+		case '(':
+			pos++;
 			return Token.LPAREN;
-		}
-		if (current == ')') {
-			consumeChar();
+		case ')':
+			pos++;
 			return Token.RPAREN;
-		}
-		if (current == '{') {
-			consumeChar();
+		case '{':
+			pos++;
 			return Token.LBRACE;
-		}
-		if (current == '}') {
-			consumeChar();
+		case '}':
+			pos++;
 			return Token.RBRACE;
-		}
-		// comma
-		if (current == ',') {
-			consumeChar();
+		case ',':
+			pos++;
 			return Token.COMMA;
-		}
-		// declare-assign ':='
-		if (current == ':' && next == '=') {
-			consumeChar();
-			consumeChar();
-			return Token.COLONEQUALS;
-		}
-		// assign: =
-		if (current == '=' && next != '=') {
-			consumeChar();
-			return Token.ASSIGN;
-		}
-		// binop ==
-		if (current == '=' && next == '=') {
-			consumeChar();
-			consumeChar();
-			return Token.BINOP;
-		}
-		// binop !=
-		if (current == '!' && next == '=') {
-			consumeChar();
-			consumeChar();
-			return Token.ASSIGN;
-		}
-		// assign: +=, -=, *=, /=, %=, ^=
-		if (match(current, "+-*/%^") && next == '=') {
-			consumeChar();
-			consumeChar();
+		case ':':
+			// declare-assign ':='
+			if (next == '=') {
+				pos += 2;
+				return Token.COLONEQUALS;
+			}
+			break;
+		case '=':
+			// binop ==, assign =
+			if (next == '=') {
+				pos += 2;
+				return Token.BINOP;
+			}
+			pos++;
 			return Token.ASSIGN;
-		}
-		// postfix: ++, --
-		if (match(current, "+-") && (next == current)) {
-			consumeChar();
-			consumeChar();
-			return Token.POSTFIX;
-		}
-		// bin ops: +, -, *, /, %, ^
-		if (match(current, "+-*/%^") && next != '=') {
-			consumeChar();
-			return Token.BINOP;
-		}
-		// bin ops: &, |, &&, ||
-		if (match(current, "&|")) {
-			// collate &&, ||, ==
-			if(current == next) {
-				consumeChar();
+		case '!':
+			// binop !=
+			if (next == '=') {
+				pos += 2;
+				return Token.BINOP;
 			}
-			consumeChar();
-			return Token.BINOP;
-		}
-		// bin ops: <, >, >=, <=
-		if(match(current, "<>")) {
-			consumeChar();
-			// collate >=, <=
-			if (current == '=') {
-				consumeChar();
+			break;
+		case '+':
+		case '-':
+		case '*':
+		case '/':
+		case '%':
+		case '^':
+			// assign: +=, -=, *=, /=, %=, ^=
+			if (next == '=') {
+				pos += 2;
+				return Token.ASSIGN;
+			}
+			// postfix: ++, --
+			if ((current == '+' || current == '-') && next == current) {
+				pos += 2;
+				return Token.POSTFIX;
 			}
+			// bin ops: +, -, *, /, %, ^
+			pos++;
+			return Token.BINOP;
+		case '&':
+		case '|':
+			// bin ops: &, |, &&, ||
+			pos += (next == current) ? 2 : 1;
+			return Token.BINOP;
+		case '<':
+		case '>':
+			// bin ops: <, >, >=, <=
+			pos += (next == '=') ? 2 : 1;
 			return Token.BINOP;
 		}
 
 		// else: unsupported character
-		consumeChar();
+		pos++;
 		return Token.INVALID;
 	}
 
-	// advances current and next characters by one.
-	void advance() throws IOException {
-		if (this.current == '\n') {
-			this.lastLine++;
+	// returns the character k positions ahead of the current one, or -1 at end of input.
+	int peek(int k) throws IOException {
+		while (pos + k >= end && !eof) {
+			fill();
+		}
+		return pos + k < end ? buf[pos + k] : -1;
+	}
+
+	// reads more input into the window, keeping the current token.
+	void fill() throws IOException {
+		int keep = end - start;
+		if (start > 0) {
+			System.arraycopy(buf, start, buf, 0, keep);
+			pos -= start;
+			end -= start;
+			start = 0;
+		}
+		if (end == buf.length) {
+			char[] b = new char[2 * buf.length];
+			System.arraycopy(buf, 0, b, 0, end);
+			buf = b;
+		}
+		int n = in.read(buf, end, buf.length - end);
+		if (n < 0) {
+			eof = true;
+		} else {
+			end += n;
 		}
-		this.current = this.next;
-		this.next = this.in.read();
 	}
 
 	// after skipWhitespace, the current character is not whitespace.
 	void skipWhitespace() throws IOException {
-		while (isWhitespace(this.current)) {
-			this.advance();
+		while (isWhitespace(peek(0))) {
+			pos++;
 		}
 	}
 
-	// consume entire line
+	// consume entire line, up to and including the line break, or up to the end of input
 	void consumeLine() throws IOException {
-		// take care to properly consume both LF and CRLF endings
-		while(!isEOL(this.current)) {
-			consumeChar();
+		for (int c = peek(0); c != -1 && !isEOL(c); c = peek(0)) {
+			pos++;
+		}
+		if (peek(0) != -1) {
+			consumeEOL();
 		}
-		consumeEOL();
 	}
 
-	// consume an "\n" or "\r\n", append to token.value
+	// consume an "\n", "\r\n" or ";"
 	void consumeEOL() throws IOException {
 		boolean consumed = false;
-		if (this.current == '\r') {
-			this.consumeChar();
+		if (peek(0) == '\r') {
+			pos++;
 			consumed = true;
 		}
-		if (this.current == '\n') {
-			this.consumeChar();
+		if (peek(0) == '\n') {
+			pos++;
+			line++;
 			consumed = true;
 		}
 		if (consumed) {
 			return;
 		}
-		if (this.current == ';') {
-			this.consumeChar();
+		if (peek(0) == ';') {
+			pos++;
 			return;
 		}
 		panic("not at EOL");
@@ -218,105 +265,104 @@ final class Scanner {
 	// consume a number, including exponential notation.
 	// Malformed input is not caught here, but will cause
 	// a parse error.
-	void consumeNumber()throws IOException {
-		this.consume("0123456789.");
-		if (this.current == 'E' || this.current == 'e') {
-			this.consumeChar();
-		} else {
+	void consumeNumber() throws IOException {
+		for (int c = peek(0); isNum(c) || c == '.'; c = peek(0)) {
+			pos++;
+		}
+		int c = peek(0);
+		if (c != 'E' && c != 'e') {
 			return;
 		}
-
-		if (this.current == '-' || this.current == '+') {
-			this.consumeChar();
+		pos++;
+		c = peek(0);
+		if (c == '-' || c == '+') {
+			pos++;
+		}
+		while (isNum(peek(0))) {
+			pos++;
 		}
-		this.consumeDigits();
 	}
 
 	// consumes a quoted string, including the quotes.
 	// the consumed value may be an unterminated string,
 	// which should be caught as a parse error later.
 	void consumeQuotedString() throws IOException {
-		this.consumeChar();
-		while(this.current != '"' && !isEOL(this.current) && this.current != -1) {
-			this.consumeChar();
+		pos++;
+		for (int c = peek(0); c != '"' && !isEOL(c) && c != -1; c = peek(0)) {
+			pos++;
 		}
-		if(this.current == '"') {
-			this.consumeChar();
-		}
-
-	}
-
-	// consume digits 0-9
-	void consumeDigits() throws IOException {
-		while (isNum(this.current)) {
-			this.consumeChar();
+		if (peek(0) == '"') {
+			pos++;
 		}
 	}
 
 	// consume a word of alphanumeric characters
 	void consumeWord() throws IOException {
-		while (isAlphaNum(this.current)) {
-			this.consumeChar();
+		while (isAlphaNum(peek(0))) {
+			pos++;
 		}
 	}
 
-	// consume the current character
-	void consumeChar() throws IOException {
-		if (!isChar(this.current)) {
-			panic("not a char");
+	// Returns the interned string with the characters b[off...off+len].
+	// Allocates only if the value has not been seen before.
+	String intern(char[] b, int off, int len) {
+		int h = 0;
+		for (int i=off; i<off+len; i++) {
+			h = 31 * h + b[i];
+		}
+		int mask = table.length - 1;
+		for (int i = h & mask; ; i = (i + 1) & mask) {
+			String s = table[i];
+			if (s == null) {
+				s = new String(b, off, len);
+				add(s, h, i);
+				return s;
+			}
+			if (hashes[i] == h && equals(s, b, off, len)) {
+				return s;
+			}
 		}
-		this.append((char)(this.current));
-		this.advance();
 	}
 
-	// consume as many characters contained in pattern as possible.
-	// return whether at least one character has been consumed.
-	// E.g.:
-	// 	consume("0123456789.");
-	// consumes as many digits and periods as possible.
-	boolean consume(String pattern) throws IOException {
-		if (!isChar(this.current)) {
-			return false;
-		}
-
-		boolean consumed = false;
-		int i=0;
-		while (i<pattern.length()) {
-			if (pattern.charAt(i) == this.current) {
-				this.consumeChar();
-				consumed = true;
-				i = -1; // becomes 0 next the line
-			}
-			i++;
-		}
-		return consumed;
+	String intern(String s) {
+		return intern(s.toCharArray(), 0, s.length());
 	}
 
-	// returns true if character c occurs in pattern
-	static boolean match(int c, String pattern) {
-		if (c < 0) {
+	static boolean equals(String s, char[] b, int off, int len) {
+		if (s.length() != len) {
 			return false;
 		}
-		char chr = (char)(c);
-		for (int i=0; i<pattern.length(); i++) {
-			if (pattern.charAt(i) == chr) {
-				return true;
+		for (int i=0; i<len; i++) {
+			if (s.charAt(i) != b[off + i]) {
+				return false;
 			}
 		}
-		return false;
+		return true;
 	}
 
-	// append character c to stringbuilder
-	void append(int c) {
-		if (c < 0) {
-			panic("illegal char");
+	// stores s with hash h in free slot i, growing the table when half full.
+	void add(String s, int h, int i) {
+		table[i] = s;
+		hashes[i] = h;
+		count++;
+		if (2 * count < table.length) {
+			return;
+		}
+		String[] oldTable = table;
+		int[] oldHashes = hashes;
+		table = new String[2 * oldTable.length];
+		hashes = new int[table.length];
+		int mask = table.length - 1;
+		for (int k=0; k<oldTable.length; k++) {
+			if (oldTable[k] != null) {
+				int j = oldHashes[k] & mask;
+				while (table[j] != null) {
+					j = (j + 1) & mask;
+				}
+				table[j] = oldTable[k];
+				hashes[j] = oldHashes[k];
+			}
 		}
-		this.buf.append((char)(c));
-	}
-
-	// does c represent a character (not EOL)?
-	static boolean isChar(int c) {
-		return c > 0;
 	}
 
 	// is c alphanumeric?
@@ -326,17 +372,23 @@ final class Scanner {
 
 	// is c a valid letter for an identifier?
 	static boolean isAlpha(int c) {
-		return isChar(c) && (Character.isLetter((char)(c)) || c == '_');
+		if (c < 128) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+		}
+		return Character.isLetter((char)(c));
 	}
 
 	// is c a digit ?
 	static boolean isNum(int c) {
-		return isChar(c) && Character.isDigit((char)(c));
+		if (c < 128) {
+			return c >= '0' && c <= '9';
+		}
+		return Character.isDigit((char)(c));
 	}
 
 	// is c whitespace?
 	static boolean isWhitespace(int c) {
-		return match(c, " \t");
+		return c == ' ' || c == '\t';
 	}
 
 	// is c a linebreak?
@@ -349,5 +401,3 @@ final class Scanner {
 		throw new IllegalStateException(msg);
 	}
 }
-
-
@@ -2,13 +2,36 @@ package a2;
 
 import java.util.HashMap;
 
-/** Scope keeps track of declarations. */
+/** Scope keeps track of declarations.
+    Each scope but the universe corresponds to one run-time Frame,
+    its variables are numbered by slot in order of declaration. */
 public final class Scope {
 	Scope parent;  // parent scope, if any
 	HashMap<String, Symbol> sym;
+	int depth;     // nesting depth, 0 for the top level of a program, -1 for the universe
+	int slots;     // number of variables declared so far, size of the corresponding frame
 
 	Scope() {
 		sym = new HashMap<String, Symbol>();
+		depth = -1;
+	}
+
+	// Constructs a scope nested in parent.
+	Scope(Scope parent) {
+		this();
+		this.parent = parent;
+		this.depth = parent.depth + 1;
+	}
+
+	// Returns the universe scope, holding the builtin functions.
+	static Scope universe() {
+		Scope u = new Scope();
+		for(Builtin b: Builtin.all()) {
+			Symbol s = new Symbol(b.name, Symbol.FUNC, u.depth, -1);
+			s.func = b;
+			u.sym.put(b.name, s);
+		}
+		return u;
 	}
 
 	Symbol find(String name) {
@@ -19,15 +42,45 @@ public final class Scope {
 		return s;
 	}
 
-	void declare(Ident ident) throws Error { // TODO: type
-		Symbol s = sym.get(ident.name);
+	// declares a variable of type t and assigns it the next free slot.
+	Symbol declare(Ident ident, int t) throws Error {
+		return declare(ident.pos(), ident.name, t);
+	}
+
+	Symbol declare(String pos, String name, int t) throws Error {
+		Symbol s = sym.get(name);
 		if (s!=null) {
-			throw new Error(ident.pos() + ": already defined: " + ident.name);
+			throw new Error(pos + ": already defined: " + name);
+		}
+		if (depth < 0) {
+			throw new Error(pos + ": cannot declare in universe: " + name);
 		}
-		sym.put(ident.name, new Symbol()); // TODO: symbol
+		s = new Symbol(name, Symbol.VAR, depth, slots++);
+		s.type = t;
+		sym.put(name, s);
+		return s;
 	}
 }
 
+// Symbol is the meaning of a declared name:
+// a variable living in slot of the frame at depth,
+// or a builtin function.
 final class Symbol {
 
+	static final int VAR = 0;
+	static final int FUNC = 1;
+
+	String name;
+	int kind;     // VAR or FUNC
+	int depth;    // depth of the declaring scope
+	int slot;     // index in the frame, for VAR
+	int type;     // type of the variable, for VAR
+	Builtin func; // implementation, for FUNC
+
+	Symbol(String name, int kind, int depth, int slot) {
+		this.name = name;
+		this.kind = kind;
+		this.depth = depth;
+		this.slot = slot;
+	}
 }
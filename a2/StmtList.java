@@ -5,6 +5,9 @@ import java.util.ArrayList;
 
 public final class StmtList extends AbsNode implements Node {
 
+	int slots;        // frame size, set by Compiler.resolve
+	Symbol[] inputs;  // input variables, set by Compiler.resolve
+
 	public StmtList(String pos, ArrayList<Node> children) {
 		super(pos, children.size());
 		for (int i=0; i<this.child.length; i++) {
@@ -22,4 +25,10 @@ public final class StmtList extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+
+	public void exec(Machine m) throws Error {
+		for(Node c: child) {
+			c.exec(m);
+		}
+	}
 }
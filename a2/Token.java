@@ -5,6 +5,7 @@ final class Token {
 
 	String value;  // string representation of the token
 	int type;      // token type
+	int line;      // line number where the token starts
 
 	// token types
 	static final int INVALID = 0;
@@ -0,0 +1,21 @@
+package a2;
+
+// Type enumerates the types of a2 values.
+final class Type {
+
+	static final int VOID = 0;  // no value, e.g. the result of print()
+	static final int INT = 1;   // 64-bit integer
+	static final int FLOAT = 2; // 64-bit floating point
+	static final int FIELD = 3; // scalar value per cell of a grid, see Field
+
+	// maps type to human readable name
+	static final String[] typeName = {"void", "int", "float", "field"};
+
+	// human readable name for type
+	static String name(int type) {
+		if (type < 0 || type >= typeName.length) {
+			return "UNKNOWN(" + type + ")";
+		}
+		return typeName[type];
+	}
+}
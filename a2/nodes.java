@@ -8,6 +8,7 @@ import java.util.ArrayList;
 abstract class AbsNode {
 	String pos;
 	Node[] child;
+	int type; // type of the value, set by Compiler.resolve()
 
 	AbsNode(String pos, int nChildren) {
 		this.pos = pos;
@@ -21,12 +22,47 @@ abstract class AbsNode {
 	public String pos() {
 		return this.pos;
 	}
+
+	public int type() {
+		return this.type;
+	}
+
+	// Default evaluation, overridden by the nodes that can have the type in question.
+
+	public void exec(Machine m) throws Error {
+		switch(type) {
+		case Type.INT:
+			evalInt(m);
+			break;
+		case Type.FLOAT:
+			evalFloat(m);
+			break;
+		case Type.FIELD:
+			evalField(m);
+			break;
+		}
+	}
+
+	public long evalInt(Machine m) throws Error {
+		throw new IllegalStateException(pos + ": not " + Type.name(Type.INT) + ": " + getClass().getSimpleName());
+	}
+
+	// ints are converted to float
+	public double evalFloat(Machine m) throws Error {
+		return evalInt(m);
+	}
+
+	public Field evalField(Machine m) throws Error {
+		throw new IllegalStateException(pos + ": not " + Type.name(Type.FIELD) + ": " + getClass().getSimpleName());
+	}
 }
 
 
 // Block statement: list of statements separated by EOLs.
 class BlockStmt extends AbsNode implements Node {
 
+	int slots; // frame size, set by Compiler.resolve
+
 	public BlockStmt(String pos, ArrayList<Node> children) {
 		super(pos, children.size());
 		for (int i=0; i<this.child.length; i++) {
@@ -52,15 +88,30 @@ class BlockStmt extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+
+	public void exec(Machine m) throws Error {
+		Frame up = m.frame;
+		m.frame = new Frame(up, slots);
+		try {
+			for(Node c: child) {
+				c.exec(m);
+			}
+		} finally {
+			m.frame = up;
+		}
+	}
 }
 
 
 // Assign statement "lhs op rhs", e.g.: a += b
 class AssignStmt extends AbsNode implements Node {
 	String op;
+	int code;      // BinOp code for "op=", or -1 for plain "="
+	Kernel kernel; // lhs op rhs, for op= on a field, set by Compiler.resolve
 	AssignStmt(String pos, String op) {
 		super(pos, 2);
 		this.op = op;
+		this.code = op.equals("=") ? -1 : BinOp.opcode(op.substring(0, op.length()-1));
 	}
 	public void print(PrintStream out, int indent) {
 		child[0].print(out, indent);
@@ -70,6 +121,28 @@ class AssignStmt extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+	public void exec(Machine m) throws Error {
+		Ident lhs = (Ident)(child[0]);
+		Node rhs = child[1];
+		Frame f = m.frame(lhs.depth);
+		int i = lhs.slot;
+		switch(lhs.type) {
+		case Type.INT: {
+			long y = rhs.evalInt(m);
+			f.val[i] = (code < 0) ? y : BinOp.calc(code, f.val[i], y, pos);
+			return;
+		}
+		case Type.FLOAT: {
+			double y = rhs.evalFloat(m);
+			f.val[i] = Double.doubleToRawLongBits((code < 0) ? y : BinOp.calc(code, Double.longBitsToDouble(f.val[i]), y));
+			return;
+		}
+		case Type.FIELD:
+			f.ref[i] = (code < 0) ? rhs.evalField(m) : kernel.eval(m);
+			return;
+		}
+		throw new IllegalStateException(pos + ": cannot assign " + Type.name(lhs.type));
+	}
 }
 
 class DeclAssign extends AbsNode implements Node, Decl {
@@ -87,6 +160,22 @@ class DeclAssign extends AbsNode implements Node, Decl {
 	public Ident ident() {
 		return (Ident)(child[0]);
 	}
+	public void exec(Machine m) throws Error {
+		Node rhs = child[1];
+		int i = ident().slot;
+		switch(rhs.type()) {
+		case Type.INT:
+			m.frame.val[i] = rhs.evalInt(m);
+			return;
+		case Type.FLOAT:
+			m.frame.val[i] = Double.doubleToRawLongBits(rhs.evalFloat(m));
+			return;
+		case Type.FIELD:
+			m.frame.ref[i] = rhs.evalField(m);
+			return;
+		}
+		throw new IllegalStateException(pos + ": cannot declare " + Type.name(rhs.type()));
+	}
 }
 
 // any declaration
@@ -110,10 +199,22 @@ class PostfixStmt extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+	public void exec(Machine m) throws Error {
+		Ident lhs = (Ident)(child[0]);
+		Frame f = m.frame(lhs.depth);
+		int delta = op.equals("++") ? 1 : -1;
+		if (lhs.type == Type.FLOAT) {
+			f.val[lhs.slot] = Double.doubleToRawLongBits(Double.longBitsToDouble(f.val[lhs.slot]) + delta);
+		} else {
+			f.val[lhs.slot] += delta;
+		}
+	}
 }
 
 // Call expression: f(arg1, arg2, ...)
 class CallExpr extends AbsNode implements Node {
+	Builtin func;  // function being called, set by Compiler.resolve
+	Kernel kernel; // for calls of type field that are not part of an enclosing kernel, set by Compiler.resolve
 	CallExpr(String pos, Node f, Node[] args) {
 		super(pos, 1+args.length);
 		child[0] = f;
@@ -141,17 +242,180 @@ class CallExpr extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+	public void exec(Machine m) throws Error {
+		if (type == Type.VOID) {
+			func.exec(m, this);
+		} else {
+			super.exec(m);
+		}
+	}
+	public long evalInt(Machine m) throws Error {
+		return func.evalInt(m, this);
+	}
+	public double evalFloat(Machine m) throws Error {
+		if (type == Type.INT) {
+			return func.evalInt(m, this);
+		}
+		return func.evalFloat(m, this);
+	}
+	public Field evalField(Machine m) throws Error {
+		return kernel.eval(m);
+	}
 }
 
 // Binary operator" x op y", e.g.: a + b
 class BinOp extends AbsNode implements Node {
 
 	String op;
+	int code;      // op as one of the codes below
+	Kernel kernel; // for operations on fields that are not part of an enclosing kernel, set by Compiler.resolve
+
+	// operator codes
+	static final int ADD = 0;
+	static final int SUB = 1;
+	static final int MUL = 2;
+	static final int DIV = 3;
+	static final int REM = 4;
+	static final int POW = 5;
+	static final int AND = 6;
+	static final int OR = 7;
+	static final int LAND = 8;
+	static final int LOR = 9;
+	static final int EQ = 10;
+	static final int NE = 11;
+	static final int LT = 12;
+	static final int LE = 13;
+	static final int GT = 14;
+	static final int GE = 15;
+
+	// operators, indexed by code
+	static final String[] ops = {"+", "-", "*", "/", "%", "^", "&", "|", "&&", "||",
+	                             "==", "!=", "<", "<=", ">", ">="
+	                            };
 
 	BinOp(String pos, String op) {
 		super(pos, 2);
 		this.op = op;
+		this.code = opcode(op);
+	}
+
+	// returns the code for operator op, -1 if unknown.
+	static int opcode(String op) {
+		for (int i=0; i<ops.length; i++) {
+			if (ops[i].equals(op)) {
+				return i;
+			}
+		}
+		return -1;
 	}
+
+	public long evalInt(Machine m) throws Error {
+		Node x = child[0], y = child[1];
+		switch(code) {
+		case LAND:
+			return (x.evalInt(m) != 0 && y.evalInt(m) != 0) ? 1 : 0;
+		case LOR:
+			return (x.evalInt(m) != 0 || y.evalInt(m) != 0) ? 1 : 0;
+		}
+		if (x.type() != Type.INT || y.type() != Type.INT) {
+			// comparison of floats
+			double a = x.evalFloat(m);
+			return compare(code, a, y.evalFloat(m)) ? 1 : 0;
+		}
+		long a = x.evalInt(m);
+		return calc(code, a, y.evalInt(m), pos);
+	}
+
+	public double evalFloat(Machine m) throws Error {
+		if (type == Type.INT) {
+			return evalInt(m);
+		}
+		double a = child[0].evalFloat(m);
+		return calc(code, a, child[1].evalFloat(m));
+	}
+
+	public Field evalField(Machine m) throws Error {
+		return kernel.eval(m);
+	}
+
+	// run-time evaluation of int op int: arithmetic, bitwise or comparison.
+	static long calc(int code, long x, long y, String pos) throws Error {
+		switch(code) {
+		case ADD:
+			return x + y;
+		case SUB:
+			return x - y;
+		case MUL:
+			return x * y;
+		case DIV:
+		case REM:
+			if (y == 0) {
+				throw new Error(pos + ": integer division by zero");
+			}
+			return (code == DIV) ? x / y : x % y;
+		case AND:
+			return x & y;
+		case OR:
+			return x | y;
+		}
+		return compare(code, x, y) ? 1 : 0;
+	}
+
+	// run-time evaluation of float op float: arithmetic.
+	static double calc(int code, double x, double y) {
+		switch(code) {
+		case ADD:
+			return x + y;
+		case SUB:
+			return x - y;
+		case MUL:
+			return x * y;
+		case DIV:
+			return x / y;
+		case REM:
+			return x % y;
+		case POW:
+			return Math.pow(x, y);
+		}
+		throw new IllegalStateException("not arithmetic: " + ops[code]);
+	}
+
+	static boolean compare(int code, long x, long y) {
+		switch(code) {
+		case EQ:
+			return x == y;
+		case NE:
+			return x != y;
+		case LT:
+			return x < y;
+		case LE:
+			return x <= y;
+		case GT:
+			return x > y;
+		case GE:
+			return x >= y;
+		}
+		throw new IllegalStateException("not a comparison: " + ops[code]);
+	}
+
+	static boolean compare(int code, double x, double y) {
+		switch(code) {
+		case EQ:
+			return x == y;
+		case NE:
+			return x != y;
+		case LT:
+			return x < y;
+		case LE:
+			return x <= y;
+		case GT:
+			return x > y;
+		case GE:
+			return x >= y;
+		}
+		throw new IllegalStateException("not a comparison: " + ops[code]);
+	}
+
 	public void print(PrintStream out, int indent) {
 		Parser.printIndent(out, indent);
 		out.print("(");
@@ -227,6 +491,8 @@ class BinOp extends AbsNode implements Node {
 class Ident extends AbsNode implements Node {
 	String name;
 	Symbol sym; // points to the meaning of the identifier once its name has been resolved by Scope.resolve().
+	int depth;  // for variables: number of frames up from the current one, set by Compiler.resolve()
+	int slot;   // for variables: index in that frame
 	Ident(String pos, String name) {
 		super(pos, 0);
 		this.name = name;
@@ -238,6 +504,16 @@ class Ident extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+	public long evalInt(Machine m) {
+		return m.frame(depth).val[slot];
+	}
+	public double evalFloat(Machine m) {
+		long v = m.frame(depth).val[slot];
+		return (type == Type.INT) ? v : Double.longBitsToDouble(v);
+	}
+	public Field evalField(Machine m) {
+		return m.frame(depth).ref[slot];
+	}
 }
 
 // Integer literal, e.g.: "123"
@@ -257,6 +533,9 @@ class IntLit extends AbsNode implements Node, NumLit {
 	public double floatValue() {
 		return val;
 	}
+	public long evalInt(Machine m) {
+		return val;
+	}
 }
 
 // Float literal, e.g.: "123e45"
@@ -276,6 +555,9 @@ class FloatLit extends AbsNode implements  Node, NumLit {
 	public double floatValue() {
 		return val;
 	}
+	public double evalFloat(Machine m) {
+		return val;
+	}
 }
 
 interface NumLit {
@@ -293,4 +575,6 @@ class Nop extends AbsNode implements Node {
 	public Node simplify() {
 		return this;
 	}
+	public void exec(Machine m) {
+	}
 }
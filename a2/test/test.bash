@@ -1,3 +1,4 @@
+#!/bin/bash
 fail=0;
 failed=0;
 passed=0;
@@ -43,6 +44,48 @@ for f in bad/*.a2; do
 done;
 
 
+# these files should run, with the same result from the interpreter and the jit:
+# x.a2 is run with input x.ovf if present, its output must equal x.out,
+# and its error message must contain the text in x.err if present.
+# big.a2 is generated, large enough to be compiled into several methods.
+tmp=$(mktemp -d);
+{
+	echo "s := 0";
+	for i in $(seq 1 2000); do
+		echo "v$i := $i";
+		echo "s += v$i";
+	done;
+	echo "print(s, v1 + v2000)";
+} > $tmp/big.a2;
+echo "2001000 2001" > $tmp/big.out;
+for f in run/*.a2 $tmp/big.a2; do
+	base=${f%.a2};
+	input="";
+	if [ -e $base.ovf ]; then
+		input=$base.ovf;
+	fi;
+	for mode in run jit; do
+		echo -n ../a2 $mode $f $input;
+		../a2 $mode $f $input > $tmp/out 2> $tmp/err;
+		if ! diff -q $base.out $tmp/out > /dev/null; then
+			fail=1;
+			(( failed++ ));
+			echo " FAIL: wrong output";
+		elif [ -e $base.err ] && ! grep -q -F -f $base.err $tmp/err; then
+			fail=1;
+			(( failed++ ));
+			echo " FAIL: wrong error";
+		elif [ ! -e $base.err ] && [ -s $tmp/err ]; then
+			fail=1;
+			(( failed++ ));
+			echo " FAIL: unexpected error";
+		else
+			(( passed++ ));
+			echo " OK";
+		fi;
+	done;
+done;
+rm -rf $tmp;
 
 echo $failed failed, $passed passed
 exit $fail;
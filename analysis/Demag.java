@@ -0,0 +1,414 @@
+package analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+import ovf2.HeapStorage;
+import ovf2.OVF2;
+
+// Demag computes the demagnetizing field of a magnetization on a finite
+// (non-periodic) grid of cuboid cells: H = -Msat N * m,
+// a convolution with the demag tensor N, done by zero-padded FFT.
+//
+// N is the cell-averaged tensor of Newell, Williams and Dunlop (1993) for nearby cells.
+// Newell's formulas lose precision with distance, so beyond NEAR cell sizes
+// the point-dipole tensor is used instead, averaged over 2x2x2 points
+// that reproduce the second moments of the cell-to-cell distance distribution
+// (relative error of order (cell size / distance)^4).
+//
+// The Fourier transform of each tensor component is real, since the components
+// are even or odd along each axis, so the kernel is stored as 6 real float arrays.
+// Kernels are cached per geometry (grid and cell size, softly held),
+// so a time series only pays for kernel setup once.
+public final class Demag {
+
+	static final double NEAR = 16;   // use Newell's formulas within this many (largest) cell sizes
+	static final double MU0 = 4e-7 * Math.PI;
+	static final int GRAIN = 1 << 16; // do not split tasks over fewer spectrum values
+
+	static final int XX = 0, YY = 1, ZZ = 2, XY = 3, XZ = 4, YZ = 5;
+
+	private static final ConcurrentHashMap<String, SoftReference<Demag>> kernels =
+	    new ConcurrentHashMap<String, SoftReference<Demag>>();
+
+	final int sizeX, sizeY, sizeZ;
+	final double cellX, cellY, cellZ;
+	final FFT3 fft;        // on the padded grid
+	final float[][] kern;  // XX...YZ: real Fourier transform of the tensor components
+
+	// convolution buffers, re-used between calls (guarded by this)
+	double[][] spectra;
+
+	// Returns the (cached) demag kernel for the geometry of m.
+	// Cell sizes are m's step sizes, in mesh units (normally meters).
+	public static Demag get(OVF2 m) {
+		return get(m.sizeX(), m.sizeY(), m.sizeZ(), m.xStepSize, m.yStepSize, m.zStepSize);
+	}
+
+	// Returns the (cached) demag kernel for a grid of sx x sy x sz cells of size cx x cy x cz.
+	public static Demag get(int sx, int sy, int sz, double cx, double cy, double cz) {
+		if (!(cx > 0 && cy > 0 && cz > 0)) {
+			throw new IllegalArgumentException("demag: cell size " + cx + "x" + cy + "x" + cz);
+		}
+		String key = sx + "x" + sy + "x" + sz + ":" + cx + "x" + cy + "x" + cz;
+		SoftReference<Demag> ref = kernels.get(key);
+		Demag d = ref == null ? null : ref.get();
+		if (d == null) {
+			d = new Demag(sx, sy, sz, cx, cy, cz);
+			kernels.put(key, new SoftReference<Demag>(d));
+		}
+		return d;
+	}
+
+	// Returns the demag field of magnetization m (3 components, normally unit vectors)
+	// with saturation magnetization msat, in the units of msat (normally A/m).
+	public static OVF2 field(OVF2 m, double msat) {
+		return get(m).convolve(m, msat);
+	}
+
+	// Returns the demag energy (J if lengths are in m and msat in A/m)
+	// of magnetization m with demag field h: -mu0/2 msat sum(m.h) dV.
+	public static double energy(OVF2 m, OVF2 h, double msat) {
+		double sum = 0;
+		float[] a = new float[m.sizeX()], b = new float[m.sizeX()];
+		for(int c=0; c<3; c++) {
+			for(int i=0; i<m.len(); i+=a.length) {
+				m.data.get(c, i, a, 0, a.length);
+				h.data.get(c, i, b, 0, b.length);
+				for(int x=0; x<a.length; x++) {
+					sum += a[x] * b[x];
+				}
+			}
+		}
+		double vol = (double)(m.xStepSize) * m.yStepSize * m.zStepSize;
+		return -0.5 * MU0 * msat * sum * vol;
+	}
+
+	private Demag(int sx, int sy, int sz, double cx, double cy, double cz) {
+		this.sizeX = sx;
+		this.sizeY = sy;
+		this.sizeZ = sz;
+		this.cellX = cx;
+		this.cellY = cy;
+		this.cellZ = cz;
+		this.fft = FFT3.plan(pad(sx), pad(sy), pad(sz));
+		this.kern = new float[6][];
+		initKernel();
+	}
+
+	// padded size for a convolution over n cells: at least 2n-1,
+	// rounded up to a length with prime factors 2, 3 and 5 only.
+	static int pad(int n) {
+		if (n == 1) {
+			return 1;
+		}
+		for (int m=2*n-1; ; m++) {
+			int r = m;
+			for (int p=2; p<=5; p++) {
+				while (r % p == 0) {
+					r /= p;
+				}
+			}
+			if (r == 1) {
+				return m;
+			}
+		}
+	}
+
+	// Returns the demag field of m, see field().
+	// Calls are serialized per kernel, each convolution runs in parallel.
+	public synchronized OVF2 convolve(OVF2 m, double msat) {
+		if (m.nComp() != 3 || m.sizeX() != sizeX || m.sizeY() != sizeY || m.sizeZ() != sizeZ) {
+			throw new IllegalArgumentException("demag: need 3 components of " + sizeX + "x" + sizeY + "x" + sizeZ +
+			                                   " cells, have " + m.nComp() + " of " + m.sizeX() + "x" + m.sizeY() + "x" + m.sizeZ());
+		}
+		if (spectra == null) {
+			spectra = new double[3][fft.spectrumLen()];
+		}
+		OVF2 h = m.like(3);
+		h.title = "H_demag";
+		h.valueLabels = "H_demag_x H_demag_y H_demag_z";
+		h.valueUnits = "A/m A/m A/m";
+		PaddedStorage in = padded(m);
+		for(int c=0; c<3; c++) {
+			fft.forward(in, c, spectra[c]);
+		}
+		new Multiply(this, -msat, 0, fft.spectrumLen() / 2).invoke();
+		PaddedStorage out = padded(h);
+		for(int c=0; c<3; c++) {
+			fft.inverse(spectra[c], out, c);
+		}
+		return h;
+	}
+
+	PaddedStorage padded(OVF2 f) {
+		return new PaddedStorage(f.data, sizeX, sizeY, sizeZ, fft.sizeX, fft.sizeY, fft.sizeZ);
+	}
+
+	// Multiply replaces spectra by scale * kernel * spectra for complex indices lo to hi.
+	static final class Multiply extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Demag d;
+		final double scale;
+		final int lo, hi;
+
+		Multiply(Demag d, double scale, int lo, int hi) {
+			this.d = d;
+			this.scale = scale;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Multiply(d, scale, lo, mid), new Multiply(d, scale, mid, hi));
+				return;
+			}
+			float[] kxx = d.kern[XX], kyy = d.kern[YY], kzz = d.kern[ZZ];
+			float[] kxy = d.kern[XY], kxz = d.kern[XZ], kyz = d.kern[YZ];
+			double[] sx = d.spectra[0], sy = d.spectra[1], sz = d.spectra[2];
+			for(int i=lo; i<hi; i++) {
+				int r = 2 * i, im = r + 1;
+				double xx = kxx[i] * scale, yy = kyy[i] * scale, zz = kzz[i] * scale;
+				double xy = kxy[i] * scale, xz = kxz[i] * scale, yz = kyz[i] * scale;
+				double mxr = sx[r], mxi = sx[im];
+				double myr = sy[r], myi = sy[im];
+				double mzr = sz[r], mzi = sz[im];
+				sx[r] = xx * mxr + xy * myr + xz * mzr;
+				sx[im] = xx * mxi + xy * myi + xz * mzi;
+				sy[r] = xy * mxr + yy * myr + yz * mzr;
+				sy[im] = xy * mxi + yy * myi + yz * mzi;
+				sz[r] = xz * mxr + yz * myr + zz * mzr;
+				sz[im] = xz * mxi + yz * myi + zz * mzi;
+			}
+		}
+	}
+
+	// Computes the tensor on the padded grid, component by component,
+	// and keeps the real part of its Fourier transform.
+	void initKernel() {
+		int px = fft.sizeX, py = fft.sizeY, pz = fft.sizeZ;
+		HeapStorage n = new HeapStorage(1, px * py * pz);
+		double[] spectrum = fft.newSpectrum();
+		for(int comp=0; comp<6; comp++) {
+			new KernelTask(this, comp, n.array(0), 0, sizeY * sizeZ).invoke();
+			fft.forward(n, 0, spectrum);
+			float[] k = new float[spectrum.length / 2];
+			for(int i=0; i<k.length; i++) {
+				k[i] = (float)(spectrum[2*i]);
+			}
+			kern[comp] = k;
+		}
+	}
+
+	// KernelTask fills tensor component comp for offsets dx >= 0 and (dy, dz) >= 0
+	// in rows dz*sizeY+dy = r0 (inclusive) to r1 (exclusive), and their mirror images
+	// -dx, -dy, -dz at the wrapped-around positions of the padded grid.
+	// Other cells of dst must be zero (they stay zero).
+	static final class KernelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Demag d;
+		final int comp;
+		final float[] dst;
+		final int r0, r1;
+
+		KernelTask(Demag d, int comp, float[] dst, int r0, int r1) {
+			this.d = d;
+			this.comp = comp;
+			this.dst = dst;
+			this.r0 = r0;
+			this.r1 = r1;
+		}
+
+		protected void compute() {
+			if (r1 - r0 > 1) {
+				int mid = (r0 + r1) >>> 1;
+				invokeAll(new KernelTask(d, comp, dst, r0, mid), new KernelTask(d, comp, dst, mid, r1));
+				return;
+			}
+			int px = d.fft.sizeX, py = d.fft.sizeY, pz = d.fft.sizeZ;
+			// sign of the mirror image along x, y, z
+			boolean oddX = comp == XY || comp == XZ;
+			boolean oddY = comp == XY || comp == YZ;
+			boolean oddZ = comp == XZ || comp == YZ;
+			int j = r0 % d.sizeY, k = r0 / d.sizeY;
+			for(int i=0; i<d.sizeX; i++) {
+				float v = (float)(d.tensor(comp, i * d.cellX, j * d.cellY, k * d.cellZ));
+				for(int mz=0; mz<(k == 0 ? 1 : 2); mz++) {
+					for(int my=0; my<(j == 0 ? 1 : 2); my++) {
+						for(int mx=0; mx<(i == 0 ? 1 : 2); mx++) {
+							int x = mx == 0 ? i : px - i;
+							int y = my == 0 ? j : py - j;
+							int z = mz == 0 ? k : pz - k;
+							boolean neg = (oddX && mx == 1) ^ (oddY && my == 1) ^ (oddZ && mz == 1);
+							dst[(z * py + y) * px + x] = neg ? -v : v;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// tensor component comp for source and destination cells displaced by (x, y, z).
+	double tensor(int comp, double x, double y, double z) {
+		double dmax = Math.max(cellX, Math.max(cellY, cellZ));
+		if (x*x + y*y + z*z > NEAR * NEAR * dmax * dmax) {
+			return dipole(comp, x, y, z);
+		}
+		// dimensionless coordinates for accuracy
+		double cx = cellX / dmax, cy = cellY / dmax, cz = cellZ / dmax;
+		x /= dmax;
+		y /= dmax;
+		z /= dmax;
+		switch(comp) {
+		case XX:
+			return newell(false, x, y, z, cx, cy, cz);
+		case YY:
+			return newell(false, y, x, z, cy, cx, cz);
+		case ZZ:
+			return newell(false, z, y, x, cz, cy, cx);
+		case XY:
+			return newell(true, x, y, z, cx, cy, cz);
+		case XZ:
+			return newell(true, x, z, y, cx, cz, cy);
+		default: // YZ
+			return newell(true, y, z, x, cy, cz, cx);
+		}
+	}
+
+	// Newell's N_xx (offdiag = false) or N_xy (offdiag = true):
+	// the second difference along x, y and z (weights -1, 2, -1) of f or g,
+	// divided by 4 pi times the cell volume.
+	static double newell(boolean offdiag, double x, double y, double z, double dx, double dy, double dz) {
+		double sum = 0;
+		for(int a=-1; a<=1; a++) {
+			double wa = a == 0 ? 2 : -1;
+			for(int b=-1; b<=1; b++) {
+				double wb = b == 0 ? 2 : -1;
+				for(int c=-1; c<=1; c++) {
+					double wc = c == 0 ? 2 : -1;
+					double X = x + a * dx, Y = y + b * dy, Z = z + c * dz;
+					sum += wa * wb * wc * (offdiag ? g(X, Y, Z) : f(X, Y, Z));
+				}
+			}
+		}
+		return sum / (4 * Math.PI * dx * dy * dz);
+	}
+
+	// Newell's f, for the diagonal components.
+	static double f(double x, double y, double z) {
+		x = Math.abs(x);
+		y = Math.abs(y);
+		z = Math.abs(z);
+		double x2 = x*x, y2 = y*y, z2 = z*z;
+		double r = Math.sqrt(x2 + y2 + z2);
+		double s = 0;
+		s += 0.5 * y * (z2 - x2) * asinh(y, Math.sqrt(x2 + z2));
+		s += 0.5 * z * (y2 - x2) * asinh(z, Math.sqrt(x2 + y2));
+		s -= x * y * z * atan(y * z, x * r);
+		s += (2*x2 - y2 - z2) * r / 6;
+		return s;
+	}
+
+	// Newell's g, for the off-diagonal components.
+	static double g(double x, double y, double z) {
+		double sign = Math.signum(x) * Math.signum(y);
+		if (sign == 0) {
+			return 0;
+		}
+		x = Math.abs(x);
+		y = Math.abs(y);
+		z = Math.abs(z);
+		double x2 = x*x, y2 = y*y, z2 = z*z;
+		double r = Math.sqrt(x2 + y2 + z2);
+		double s = 0;
+		s += x * y * z * asinh(z, Math.sqrt(x2 + y2));
+		s += y * (3*z2 - y2) * asinh(x, Math.sqrt(y2 + z2)) / 6;
+		s += x * (3*z2 - x2) * asinh(y, Math.sqrt(x2 + z2)) / 6;
+		s -= z * z2 * atan(x * y, z * r) / 6;
+		s -= 0.5 * z * y2 * atan(x * z, y * r);
+		s -= 0.5 * z * x2 * atan(y * z, x * r);
+		s -= x * y * r / 3;
+		return sign * s;
+	}
+
+	// asinh(a/b) for a, b >= 0, 0 if b == 0 (the term's prefactor vanishes there).
+	static double asinh(double a, double b) {
+		if (b == 0) {
+			return 0;
+		}
+		return Math.log((a + Math.sqrt(a*a + b*b)) / b);
+	}
+
+	// atan(a/b) for a, b >= 0, 0 if b == 0 (the term's prefactor vanishes there).
+	static double atan(double a, double b) {
+		if (b == 0) {
+			return 0;
+		}
+		return Math.atan(a / b);
+	}
+
+	// point-dipole tensor -V/4pi (3 r_i r_j - delta_ij r^2) / r^5, averaged over
+	// displacements +-cell/sqrt(6) along each axis.
+	double dipole(int comp, double x, double y, double z) {
+		double ex = cellX / Math.sqrt(6), ey = cellY / Math.sqrt(6), ez = cellZ / Math.sqrt(6);
+		double sum = 0;
+		for(int a=-1; a<=1; a+=2) {
+			for(int b=-1; b<=1; b+=2) {
+				for(int c=-1; c<=1; c+=2) {
+					double rx = x + a * ex, ry = y + b * ey, rz = z + c * ez;
+					double r2 = rx*rx + ry*ry + rz*rz;
+					double r5 = r2 * r2 * Math.sqrt(r2);
+					double t;
+					switch(comp) {
+					case XX:
+						t = 3 * rx * rx - r2;
+						break;
+					case YY:
+						t = 3 * ry * ry - r2;
+						break;
+					case ZZ:
+						t = 3 * rz * rz - r2;
+						break;
+					case XY:
+						t = 3 * rx * ry;
+						break;
+					case XZ:
+						t = 3 * rx * rz;
+						break;
+					default:
+						t = 3 * ry * rz;
+					}
+					sum += t / r5;
+				}
+			}
+		}
+		return -cellX * cellY * cellZ * sum / (8 * 4 * Math.PI);
+	}
+
+	// main for testing: print time, demag energy and average demag field
+	// of the magnetization files passed as args, with Msat given as first arg.
+	public static void main(String[] args) throws IOException {
+		double msat = Double.parseDouble(args[0]);
+		for(int a=1; a<args.length; a++) {
+			OVF2 m = OVF2.read(new File(args[a]));
+			OVF2 h = field(m, msat);
+			StringBuilder line = new StringBuilder();
+			line.append(m.time).append('\t').append(energy(m, h, msat));
+			for(int c=0; c<3; c++) {
+				double sum = 0;
+				for(int i=0; i<h.len(); i++) {
+					sum += h.data.get(c, i);
+				}
+				line.append('\t').append(sum / h.len());
+			}
+			System.out.println(line);
+		}
+	}
+}
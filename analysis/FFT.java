@@ -0,0 +1,284 @@
+package analysis;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// FFT is a plan for complex, one-dimensional discrete Fourier transforms of length n.
+// Any n is supported: lengths with only small prime factors use a mixed-radix
+// Cooley-Tukey algorithm, other lengths use Bluestein's algorithm
+// (a convolution of power-of-two length).
+// Plans and their twiddle tables are cached, use FFT.plan(n).
+// A plan is immutable and can be shared between threads,
+// each thread passes its own work array (see newWork()).
+//
+// Complex numbers are stored interleaved in double arrays: re, im, re, im, ...
+// The forward transform computes X[k] = sum_j x[j] exp(-2 pi i j k / n),
+// the inverse transform uses exp(+2 pi i j k / n) and is not normalized.
+public final class FFT {
+
+	static final int MAX_RADIX = 64; // larger prime factors use Bluestein's algorithm
+
+	private static final ConcurrentHashMap<Integer, FFT> plans = new ConcurrentHashMap<Integer, FFT>();
+
+	final int n;
+	final int[] factors; // radices, in order of recursion (mixed-radix only)
+	final double[] w;    // w[2j], w[2j+1]: exp(-2 pi i j / n) (mixed-radix only)
+
+	// Bluestein's algorithm (null when mixed-radix is used)
+	final FFT conv;      // power-of-two plan for the convolution
+	final double[] chirp;  // exp(-pi i j^2 / n), j < n
+	final double[] kernel; // forward transform of the conjugate chirp, length conv.n
+
+	// Returns the (cached) plan for length n.
+	public static FFT plan(int n) {
+		FFT p = plans.get(n);
+		if (p == null) {
+			p = new FFT(n);
+			plans.putIfAbsent(n, p);
+		}
+		return p;
+	}
+
+	private FFT(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("FFT length " + n);
+		}
+		this.n = n;
+		int[] f = factor(n);
+		if (f == null) {
+			this.factors = null;
+			this.w = null;
+			int m = Integer.highestOneBit(2 * n - 1);
+			if (m < 2 * n - 1) {
+				m *= 2;
+			}
+			this.conv = plan(m);
+			this.chirp = new double[2 * n];
+			for(int j=0; j<n; j++) {
+				// j^2 mod 2n keeps the argument small, for accuracy
+				long j2 = ((long)(j) * j) % (2L * n);
+				double phi = Math.PI * j2 / n;
+				chirp[2*j] = Math.cos(phi);
+				chirp[2*j+1] = -Math.sin(phi);
+			}
+			this.kernel = new double[2 * m];
+			for(int j=0; j<n; j++) {
+				kernel[2*j] = chirp[2*j];
+				kernel[2*j+1] = -chirp[2*j+1];
+				if (j > 0) {
+					kernel[2*(m-j)] = chirp[2*j];
+					kernel[2*(m-j)+1] = -chirp[2*j+1];
+				}
+			}
+			conv.transform(kernel, conv.newWork(), false);
+		} else {
+			this.factors = f;
+			this.w = new double[2 * n];
+			for(int j=0; j<n; j++) {
+				double phi = -2 * Math.PI * j / n;
+				w[2*j] = Math.cos(phi);
+				w[2*j+1] = Math.sin(phi);
+			}
+			this.conv = null;
+			this.chirp = null;
+			this.kernel = null;
+		}
+	}
+
+	// factors n into radices 4, 2, 3, 5, ..., or returns null
+	// if n has a prime factor larger than MAX_RADIX.
+	static int[] factor(int n) {
+		int[] f = new int[32];
+		int nf = 0;
+		while (n % 4 == 0) {
+			f[nf++] = 4;
+			n /= 4;
+		}
+		for (int p=2; n>1; p++) {
+			while (n % p == 0) {
+				if (p > MAX_RADIX) {
+					return null;
+				}
+				f[nf++] = p;
+				n /= p;
+			}
+		}
+		int[] r = new int[nf];
+		System.arraycopy(f, 0, r, 0, nf);
+		return r;
+	}
+
+	// transform length
+	public int len() {
+		return n;
+	}
+
+	// Allocates a work array suitable for transform().
+	public double[] newWork() {
+		return new double[workLen()];
+	}
+
+	// a copy of the input, followed by scratch for one radix-p butterfly (mixed-radix),
+	// or the convolution and its copy (Bluestein: conv has radices 2 and 4 only, no scratch).
+	int workLen() {
+		if (conv != null) {
+			return 4 * conv.n;
+		}
+		return 2 * n + 2 * MAX_RADIX;
+	}
+
+	// Transforms the n complex numbers in x[0...2n] in place.
+	// work must come from newWork() and not be used concurrently.
+	public void transform(double[] x, double[] work, boolean inverse) {
+		if (inverse) {
+			conj(x, n);
+		}
+		run(x, work, 0);
+		if (inverse) {
+			conj(x, n);
+		}
+	}
+
+	// forward transform of x, using work[wo...].
+	void run(double[] x, double[] work, int wo) {
+		if (conv != null) {
+			bluestein(x, work, wo);
+		} else if (n > 1) {
+			System.arraycopy(x, 0, work, wo, 2 * n);
+			dit(work, wo / 2, 1, x, 0, n, 0, work, wo + 2 * n);
+		}
+	}
+
+	static void conj(double[] x, int n) {
+		for(int j=0; j<n; j++) {
+			x[2*j+1] = -x[2*j+1];
+		}
+	}
+
+	// Decimation-in-time Cooley-Tukey, out of place:
+	// out[outOff...] = DFT of the m values in[inOff + j*stride], using factors[level...].
+	// Generic butterflies use t[to...to+2*MAX_RADIX] as scratch.
+	void dit(double[] in, int inOff, int stride, double[] out, int outOff, int m, int level, double[] t, int to) {
+		if (m == 1) {
+			out[2*outOff] = in[2*inOff];
+			out[2*outOff+1] = in[2*inOff+1];
+			return;
+		}
+		int p = factors[level];
+		int s = m / p;
+		// sub-transforms of the p decimated sequences, stored contiguously
+		for(int q=0; q<p; q++) {
+			dit(in, inOff + q * stride, stride * p, out, outOff + q * s, s, level + 1, t, to);
+		}
+		int tw = n / m; // twiddle index step for length m
+		if (p == 2) {
+			butterfly2(out, outOff, s, tw);
+		} else if (p == 4) {
+			butterfly4(out, outOff, s, tw);
+		} else {
+			butterfly(out, outOff, s, p, tw, t, to);
+		}
+	}
+
+	void butterfly2(double[] x, int off, int s, int tw) {
+		for(int k=0; k<s; k++) {
+			int a = 2 * (off + k);
+			int b = 2 * (off + k + s);
+			double wr = w[2 * k * tw], wi = w[2 * k * tw + 1];
+			double br = x[b] * wr - x[b+1] * wi;
+			double bi = x[b] * wi + x[b+1] * wr;
+			x[b] = x[a] - br;
+			x[b+1] = x[a+1] - bi;
+			x[a] += br;
+			x[a+1] += bi;
+		}
+	}
+
+	void butterfly4(double[] x, int off, int s, int tw) {
+		for(int k=0; k<s; k++) {
+			int i0 = 2 * (off + k);
+			int i1 = i0 + 2 * s;
+			int i2 = i1 + 2 * s;
+			int i3 = i2 + 2 * s;
+			int t1 = 2 * k * tw, t2 = 2 * t1, t3 = 3 * t1;
+			double ar = x[i0], ai = x[i0+1];
+			double br = x[i1] * w[t1] - x[i1+1] * w[t1+1];
+			double bi = x[i1] * w[t1+1] + x[i1+1] * w[t1];
+			double cr = x[i2] * w[t2] - x[i2+1] * w[t2+1];
+			double ci = x[i2] * w[t2+1] + x[i2+1] * w[t2];
+			double dr = x[i3] * w[t3] - x[i3+1] * w[t3+1];
+			double di = x[i3] * w[t3+1] + x[i3+1] * w[t3];
+			double s0r = ar + cr, s0i = ai + ci;
+			double s1r = ar - cr, s1i = ai - ci;
+			double s2r = br + dr, s2i = bi + di;
+			double s3r = br - dr, s3i = bi - di;
+			x[i0] = s0r + s2r;
+			x[i0+1] = s0i + s2i;
+			x[i2] = s0r - s2r;
+			x[i2+1] = s0i - s2i;
+			// multiply s3 by -i
+			x[i1] = s1r + s3i;
+			x[i1+1] = s1i - s3r;
+			x[i3] = s1r - s3i;
+			x[i3+1] = s1i + s3r;
+		}
+	}
+
+	// generic radix-p butterfly, O(p^2) per output group, using t[to...to+2p] as scratch.
+	void butterfly(double[] x, int off, int s, int p, int tw, double[] t, int to) {
+		int wp = n / p; // twiddle index step for the length-p DFT
+		for(int k=0; k<s; k++) {
+			for(int q=0; q<p; q++) {
+				int i = 2 * (off + k + q * s);
+				int ti = 2 * ((q * k * tw) % n);
+				t[to+2*q] = x[i] * w[ti] - x[i+1] * w[ti+1];
+				t[to+2*q+1] = x[i] * w[ti+1] + x[i+1] * w[ti];
+			}
+			for(int r=0; r<p; r++) {
+				double re = 0, im = 0;
+				for(int q=0; q<p; q++) {
+					int ti = 2 * (((q * r) % p) * wp);
+					re += t[to+2*q] * w[ti] - t[to+2*q+1] * w[ti+1];
+					im += t[to+2*q] * w[ti+1] + t[to+2*q+1] * w[ti];
+				}
+				int i = 2 * (off + k + r * s);
+				x[i] = re;
+				x[i+1] = im;
+			}
+		}
+	}
+
+	// Bluestein's algorithm: the DFT as a convolution with a chirp.
+	// The convolution runs in work[wo...wo+2m], its own work follows.
+	void bluestein(double[] x, double[] work, int wo) {
+		int m = conv.n;
+		double[] a = work;
+		for(int j=0; j<n; j++) {
+			double cr = chirp[2*j], ci = chirp[2*j+1];
+			a[wo+2*j] = x[2*j] * cr - x[2*j+1] * ci;
+			a[wo+2*j+1] = x[2*j] * ci + x[2*j+1] * cr;
+		}
+		for(int j=wo+2*n; j<wo+2*m; j++) {
+			a[j] = 0;
+		}
+		int scratch = wo + 2 * m;
+		System.arraycopy(a, wo, work, scratch, 2 * m);
+		conv.dit(work, scratch / 2, 1, a, wo / 2, m, 0, null, 0);
+		// multiply by the kernel and conjugate: the inverse as a forward transform
+		for(int j=0; j<m; j++) {
+			int i = wo + 2 * j;
+			double ar = a[i], ai = a[i+1];
+			double kr = kernel[2*j], ki = kernel[2*j+1];
+			a[i] = ar * kr - ai * ki;
+			a[i+1] = -(ar * ki + ai * kr);
+		}
+		System.arraycopy(a, wo, work, scratch, 2 * m);
+		conv.dit(work, scratch / 2, 1, a, wo / 2, m, 0, null, 0);
+		for(int j=0; j<n; j++) {
+			int i = wo + 2 * j;
+			double ar = a[i] / m, ai = -a[i+1] / m;
+			double cr = chirp[2*j], ci = chirp[2*j+1];
+			x[2*j] = ar * cr - ai * ci;
+			x[2*j+1] = ar * ci + ai * cr;
+		}
+	}
+}
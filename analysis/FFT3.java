@@ -0,0 +1,289 @@
+package analysis;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+import ovf2.Storage;
+
+// FFT3 is a plan for three-dimensional real-to-complex Fourier transforms
+// of an sizeX x sizeY x sizeZ grid, indexed like OVF2: (z*sizeY+y)*sizeX+x.
+// Plans are cached, use FFT3.plan(sx, sy, sz).
+//
+// The spectrum of a real field is Hermitian, so only kx = 0 ... sizeX/2 is kept:
+// the spectrum holds halfX() x sizeY x sizeZ complex numbers (interleaved re, im),
+// index (kz*sizeY+ky)*halfX()+kx.
+// The transform works in this one array: the x pass packs two real rows into
+// one complex transform, the y and z passes transform the spectrum in place,
+// gathering a block of adjacent lines at a time.
+// All passes run in parallel on the common fork-join pool.
+public final class FFT3 {
+
+	static final int GRAIN = 1 << 15; // do not split tasks of fewer values
+	static final int BLOCK = 8;       // number of adjacent lines gathered together
+
+	private static final ConcurrentHashMap<String, FFT3> plans = new ConcurrentHashMap<String, FFT3>();
+
+	final int sizeX, sizeY, sizeZ;
+	final int halfX;
+	final FFT fftX, fftY, fftZ;
+
+	// Returns the (cached) plan for the given grid size.
+	public static FFT3 plan(int sizeX, int sizeY, int sizeZ) {
+		String key = sizeX + "x" + sizeY + "x" + sizeZ;
+		FFT3 p = plans.get(key);
+		if (p == null) {
+			p = new FFT3(sizeX, sizeY, sizeZ);
+			plans.putIfAbsent(key, p);
+		}
+		return p;
+	}
+
+	private FFT3(int sizeX, int sizeY, int sizeZ) {
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.halfX = sizeX / 2 + 1;
+		this.fftX = FFT.plan(sizeX);
+		this.fftY = FFT.plan(sizeY);
+		this.fftZ = FFT.plan(sizeZ);
+	}
+
+	// number of complex values along kx.
+	public int halfX() {
+		return halfX;
+	}
+
+	// number of doubles in a spectrum.
+	public int spectrumLen() {
+		return 2 * halfX * sizeY * sizeZ;
+	}
+
+	// Allocates a spectrum array.
+	public double[] newSpectrum() {
+		return new double[spectrumLen()];
+	}
+
+	// number of real values in the grid.
+	public int len() {
+		return sizeX * sizeY * sizeZ;
+	}
+
+	// Transforms component c of src into spectrum (overwritten).
+	public void forward(Storage src, int c, double[] spectrum) {
+		checkLen(src, spectrum);
+		new Pass(this, Pass.R2C, src, c, spectrum, 0, rows()).invoke();
+		lines(spectrum, false);
+	}
+
+	// Inverse of forward(): transforms spectrum (destroyed) back into component c of dst.
+	// The result is normalized so that inverse(forward(f)) == f.
+	public void inverse(double[] spectrum, Storage dst, int c) {
+		checkLen(dst, spectrum);
+		lines(spectrum, true);
+		new Pass(this, Pass.C2R, dst, c, spectrum, 0, rows()).invoke();
+	}
+
+	// Transforms the spectrum in place along z and y (forward) or y and z (inverse).
+	void lines(double[] spectrum, boolean inverse) {
+		if (inverse && sizeZ > 1) {
+			new Pass(this, Pass.Z_INV, null, 0, spectrum, 0, halfX * sizeY).invoke();
+		}
+		if (sizeY > 1) {
+			new Pass(this, inverse ? Pass.Y_INV : Pass.Y, null, 0, spectrum, 0, halfX * sizeZ).invoke();
+		}
+		if (!inverse && sizeZ > 1) {
+			new Pass(this, Pass.Z, null, 0, spectrum, 0, halfX * sizeY).invoke();
+		}
+	}
+
+	// number of row pairs for the x pass.
+	int rows() {
+		return (sizeY * sizeZ + 1) / 2;
+	}
+
+	void checkLen(Storage s, double[] spectrum) {
+		if (s.len() != len() || spectrum.length != spectrumLen()) {
+			throw new IllegalArgumentException("FFT3 " + sizeX + "x" + sizeY + "x" + sizeZ +
+			                                   ": size mismatch: " + s.len() + " cells, spectrum " + spectrum.length);
+		}
+	}
+
+	// Pass transforms lines lo (inclusive) to hi (exclusive) along one direction.
+	// Lines are row pairs for R2C and C2R, or (kx, z) / (kx, ky) columns for Y and Z.
+	static final class Pass extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		static final int R2C = 0, C2R = 1, Y = 2, Y_INV = 3, Z = 4, Z_INV = 5;
+
+		final FFT3 p;
+		final int kind;
+		final Storage field;
+		final int c;
+		final double[] s;
+		final int lo, hi;
+
+		Pass(FFT3 p, int kind, Storage field, int c, double[] s, int lo, int hi) {
+			this.p = p;
+			this.kind = kind;
+			this.field = field;
+			this.c = c;
+			this.s = s;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		int lineLen() {
+			switch(kind) {
+			case R2C:
+			case C2R:
+				return 2 * p.sizeX;
+			case Y:
+			case Y_INV:
+				return p.sizeY;
+			default:
+				return p.sizeZ;
+			}
+		}
+
+		protected void compute() {
+			if (hi - lo > 1 && (long)(hi - lo) * lineLen() > GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Pass(p, kind, field, c, s, lo, mid),
+				          new Pass(p, kind, field, c, s, mid, hi));
+				return;
+			}
+			switch(kind) {
+			case R2C:
+				r2c();
+				break;
+			case C2R:
+				c2r();
+				break;
+			case Y:
+			case Y_INV:
+				// line (kx, z) starts at z*sizeY*halfX + kx, stride halfX
+				columns(p.fftY, p.halfX, kind == Y_INV);
+				break;
+			default:
+				// line (kx, ky) starts at ky*halfX + kx, stride halfX*sizeY
+				columns(p.fftZ, p.halfX * p.sizeY, kind == Z_INV);
+			}
+		}
+
+		// Real-to-complex transform along x of row pairs lo to hi:
+		// rows a and b are transformed together as z = a + ib,
+		// then separated using A[k] = (Z[k] + conj Z[n-k]) / 2, B[k] = (Z[k] - conj Z[n-k]) / 2i.
+		void r2c() {
+			int n = p.sizeX, h = p.halfX, rows = p.sizeY * p.sizeZ;
+			float[] a = new float[n], b = new float[n];
+			double[] z = new double[2 * n];
+			double[] work = p.fftX.newWork();
+			for(int pair=lo; pair<hi; pair++) {
+				int ra = 2 * pair, rb = ra + 1;
+				field.get(c, ra * n, a, 0, n);
+				if (rb < rows) {
+					field.get(c, rb * n, b, 0, n);
+				} else {
+					Arrays.fill(b, 0);
+				}
+				for(int i=0; i<n; i++) {
+					z[2*i] = a[i];
+					z[2*i+1] = b[i];
+				}
+				p.fftX.transform(z, work, false);
+				int oa = 2 * ra * h, ob = 2 * rb * h;
+				for(int k=0; k<h; k++) {
+					int m = (n - k) % n;
+					double zr = z[2*k], zi = z[2*k+1];
+					double cr = z[2*m], ci = -z[2*m+1];
+					s[oa + 2*k] = 0.5 * (zr + cr);
+					s[oa + 2*k+1] = 0.5 * (zi + ci);
+					if (rb < rows) {
+						s[ob + 2*k] = 0.5 * (zi - ci);
+						s[ob + 2*k+1] = -0.5 * (zr - cr);
+					}
+				}
+			}
+		}
+
+		// Complex-to-real inverse along x of row pairs lo to hi, normalized:
+		// the full spectra of both rows are rebuilt by Hermitian symmetry
+		// and transformed together as Z = A + iB.
+		void c2r() {
+			int n = p.sizeX, h = p.halfX, rows = p.sizeY * p.sizeZ;
+			float[] a = new float[n], b = new float[n];
+			double[] z = new double[2 * n];
+			double[] work = p.fftX.newWork();
+			double scale = 1.0 / p.len();
+			for(int pair=lo; pair<hi; pair++) {
+				int ra = 2 * pair, rb = ra + 1;
+				int oa = 2 * ra * h, ob = 2 * rb * h;
+				boolean hasB = rb < rows;
+				for(int k=0; k<n; k++) {
+					double ar, ai, br = 0, bi = 0;
+					if (k < h) {
+						ar = s[oa + 2*k];
+						ai = s[oa + 2*k+1];
+						if (hasB) {
+							br = s[ob + 2*k];
+							bi = s[ob + 2*k+1];
+						}
+					} else {
+						int m = n - k;
+						ar = s[oa + 2*m];
+						ai = -s[oa + 2*m+1];
+						if (hasB) {
+							br = s[ob + 2*m];
+							bi = -s[ob + 2*m+1];
+						}
+					}
+					z[2*k] = ar - bi;
+					z[2*k+1] = ai + br;
+				}
+				p.fftX.transform(z, work, true);
+				for(int i=0; i<n; i++) {
+					a[i] = (float)(z[2*i] * scale);
+					b[i] = (float)(z[2*i+1] * scale);
+				}
+				field.set(c, ra * n, a, 0, n);
+				if (hasB) {
+					field.set(c, rb * n, b, 0, n);
+				}
+			}
+		}
+
+		// Transforms lines lo to hi in place, where line L starts at complex index
+		// (L / stride) * stride * n + L % stride and has the given stride.
+		// Up to BLOCK adjacent lines are gathered at once, so that each
+		// cache line of the spectrum is loaded once per block.
+		void columns(FFT fft, int stride, boolean inverse) {
+			int n = fft.len();
+			double[][] buf = new double[BLOCK][2 * n];
+			double[] work = fft.newWork();
+			for(int L=lo; L<hi; ) {
+				int start = (L / stride) * stride * n + L % stride;
+				// block of adjacent lines, not crossing a stride boundary
+				int nb = Math.min(Math.min(BLOCK, hi - L), stride - L % stride);
+				for(int j=0; j<n; j++) {
+					int o = 2 * (start + j * stride);
+					for(int b=0; b<nb; b++) {
+						buf[b][2*j] = s[o + 2*b];
+						buf[b][2*j+1] = s[o + 2*b+1];
+					}
+				}
+				for(int b=0; b<nb; b++) {
+					fft.transform(buf[b], work, inverse);
+				}
+				for(int j=0; j<n; j++) {
+					int o = 2 * (start + j * stride);
+					for(int b=0; b<nb; b++) {
+						s[o + 2*b] = buf[b][2*j];
+						s[o + 2*b+1] = buf[b][2*j+1];
+					}
+				}
+				L += nb;
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package analysis;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import ovf2.OVF2;
+
+// FieldMath provides element-wise arithmetic on OVF2 fields:
+// norms, dot and cross products, normalisation, scaling and differences,
+// and fused kernels like the normalised cross product.
+// Results are new fields on the heap, or the argument modified in place where noted.
+// Work is split over the cells and run in parallel.
+//
+// FieldMath.get() returns an implementation using the Vector API (jdk.incubator.vector)
+// when the JVM runs with --add-modules jdk.incubator.vector and the CPU has SIMD registers
+// of at least 4 floats, and a plain Java one otherwise.
+public abstract class FieldMath {
+
+	static final int GRAIN = 1 << 16; // do not split tasks of fewer cells
+
+	private static final FieldMath best = load();
+
+	// Returns the fastest implementation available.
+	public static FieldMath get() {
+		return best;
+	}
+
+	// Returns the plain Java implementation.
+	public static FieldMath scalar() {
+		return new ScalarMath();
+	}
+
+	static FieldMath load() {
+		try {
+			return (FieldMath)(Class.forName("analysis.VectorMath").getDeclaredConstructor().newInstance());
+		} catch(ReflectiveOperationException e) {
+			// fall back, also when VectorMath's constructor rejects the CPU (no SIMD)
+		} catch(LinkageError e) {
+			// incubator module not added
+		}
+		return new ScalarMath();
+	}
+
+	// name of the implementation
+	public abstract String toString();
+
+	// Kernels, over cells from (inclusive) to to (exclusive):
+
+	// dst = |(x, y, z)|
+	abstract void norm(float[] x, float[] y, float[] z, float[] dst, int from, int to);
+
+	// dst = a . b
+	abstract void dot(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz, float[] dst, int from, int to);
+
+	// d = a x b
+	abstract void cross(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz,
+	                    float[] dx, float[] dy, float[] dz, int from, int to);
+
+	// d = a x b / |a x b|, zero where a x b is zero
+	abstract void normalizedCross(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz,
+	                              float[] dx, float[] dy, float[] dz, int from, int to);
+
+	// (x, y, z) /= |(x, y, z)|, zero vectors stay zero
+	abstract void normalize(float[] x, float[] y, float[] z, int from, int to);
+
+	// a *= s
+	abstract void scale(float[] a, float s, int from, int to);
+
+	// dst = a - b
+	abstract void sub(float[] a, float[] b, float[] dst, int from, int to);
+
+	// Returns the norm of 3-component field v.
+	public OVF2 norm(OVF2 v) {
+		final float[] x = comp(v, 0), y = comp(v, 1), z = comp(v, 2);
+		OVF2 n = v.like(1);
+		n.title = "norm " + v.title;
+		final float[] dst = n.data.array(0);
+		run(v.len(), new Range() {
+			void run(int from, int to) {
+				norm(x, y, z, dst, from, to);
+			}
+		});
+		return n;
+	}
+
+	// Returns the dot product of 3-component fields a and b.
+	public OVF2 dot(OVF2 a, OVF2 b) {
+		final float[] ax = comp(a, 0), ay = comp(a, 1), az = comp(a, 2);
+		final float[] bx = comp(b, 0), by = comp(b, 1), bz = comp(b, 2);
+		checkSize(a, b);
+		OVF2 d = a.like(1);
+		d.title = "dot";
+		final float[] dst = d.data.array(0);
+		run(a.len(), new Range() {
+			void run(int from, int to) {
+				dot(ax, ay, az, bx, by, bz, dst, from, to);
+			}
+		});
+		return d;
+	}
+
+	// Returns the cross product of 3-component fields a and b.
+	public OVF2 cross(OVF2 a, OVF2 b) {
+		return cross(a, b, false);
+	}
+
+	// Returns the normalised cross product of 3-component fields a and b, in one pass.
+	public OVF2 normalizedCross(OVF2 a, OVF2 b) {
+		return cross(a, b, true);
+	}
+
+	OVF2 cross(OVF2 a, OVF2 b, final boolean normalized) {
+		final float[] ax = comp(a, 0), ay = comp(a, 1), az = comp(a, 2);
+		final float[] bx = comp(b, 0), by = comp(b, 1), bz = comp(b, 2);
+		checkSize(a, b);
+		OVF2 d = a.like(3);
+		d.title = "cross";
+		d.valueLabels = "";
+		d.valueUnits = "";
+		final float[] dx = d.data.array(0), dy = d.data.array(1), dz = d.data.array(2);
+		run(a.len(), new Range() {
+			void run(int from, int to) {
+				if (normalized) {
+					normalizedCross(ax, ay, az, bx, by, bz, dx, dy, dz, from, to);
+				} else {
+					cross(ax, ay, az, bx, by, bz, dx, dy, dz, from, to);
+				}
+			}
+		});
+		return d;
+	}
+
+	// Normalises 3-component field v in place (v must be on the heap).
+	public void normalize(OVF2 v) {
+		final float[] x = array(v, 0), y = array(v, 1), z = array(v, 2);
+		run(v.len(), new Range() {
+			void run(int from, int to) {
+				normalize(x, y, z, from, to);
+			}
+		});
+	}
+
+	// Multiplies all components of f by s, in place (f must be on the heap).
+	public void scale(OVF2 f, final float s) {
+		for(int c=0; c<f.nComp(); c++) {
+			final float[] a = array(f, c);
+			run(f.len(), new Range() {
+				void run(int from, int to) {
+					scale(a, s, from, to);
+				}
+			});
+		}
+	}
+
+	// Returns a - b, e.g. the change between two frames.
+	public OVF2 sub(OVF2 a, OVF2 b) {
+		checkSize(a, b);
+		if (a.nComp() != b.nComp()) {
+			throw new IllegalArgumentException("sub: " + a.nComp() + " and " + b.nComp() + " components");
+		}
+		OVF2 d = a.like(a.nComp());
+		d.title = "difference";
+		for(int c=0; c<a.nComp(); c++) {
+			final float[] x = comp(a, c), y = comp(b, c), dst = d.data.array(c);
+			run(a.len(), new Range() {
+				void run(int from, int to) {
+					sub(x, y, dst, from, to);
+				}
+			});
+		}
+		return d;
+	}
+
+	// Range is a kernel call over cells from to to.
+	static abstract class Range {
+		abstract void run(int from, int to);
+	}
+
+	// Split runs a Range over [from, to) in parallel.
+	static final class Split extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Range r;
+		final int from, to;
+
+		Split(Range r, int from, int to) {
+			this.r = r;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > GRAIN) {
+				int mid = ((from + to) >>> 1) & ~63; // keep chunks aligned for SIMD
+				if (mid > from) {
+					invokeAll(new Split(r, from, mid), new Split(r, mid, to));
+					return;
+				}
+			}
+			r.run(from, to);
+		}
+	}
+
+	static void run(int n, Range r) {
+		new Split(r, 0, n).invoke();
+	}
+
+	// component c as a heap array, copied if needed.
+	static float[] comp(OVF2 f, int c) {
+		if (c >= f.nComp()) {
+			throw new IllegalArgumentException("need 3 components, have " + f.nComp());
+		}
+		return Stencil.comp(f, c);
+	}
+
+	// component c's heap array, for in-place operations.
+	static float[] array(OVF2 f, int c) {
+		float[] a = f.data.array(c);
+		if (a == null) {
+			throw new IllegalArgumentException("in-place operation needs heap storage");
+		}
+		return a;
+	}
+
+	static void checkSize(OVF2 a, OVF2 b) {
+		if (a.sizeX() != b.sizeX() || a.sizeY() != b.sizeY() || a.sizeZ() != b.sizeZ()) {
+			throw new IllegalArgumentException("size mismatch: " + a.sizeX() + "x" + a.sizeY() + "x" + a.sizeZ() +
+			                                   " and " + b.sizeX() + "x" + b.sizeY() + "x" + b.sizeZ());
+		}
+	}
+
+	// main for testing: benchmark the normalised cross product and normalisation
+	// with the scalar and the best kernels (into preallocated fields), on random fields
+	// of 2^24 cells (or the number passed as arg). Each kernel is timed on one thread
+	// and in parallel, and compared to the scalar kernel on the same threading,
+	// so that speed-ups show the SIMD gain only. The naive loops are the reference result.
+	// Prints the best of at least 10 runs (more for small fields, to warm up the JIT).
+	public static void main(String[] args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 24;
+		final float[][] a = random(n, 1), b = random(n, 2), d = new float[3][n], ref = new float[3][n];
+		FieldMath[] impl = {scalar(), get()};
+		long naive = Long.MAX_VALUE;
+		long[][] cross = new long[2][impl.length], norm = new long[2][impl.length]; // [sequential, parallel][impl]
+		for(long[] t: cross) {
+			Arrays.fill(t, Long.MAX_VALUE);
+		}
+		for(long[] t: norm) {
+			Arrays.fill(t, Long.MAX_VALUE);
+		}
+		int reps = Math.max(10, (1 << 27) / n);
+		for(int rep=0; rep<reps; rep++) {
+			long t0 = System.nanoTime();
+			naiveNormalizedCross(a, b, ref);
+			naive = Math.min(naive, System.nanoTime() - t0);
+			for(int k=0; k<impl.length; k++) {
+				final FieldMath m = impl[k];
+				Range crossRange = new Range() {
+					void run(int from, int to) {
+						m.normalizedCross(a[0], a[1], a[2], b[0], b[1], b[2], d[0], d[1], d[2], from, to);
+					}
+				};
+				Range normRange = new Range() {
+					void run(int from, int to) {
+						m.normalize(d[0], d[1], d[2], from, to);
+					}
+				};
+				for(int par=0; par<2; par++) {
+					long t1 = System.nanoTime();
+					if (par == 0) {
+						crossRange.run(0, n);
+					} else {
+						run(n, crossRange);
+					}
+					long t2 = System.nanoTime();
+					if (par == 0) {
+						normRange.run(0, n);
+					} else {
+						run(n, normRange);
+					}
+					long t3 = System.nanoTime();
+					cross[par][k] = Math.min(cross[par][k], t2 - t1);
+					norm[par][k] = Math.min(norm[par][k], t3 - t2);
+				}
+			}
+		}
+		System.out.println(n + " cells, " + Runtime.getRuntime().availableProcessors() + " threads");
+		System.out.println("normalizedCross naive, 1 thread: " + ms(naive));
+		String[] threading = {"1 thread", "parallel"};
+		for(int par=0; par<2; par++) {
+			for(int k=0; k<impl.length; k++) {
+				System.out.println(impl[k] + ", " + threading[par] + ": normalizedCross " + ms(cross[par][k]) +
+				                   " (x" + String.format("%.1f", (double)(cross[par][0]) / cross[par][k]) + "), normalize " +
+				                   ms(norm[par][k]) + " (x" + String.format("%.1f", (double)(norm[par][0]) / norm[par][k]) + ")");
+			}
+		}
+		double err = 0;
+		for(int c=0; c<3; c++) {
+			for(int i=0; i<n; i++) {
+				err = Math.max(err, Math.abs(d[c][i] - ref[c][i]));
+			}
+		}
+		System.out.println("max difference: " + err);
+	}
+
+	static String ms(long ns) {
+		return String.format("%.3fms", ns / 1e6);
+	}
+
+	static float[][] random(int n, long seed) {
+		Random rnd = new Random(seed);
+		float[][] v = new float[3][n];
+		for(int c=0; c<3; c++) {
+			for(int i=0; i<n; i++) {
+				v[c][i] = (float)(rnd.nextGaussian());
+			}
+		}
+		return v;
+	}
+
+	// reference: cross product, then normalisation, as separate naive loops.
+	static void naiveNormalizedCross(float[][] a, float[][] b, float[][] d) {
+		for(int i=0; i<a[0].length; i++) {
+			d[0][i] = a[1][i] * b[2][i] - a[2][i] * b[1][i];
+			d[1][i] = a[2][i] * b[0][i] - a[0][i] * b[2][i];
+			d[2][i] = a[0][i] * b[1][i] - a[1][i] * b[0][i];
+		}
+		for(int i=0; i<a[0].length; i++) {
+			float norm = (float)(Math.sqrt(d[0][i] * d[0][i] + d[1][i] * d[1][i] + d[2][i] * d[2][i]));
+			if (norm != 0) {
+				d[0][i] /= norm;
+				d[1][i] /= norm;
+				d[2][i] /= norm;
+			}
+		}
+	}
+}
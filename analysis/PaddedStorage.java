@@ -0,0 +1,94 @@
+package analysis;
+
+import java.util.Arrays;
+
+import ovf2.Storage;
+
+// PaddedStorage presents a sizeX x sizeY x sizeZ Storage as the corner
+// of a larger, zero-padded grid, without copying.
+// Cells outside the source read as zero, writes to them are dropped,
+// so an inverse transform into a PaddedStorage crops the result.
+final class PaddedStorage extends Storage {
+
+	final Storage src;
+	final int sizeX, sizeY, sizeZ; // source grid
+	final int padX, padY, padZ;    // padded grid
+
+	PaddedStorage(Storage src, int sizeX, int sizeY, int sizeZ, int padX, int padY, int padZ) {
+		this.src = src;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.padX = padX;
+		this.padY = padY;
+		this.padZ = padZ;
+	}
+
+	public int nComp() {
+		return src.nComp();
+	}
+
+	public int len() {
+		return padX * padY * padZ;
+	}
+
+	public float get(int c, int i) {
+		int s = source(i);
+		return s < 0 ? 0 : src.get(c, s);
+	}
+
+	public void set(int c, int i, float v) {
+		int s = source(i);
+		if (s >= 0) {
+			src.set(c, s, v);
+		}
+	}
+
+	// copies row by row, using the bulk accessors of the source
+	public void get(int c, int i, float[] dst, int off, int n) {
+		while (n > 0) {
+			int x = i % padX;
+			int m = Math.min(n, padX - x); // rest of this row
+			int s = source(i);
+			int inside = s < 0 ? 0 : Math.min(m, sizeX - x);
+			if (inside > 0) {
+				src.get(c, s, dst, off, inside);
+			}
+			Arrays.fill(dst, off + inside, off + m, 0);
+			i += m;
+			off += m;
+			n -= m;
+		}
+	}
+
+	public void set(int c, int i, float[] v, int off, int n) {
+		while (n > 0) {
+			int x = i % padX;
+			int m = Math.min(n, padX - x);
+			int s = source(i);
+			int inside = s < 0 ? 0 : Math.min(m, sizeX - x);
+			if (inside > 0) {
+				src.set(c, s, v, off, inside);
+			}
+			i += m;
+			off += m;
+			n -= m;
+		}
+	}
+
+	public long bytes() {
+		return src.bytes();
+	}
+
+	// index in the source of padded cell i, or -1 if outside.
+	int source(int i) {
+		int x = i % padX;
+		int r = i / padX;
+		int y = r % padY;
+		int z = r / padY;
+		if (x >= sizeX || y >= sizeY || z >= sizeZ) {
+			return -1;
+		}
+		return (z * sizeY + y) * sizeX + x;
+	}
+}
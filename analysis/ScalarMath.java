@@ -0,0 +1,70 @@
+package analysis;
+
+// ScalarMath implements FieldMath in plain Java.
+// Loops are kept simple so that the JIT may still auto-vectorise them.
+class ScalarMath extends FieldMath {
+
+	public String toString() {
+		return "scalar";
+	}
+
+	void norm(float[] x, float[] y, float[] z, float[] dst, int from, int to) {
+		for(int i=from; i<to; i++) {
+			dst[i] = (float)(Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]));
+		}
+	}
+
+	void dot(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz, float[] dst, int from, int to) {
+		for(int i=from; i<to; i++) {
+			dst[i] = ax[i] * bx[i] + ay[i] * by[i] + az[i] * bz[i];
+		}
+	}
+
+	void cross(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz,
+	           float[] dx, float[] dy, float[] dz, int from, int to) {
+		for(int i=from; i<to; i++) {
+			float x = ay[i] * bz[i] - az[i] * by[i];
+			float y = az[i] * bx[i] - ax[i] * bz[i];
+			float z = ax[i] * by[i] - ay[i] * bx[i];
+			dx[i] = x;
+			dy[i] = y;
+			dz[i] = z;
+		}
+	}
+
+	void normalizedCross(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz,
+	                     float[] dx, float[] dy, float[] dz, int from, int to) {
+		for(int i=from; i<to; i++) {
+			float x = ay[i] * bz[i] - az[i] * by[i];
+			float y = az[i] * bx[i] - ax[i] * bz[i];
+			float z = ax[i] * by[i] - ay[i] * bx[i];
+			float n2 = x * x + y * y + z * z;
+			float inv = n2 == 0 ? 0 : (float)(1 / Math.sqrt(n2));
+			dx[i] = x * inv;
+			dy[i] = y * inv;
+			dz[i] = z * inv;
+		}
+	}
+
+	void normalize(float[] x, float[] y, float[] z, int from, int to) {
+		for(int i=from; i<to; i++) {
+			float n2 = x[i] * x[i] + y[i] * y[i] + z[i] * z[i];
+			float inv = n2 == 0 ? 0 : (float)(1 / Math.sqrt(n2));
+			x[i] *= inv;
+			y[i] *= inv;
+			z[i] *= inv;
+		}
+	}
+
+	void scale(float[] a, float s, int from, int to) {
+		for(int i=from; i<to; i++) {
+			a[i] *= s;
+		}
+	}
+
+	void sub(float[] a, float[] b, float[] dst, int from, int to) {
+		for(int i=from; i<to; i++) {
+			dst[i] = a[i] - b[i];
+		}
+	}
+}
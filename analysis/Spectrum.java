@@ -0,0 +1,152 @@
+package analysis;
+
+import java.io.File;
+import java.io.IOException;
+
+import ovf2.HeapStorage;
+import ovf2.OVF2;
+
+// Spectrum is the radially averaged power spectrum of an OVF2 field:
+// the power of all Fourier modes, summed over components, binned by
+// wave number |k| in shells of width dk.
+//
+// The power of mode k is |F(k)|^2 / N^2 (N: number of cells), so that by Parseval
+// the power of all modes adds up to the mean of the squared field norm.
+// Wave numbers are in rad per mesh unit, using the cell sizes of the field
+// (cell size 1 if unset).
+public final class Spectrum {
+
+	public final double dk;      // shell width
+	public final double[] power; // total power in shell b, which holds |k| in [(b-1/2)dk, (b+1/2)dk)
+	public final long[] count;   // number of modes in shell b
+
+	Spectrum(double dk, int bins) {
+		this.dk = dk;
+		this.power = new double[bins];
+		this.count = new long[bins];
+	}
+
+	// number of shells
+	public int len() {
+		return power.length;
+	}
+
+	// centre wave number of shell b
+	public double k(int b) {
+		return b * dk;
+	}
+
+	// average power per mode in shell b, 0 if the shell is empty
+	public double avg(int b) {
+		return count[b] == 0 ? 0 : power[b] / count[b];
+	}
+
+	// Returns the power spectrum of f, summed over components,
+	// as a single-component field of halfX x sizeY x sizeZ cells (see FFT3).
+	// Cell sizes are the wave number spacing 2 pi / (size * cell size).
+	// Negative ky, kz are wrapped around as usual: index ky holds ky - sizeY for ky > sizeY/2.
+	public static OVF2 power(OVF2 f) {
+		FFT3 p = FFT3.plan(f.sizeX(), f.sizeY(), f.sizeZ());
+		float[] pow = new float[p.spectrumLen() / 2];
+		double[] sum = accumulate(f, p);
+		for(int i=0; i<pow.length; i++) {
+			pow[i] = (float)(sum[i]);
+		}
+		OVF2 s = new OVF2(new HeapStorage(new float[][] {pow}), p.halfX(), f.sizeY(), f.sizeZ());
+		s.title = "power spectrum of " + f.title;
+		s.meshUnit = "rad/" + f.meshUnit;
+		s.xStepSize = (float)(dk(f.sizeX(), f.xStepSize));
+		s.yStepSize = (float)(dk(f.sizeY(), f.yStepSize));
+		s.zStepSize = (float)(dk(f.sizeZ(), f.zStepSize));
+		s.time = f.time;
+		return s;
+	}
+
+	// Returns the radially averaged power spectrum of f, summed over components.
+	// The shell width is the smallest wave number spacing along a non-trivial axis.
+	public static Spectrum radial(OVF2 f) {
+		int sx = f.sizeX(), sy = f.sizeY(), sz = f.sizeZ();
+		FFT3 p = FFT3.plan(sx, sy, sz);
+		double[] pow = accumulate(f, p);
+		double dkx = dk(sx, f.xStepSize), dky = dk(sy, f.yStepSize), dkz = dk(sz, f.zStepSize);
+		double dk = Double.POSITIVE_INFINITY;
+		double kmax2 = 0;
+		if (sx > 1) {
+			dk = Math.min(dk, dkx);
+			kmax2 += sq(dkx * (sx / 2));
+		}
+		if (sy > 1) {
+			dk = Math.min(dk, dky);
+			kmax2 += sq(dky * (sy / 2));
+		}
+		if (sz > 1) {
+			dk = Math.min(dk, dkz);
+			kmax2 += sq(dkz * (sz / 2));
+		}
+		if (dk == Double.POSITIVE_INFINITY) {
+			dk = 1; // single cell
+		}
+		Spectrum s = new Spectrum(dk, (int)(Math.sqrt(kmax2) / dk + 0.5) + 1);
+		int h = p.halfX();
+		for(int z=0; z<sz; z++) {
+			double kz = dkz * wrap(z, sz);
+			for(int y=0; y<sy; y++) {
+				double ky = dky * wrap(y, sy);
+				int row = (z * sy + y) * h;
+				for(int x=0; x<h; x++) {
+					double kx = dkx * x;
+					int b = (int)(Math.sqrt(kx*kx + ky*ky + kz*kz) / dk + 0.5);
+					// modes kx and -kx, except kx = 0 and the Nyquist mode, are both represented by kx
+					int w = (x == 0 || 2 * x == sx) ? 1 : 2;
+					s.power[b] += w * pow[row + x];
+					s.count[b] += w;
+				}
+			}
+		}
+		return s;
+	}
+
+	// Returns |F(k)|^2 / N^2 summed over the components of f, indexed like the FFT3 spectrum.
+	static double[] accumulate(OVF2 f, FFT3 p) {
+		double[] spectrum = p.newSpectrum();
+		double[] pow = new double[spectrum.length / 2];
+		double norm = 1.0 / ((double)(p.len()) * p.len());
+		for(int c=0; c<f.nComp(); c++) {
+			p.forward(f.data, c, spectrum);
+			for(int i=0; i<pow.length; i++) {
+				double re = spectrum[2*i], im = spectrum[2*i+1];
+				pow[i] += (re*re + im*im) * norm;
+			}
+		}
+		return pow;
+	}
+
+	// wave number spacing for n cells of size d (1 if unset)
+	static double dk(int n, double d) {
+		if (d == 0) {
+			d = 1;
+		}
+		return 2 * Math.PI / (n * d);
+	}
+
+	// signed frequency index of FFT index i
+	static int wrap(int i, int n) {
+		return i > n / 2 ? i - n : i;
+	}
+
+	static double sq(double x) {
+		return x * x;
+	}
+
+	// main for testing: print the radially averaged spectrum of the files passed as args:
+	// wave number, average power per mode, number of modes.
+	public static void main(String[] args) throws IOException {
+		for(String arg: args) {
+			Spectrum s = radial(OVF2.read(new File(arg)));
+			System.out.println("# " + arg);
+			for(int b=0; b<s.len(); b++) {
+				System.out.println(s.k(b) + "\t" + s.avg(b) + "\t" + s.count[b]);
+			}
+		}
+	}
+}
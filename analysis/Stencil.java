@@ -0,0 +1,355 @@
+package analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RecursiveTask;
+
+import ovf2.OVF2;
+
+// Stencil computes finite-difference operators on OVF2 fields:
+// gradient, divergence, curl and Laplacian, and the exchange energy.
+// Derivatives are central differences over the cell sizes (1 if unset),
+// results are new fields on the heap, with value labels and units derived
+// from those of the input (cleared where the input's are missing).
+//
+// Boundaries are set per axis:
+// NEUMANN uses the edge cell as its own outside neighbour (zero normal derivative),
+// PERIODIC wraps around.
+//
+// The grid is swept in parallel, in tiles of a block of rows (y) by a range of layers (z):
+// each tile walks its layers in order, so the neighbouring rows in y and z
+// of a tile stay in cache.
+public final class Stencil {
+
+	public static final int NEUMANN = 0, PERIODIC = 1;
+
+	static final int GRAIN = 1 << 16;      // do not split tasks of fewer cells
+	static final int BLOCK_BYTES = 1 << 16; // approximate input bytes per row block and layer
+
+	final int bx, by, bz; // boundary conditions along x, y, z
+
+	// Neumann boundaries along all axes.
+	public Stencil() {
+		this(NEUMANN, NEUMANN, NEUMANN);
+	}
+
+	// Boundary conditions along x, y and z: NEUMANN or PERIODIC.
+	public Stencil(int bx, int by, int bz) {
+		this.bx = bx;
+		this.by = by;
+		this.bz = bz;
+	}
+
+	// Returns the gradient of component c of f: 3 components d/dx, d/dy, d/dz.
+	public OVF2 gradient(OVF2 f, int c) {
+		final float[] a = comp(f, c);
+		OVF2 g = f.like(3);
+		g.title = "grad " + f.title;
+		String label = word(f.valueLabels, c), unit = per(word(f.valueUnits, c), f.meshUnit);
+		g.valueLabels = label.isEmpty() ? "" : "d" + label + "/dx d" + label + "/dy d" + label + "/dz";
+		g.valueUnits = unit.isEmpty() ? "" : unit + " " + unit + " " + unit;
+		final float[] gx = g.data.array(0), gy = g.data.array(1), gz = g.data.array(2);
+		sweep(f, 1, new Op() {
+			double row(Geom s, int i, int ym, int yp, int zm, int zp) {
+				for(int x=0; x<s.sizeX; x++) {
+					gx[i+x] = (a[i + s.xp[x]] - a[i + s.xm[x]]) * s.hx;
+					gy[i+x] = (a[yp + x] - a[ym + x]) * s.hy;
+					gz[i+x] = (a[zp + x] - a[zm + x]) * s.hz;
+				}
+				return 0;
+			}
+		});
+		return g;
+	}
+
+	// Returns the divergence of 3-component field v.
+	public OVF2 divergence(OVF2 v) {
+		final float[] vx = comp(v, 0), vy = comp(v, 1), vz = comp(v, 2);
+		OVF2 d = v.like(1);
+		d.title = "div " + v.title;
+		d.valueLabels = "div";
+		d.valueUnits = per(vectorUnit(v), v.meshUnit);
+		final float[] out = d.data.array(0);
+		sweep(v, 3, new Op() {
+			double row(Geom s, int i, int ym, int yp, int zm, int zp) {
+				for(int x=0; x<s.sizeX; x++) {
+					out[i+x] = (vx[i + s.xp[x]] - vx[i + s.xm[x]]) * s.hx +
+					           (vy[yp + x] - vy[ym + x]) * s.hy +
+					           (vz[zp + x] - vz[zm + x]) * s.hz;
+				}
+				return 0;
+			}
+		});
+		return d;
+	}
+
+	// Returns the curl of 3-component field v.
+	public OVF2 curl(OVF2 v) {
+		final float[] vx = comp(v, 0), vy = comp(v, 1), vz = comp(v, 2);
+		OVF2 r = v.like(3);
+		r.title = "curl " + v.title;
+		String unit = per(vectorUnit(v), v.meshUnit);
+		r.valueLabels = "curl_x curl_y curl_z";
+		r.valueUnits = unit.isEmpty() ? "" : unit + " " + unit + " " + unit;
+		final float[] rx = r.data.array(0), ry = r.data.array(1), rz = r.data.array(2);
+		sweep(v, 3, new Op() {
+			double row(Geom s, int i, int ym, int yp, int zm, int zp) {
+				for(int x=0; x<s.sizeX; x++) {
+					int xm = i + s.xm[x], xp = i + s.xp[x];
+					float dyVz = (vz[yp + x] - vz[ym + x]) * s.hy;
+					float dzVy = (vy[zp + x] - vy[zm + x]) * s.hz;
+					float dzVx = (vx[zp + x] - vx[zm + x]) * s.hz;
+					float dxVz = (vz[xp] - vz[xm]) * s.hx;
+					float dxVy = (vy[xp] - vy[xm]) * s.hx;
+					float dyVx = (vx[yp + x] - vx[ym + x]) * s.hy;
+					rx[i+x] = dyVz - dzVy;
+					ry[i+x] = dzVx - dxVz;
+					rz[i+x] = dxVy - dyVx;
+				}
+				return 0;
+			}
+		});
+		return r;
+	}
+
+	// Returns the Laplacian of each component of f.
+	public OVF2 laplacian(OVF2 f) {
+		OVF2 l = f.like(f.nComp());
+		l.title = "laplacian " + f.title;
+		StringBuilder labels = new StringBuilder(), units = new StringBuilder();
+		for(int c=0; c<f.nComp(); c++) {
+			String label = word(f.valueLabels, c), unit = per(word(f.valueUnits, c), f.meshUnit + "2");
+			if (label.isEmpty() || unit.isEmpty()) {
+				labels = null;
+				break;
+			}
+			if (c > 0) {
+				labels.append(' ');
+				units.append(' ');
+			}
+			labels.append("lap_").append(label);
+			units.append(unit);
+		}
+		l.valueLabels = labels == null ? "" : labels.toString();
+		l.valueUnits = labels == null ? "" : units.toString();
+		for(int c=0; c<f.nComp(); c++) {
+			final float[] a = comp(f, c);
+			final float[] out = l.data.array(c);
+			sweep(f, 1, new Op() {
+				double row(Geom s, int i, int ym, int yp, int zm, int zp) {
+					for(int x=0; x<s.sizeX; x++) {
+						float v = a[i+x];
+						out[i+x] = (a[i + s.xp[x]] - 2*v + a[i + s.xm[x]]) * s.hx2 +
+						           (a[yp + x] - 2*v + a[ym + x]) * s.hy2 +
+						           (a[zp + x] - 2*v + a[zm + x]) * s.hz2;
+					}
+					return 0;
+				}
+			});
+		}
+		return l;
+	}
+
+	// Returns the exchange energy density (J/m3 for aex in J/m and lengths in m)
+	// of magnetization m (unit vectors): -aex m . laplacian(m),
+	// where vacuum cells (zero vectors) are excluded:
+	// a vacuum neighbour counts as a Neumann boundary.
+	public OVF2 exchangeDensity(OVF2 m, double aex) {
+		OVF2 e = m.like(1);
+		e.title = "exchange energy density";
+		e.valueLabels = "E_exch";
+		e.valueUnits = "J/m3";
+		sweep(m, 3, new Exchange(m, aex, e.data.array(0)));
+		return e;
+	}
+
+	// Returns the total exchange energy of m (J), see exchangeDensity(),
+	// without storing the density.
+	public double exchangeEnergy(OVF2 m, double aex) {
+		double vol = cell(m.xStepSize) * cell(m.yStepSize) * cell(m.zStepSize);
+		return sweep(m, 3, new Exchange(m, aex, null)) * vol;
+	}
+
+	// Exchange computes the exchange energy density per row,
+	// storing it in out (if not null) and returning its sum.
+	final class Exchange extends Op {
+		final float[] mx, my, mz;
+		final double aex;
+		final float[] out;
+
+		Exchange(OVF2 m, double aex, float[] out) {
+			this.mx = comp(m, 0);
+			this.my = comp(m, 1);
+			this.mz = comp(m, 2);
+			this.aex = aex;
+			this.out = out;
+		}
+
+		double row(Geom s, int i, int ym, int yp, int zm, int zp) {
+			double sum = 0;
+			for(int x=0; x<s.sizeX; x++) {
+				int c = i + x;
+				double e = 0;
+				if (mx[c] != 0 || my[c] != 0 || mz[c] != 0) {
+					double l = term(c, i + s.xm[x]) * s.hx2 + term(c, i + s.xp[x]) * s.hx2 +
+					           term(c, ym + x) * s.hy2 + term(c, yp + x) * s.hy2 +
+					           term(c, zm + x) * s.hz2 + term(c, zp + x) * s.hz2;
+					e = -aex * l;
+				}
+				if (out != null) {
+					out[c] = (float)(e);
+				}
+				sum += e;
+			}
+			return sum;
+		}
+
+		// m[c] . (m[n] - m[c]), 0 for a vacuum neighbour n.
+		double term(int c, int n) {
+			float nx = mx[n], ny = my[n], nz = mz[n];
+			if (nx == 0 && ny == 0 && nz == 0) {
+				return 0;
+			}
+			return mx[c] * (nx - mx[c]) + my[c] * (ny - my[c]) + mz[c] * (nz - mz[c]);
+		}
+	}
+
+	// Op computes one row of output, given the start indices of the row and of its neighbour rows
+	// (already resolved for the boundaries), and returns a partial sum for reductions.
+	static abstract class Op {
+		abstract double row(Geom s, int i, int ym, int yp, int zm, int zp);
+	}
+
+	// Geom holds the grid size, inverse cell sizes and the neighbour offsets along x.
+	static final class Geom {
+		int sizeX, sizeY, sizeZ;
+		float hx, hy, hz;    // 1 / (2 cell size)
+		float hx2, hy2, hz2; // 1 / cell size^2
+		int[] xm, xp;        // x of the left, right neighbour of x
+	}
+
+	// Runs op over all rows of f's grid in parallel, returns the sum of the row results.
+	// nIn is the number of input arrays, for sizing the tiles.
+	double sweep(OVF2 f, int nIn, Op op) {
+		Geom s = new Geom();
+		s.sizeX = f.sizeX();
+		s.sizeY = f.sizeY();
+		s.sizeZ = f.sizeZ();
+		double cx = cell(f.xStepSize), cy = cell(f.yStepSize), cz = cell(f.zStepSize);
+		s.hx = (float)(0.5 / cx);
+		s.hy = (float)(0.5 / cy);
+		s.hz = (float)(0.5 / cz);
+		s.hx2 = (float)(1 / (cx * cx));
+		s.hy2 = (float)(1 / (cy * cy));
+		s.hz2 = (float)(1 / (cz * cz));
+		s.xm = new int[s.sizeX];
+		s.xp = new int[s.sizeX];
+		for(int x=0; x<s.sizeX; x++) {
+			s.xm[x] = neighbour(x - 1, s.sizeX, bx);
+			s.xp[x] = neighbour(x + 1, s.sizeX, bx);
+		}
+		int block = (int)(Math.max(1, Math.min(s.sizeY, BLOCK_BYTES / (4L * nIn * s.sizeX))));
+		int nBlocks = (s.sizeY + block - 1) / block;
+		return new Sweep(this, s, op, block, 0, nBlocks * s.sizeZ).invoke();
+	}
+
+	// Sweep runs an Op over tiles t0 (inclusive) to t1 (exclusive).
+	// Tile t covers the rows of block t / sizeZ in layer t % sizeZ,
+	// so consecutive tiles walk up the layers of one block.
+	static final class Sweep extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Stencil st;
+		final Geom s;
+		final Op op;
+		final int block;
+		final int t0, t1;
+
+		Sweep(Stencil st, Geom s, Op op, int block, int t0, int t1) {
+			this.st = st;
+			this.s = s;
+			this.op = op;
+			this.block = block;
+			this.t0 = t0;
+			this.t1 = t1;
+		}
+
+		protected Double compute() {
+			if (t1 - t0 > 1 && (long)(t1 - t0) * block * s.sizeX > GRAIN) {
+				int mid = (t0 + t1) >>> 1;
+				Sweep a = new Sweep(st, s, op, block, t0, mid);
+				a.fork();
+				double b = new Sweep(st, s, op, block, mid, t1).compute();
+				return a.join() + b;
+			}
+			double sum = 0;
+			int sx = s.sizeX, sy = s.sizeY, sz = s.sizeZ;
+			for(int t=t0; t<t1; t++) {
+				int z = t % sz;
+				int y0 = (t / sz) * block, y1 = Math.min(sy, y0 + block);
+				int zm = st.neighbour(z - 1, sz, st.bz), zp = st.neighbour(z + 1, sz, st.bz);
+				for(int y=y0; y<y1; y++) {
+					int ym = st.neighbour(y - 1, sy, st.by), yp = st.neighbour(y + 1, sy, st.by);
+					int i = (z * sy + y) * sx;
+					sum += op.row(s, i, (z * sy + ym) * sx, (z * sy + yp) * sx,
+					              (zm * sy + y) * sx, (zp * sy + y) * sx);
+				}
+			}
+			return sum;
+		}
+	}
+
+	// index of neighbour i (possibly outside [0, n)) under boundary condition b.
+	int neighbour(int i, int n, int b) {
+		if (i >= 0 && i < n) {
+			return i;
+		}
+		if (b == PERIODIC) {
+			return (i + n) % n;
+		}
+		return i < 0 ? 0 : n - 1;
+	}
+
+	// cell size, 1 if unset
+	static double cell(float size) {
+		return size == 0 ? 1 : size;
+	}
+
+	// word i of a space-separated list of value labels or units, "" if there is none.
+	static String word(String list, int i) {
+		String[] words = list.trim().split("\\s+");
+		return i < words.length ? words[i] : "";
+	}
+
+	// unit of a derivative: unit per length, "" if the unit is unknown.
+	static String per(String unit, String length) {
+		return unit.isEmpty() ? "" : unit + "/" + length;
+	}
+
+	// the unit of 3-component field v, "" unless all components share it.
+	static String vectorUnit(OVF2 v) {
+		String u = word(v.valueUnits, 0);
+		return u.equals(word(v.valueUnits, 1)) && u.equals(word(v.valueUnits, 2)) ? u : "";
+	}
+
+	// component c of f as a heap array, copied if f is not on the heap.
+	static float[] comp(OVF2 f, int c) {
+		float[] a = f.data.array(c);
+		if (a == null) {
+			a = new float[f.len()];
+			f.data.get(c, 0, a, 0, a.length);
+		}
+		return a;
+	}
+
+	// main for testing: print time and exchange energy (Aex given as first arg)
+	// of the magnetization files passed as args.
+	public static void main(String[] args) throws IOException {
+		double aex = Double.parseDouble(args[0]);
+		Stencil s = new Stencil();
+		for(int a=1; a<args.length; a++) {
+			OVF2 m = OVF2.read(new File(args[a]));
+			System.out.println(m.time + "\t" + s.exchangeEnergy(m, aex));
+		}
+	}
+}
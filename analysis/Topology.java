@@ -0,0 +1,375 @@
+package analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import ovf2.Batch;
+import ovf2.OVF2;
+
+// Topology analyses the topology of a magnetization m (3 components, unit vectors),
+// layer by layer in the xy plane.
+//
+// The topological charge of each plaquette of 4 neighbouring cells is the solid angle
+// spanned by their magnetization, divided by 4 pi (Berg and Luescher),
+// split into two spherical triangles. It is assigned to the plaquette's lower left cell,
+// so the charge of a layer sums to an integer for a smooth texture away from its edges.
+//
+// Cells are grouped into connected objects (4-connected, within a layer) by a parallel
+// union-find: each strip of rows is labelled independently, then strips are merged.
+// domains() groups cells by the sign of m_z, cores() by the sign of the charge,
+// e.g. one core per skyrmion or vortex.
+public final class Topology {
+
+	static final int GRAIN = 1 << 15; // do not split tasks of fewer cells
+
+	final OVF2 m;
+	final int sizeX, sizeY, sizeZ;
+	final float[] q; // topological charge per cell
+
+	// Domain is a connected group of cells in one layer.
+	public static final class Domain {
+		public int layer;     // z index
+		public int sign;      // +1 or -1: sign of m_z (domains) or of the charge (cores)
+		public int cells;     // number of cells
+		public double x, y;   // centre (mesh units): centroid for domains, charge-weighted for cores
+		public double charge; // total topological charge
+
+		public String toString() {
+			return layer + "\t" + sign + "\t" + cells + "\t" + x + "\t" + y + "\t" + charge;
+		}
+	}
+
+	// Computes the charge of each cell of m, in parallel.
+	public Topology(OVF2 m) {
+		if (m.nComp() != 3) {
+			throw new IllegalArgumentException("topology: need 3 components, have " + m.nComp());
+		}
+		this.m = m;
+		this.sizeX = m.sizeX();
+		this.sizeY = m.sizeY();
+		this.sizeZ = m.sizeZ();
+		this.q = new float[m.len()];
+		new ChargeTask(this, Stencil.comp(m, 0), Stencil.comp(m, 1), Stencil.comp(m, 2), 0, sizeY * sizeZ).invoke();
+	}
+
+	// Returns the topological charge density (per area, 1/mesh unit^2) as a field.
+	public OVF2 density() {
+		OVF2 d = m.like(1);
+		d.title = "topological charge density";
+		d.valueLabels = "ext_topologicalchargedensity";
+		d.valueUnits = "1/" + m.meshUnit + "2";
+		float[] dst = d.data.array(0);
+		double area = Stencil.cell(m.xStepSize) * Stencil.cell(m.yStepSize);
+		for(int i=0; i<q.length; i++) {
+			dst[i] = (float)(q[i] / area);
+		}
+		return d;
+	}
+
+	// Returns the total topological charge of layer z.
+	public double charge(int z) {
+		double sum = 0;
+		int n = sizeX * sizeY;
+		for(int i=z*n; i<(z+1)*n; i++) {
+			sum += q[i];
+		}
+		return sum;
+	}
+
+	// Returns the connected groups of cells with m_z > threshold (sign +1)
+	// or m_z < -threshold (sign -1), with the charge they contain.
+	public List<Domain> domains(double threshold) {
+		float[] mz = Stencil.comp(m, 2);
+		byte[] cls = new byte[q.length];
+		for(int i=0; i<cls.length; i++) {
+			cls[i] = (byte)(mz[i] > threshold ? 1 : mz[i] < -threshold ? -1 : 0);
+		}
+		return label(cls, false);
+	}
+
+	// Returns the connected groups of cells with a charge above threshold (sign +1)
+	// or below -threshold (sign -1), centred on their charge.
+	// A threshold of about 1e-3 separates skyrmions and vortices from the background.
+	public List<Domain> cores(double threshold) {
+		byte[] cls = new byte[q.length];
+		for(int i=0; i<cls.length; i++) {
+			cls[i] = (byte)(q[i] > threshold ? 1 : q[i] < -threshold ? -1 : 0);
+		}
+		return label(cls, true);
+	}
+
+	// Labels connected cells of equal, non-zero class, and returns their statistics,
+	// sorted by layer, then by their first cell.
+	List<Domain> label(byte[] cls, boolean chargeWeighted) {
+		int[] parent = new int[cls.length];
+		int rows = sizeY * sizeZ;
+		int strip = Math.max(1, GRAIN / sizeX);
+		new LabelTask(this, cls, parent, 0, rows, strip).invoke();
+		// merge strips: union each strip's first row with the row above, within the layer
+		for(int r=strip; r<rows; r+=strip) {
+			if (r % sizeY != 0) {
+				int i = r * sizeX;
+				for(int x=0; x<sizeX; x++) {
+					if (cls[i+x] != 0 && cls[i+x] == cls[i+x-sizeX]) {
+						union(parent, i+x, i+x-sizeX);
+					}
+				}
+			}
+		}
+		HashMap<Integer, Domain> all = new SumTask(this, cls, parent, chargeWeighted, 0, rows, strip).invoke();
+		List<Domain> list = new ArrayList<Domain>(all.size());
+		for(int root: new TreeSet<Integer>(all.keySet())) {
+			Domain d = all.get(root);
+			double w = chargeWeighted ? d.charge : d.cells;
+			double off = chargeWeighted ? 0.5 : 0; // charge sits at the plaquette centre
+			d.x = m.xBase + Stencil.cell(m.xStepSize) * (d.x / w + off);
+			d.y = m.yBase + Stencil.cell(m.yStepSize) * (d.y / w + off);
+			list.add(d);
+		}
+		return list;
+	}
+
+	// root of i, halving the path on the way
+	static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	// joins the sets of a and b, the smallest index becomes the root
+	static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a < b) {
+			parent[b] = a;
+		} else if (b < a) {
+			parent[a] = b;
+		}
+	}
+
+	// ChargeTask computes the charge of the cells in rows r0 (inclusive) to r1 (exclusive).
+	static final class ChargeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Topology t;
+		final float[] mx, my, mz;
+		final int r0, r1;
+
+		ChargeTask(Topology t, float[] mx, float[] my, float[] mz, int r0, int r1) {
+			this.t = t;
+			this.mx = mx;
+			this.my = my;
+			this.mz = mz;
+			this.r0 = r0;
+			this.r1 = r1;
+		}
+
+		protected void compute() {
+			int sx = t.sizeX, sy = t.sizeY;
+			if (r1 - r0 > 1 && (r1 - r0) * sx > GRAIN) {
+				int mid = (r0 + r1) >>> 1;
+				invokeAll(new ChargeTask(t, mx, my, mz, r0, mid), new ChargeTask(t, mx, my, mz, mid, r1));
+				return;
+			}
+			for(int r=r0; r<r1; r++) {
+				if (r % sy == sy - 1) {
+					continue; // no plaquette above the last row
+				}
+				int i = r * sx;
+				for(int x=0; x<sx-1; x++) {
+					int a = i + x, b = a + 1, c = b + sx, d = a + sx;
+					t.q[a] = (float)((omega(a, b, c) + omega(a, c, d)) / (4 * Math.PI));
+				}
+			}
+		}
+
+		// solid angle of the spherical triangle of the (normalized) magnetization in cells a, b, c,
+		// 0 if one of them is vacuum.
+		double omega(int a, int b, int c) {
+			double ax = mx[a], ay = my[a], az = mz[a];
+			double bx = mx[b], by = my[b], bz = mz[b];
+			double cx = mx[c], cy = my[c], cz = mz[c];
+			double na = Math.sqrt(ax*ax + ay*ay + az*az);
+			double nb = Math.sqrt(bx*bx + by*by + bz*bz);
+			double nc = Math.sqrt(cx*cx + cy*cy + cz*cz);
+			if (na == 0 || nb == 0 || nc == 0) {
+				return 0;
+			}
+			double triple = ax * (by*cz - bz*cy) + ay * (bz*cx - bx*cz) + az * (bx*cy - by*cx);
+			double ab = ax*bx + ay*by + az*bz;
+			double bc = bx*cx + by*cy + bz*cz;
+			double ca = cx*ax + cy*ay + cz*az;
+			return 2 * Math.atan2(triple / (na * nb * nc), 1 + ab / (na * nb) + bc / (nb * nc) + ca / (nc * na));
+		}
+	}
+
+	// LabelTask runs union-find within strips of rows, in parallel.
+	// Unions stay inside a strip, so strips do not touch each other's cells.
+	static final class LabelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Topology t;
+		final byte[] cls;
+		final int[] parent;
+		final int r0, r1, strip;
+
+		LabelTask(Topology t, byte[] cls, int[] parent, int r0, int r1, int strip) {
+			this.t = t;
+			this.cls = cls;
+			this.parent = parent;
+			this.r0 = r0;
+			this.r1 = r1;
+			this.strip = strip;
+		}
+
+		protected void compute() {
+			if (r1 - r0 > strip) {
+				int mid = r0 + ((r1 - r0) / strip / 2) * strip;
+				if (mid == r0) {
+					mid += strip;
+				}
+				invokeAll(new LabelTask(t, cls, parent, r0, mid, strip), new LabelTask(t, cls, parent, mid, r1, strip));
+				return;
+			}
+			int sx = t.sizeX, sy = t.sizeY;
+			for(int r=r0; r<r1; r++) {
+				boolean above = r > r0 && r % sy != 0;
+				int i = r * sx;
+				for(int x=0; x<sx; x++) {
+					int c = i + x;
+					parent[c] = c;
+					byte k = cls[c];
+					if (k == 0) {
+						continue;
+					}
+					if (x > 0 && cls[c-1] == k) {
+						union(parent, c, c-1);
+					}
+					if (above && cls[c-sx] == k) {
+						union(parent, c, c-sx);
+					}
+				}
+			}
+		}
+	}
+
+	// SumTask accumulates the statistics of each object over strips, keyed by root.
+	// After merging, roots are final, so finds only read.
+	static final class SumTask extends RecursiveTask<HashMap<Integer, Domain>> {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Topology t;
+		final byte[] cls;
+		final int[] parent;
+		final boolean chargeWeighted;
+		final int r0, r1, strip;
+
+		SumTask(Topology t, byte[] cls, int[] parent, boolean chargeWeighted, int r0, int r1, int strip) {
+			this.t = t;
+			this.cls = cls;
+			this.parent = parent;
+			this.chargeWeighted = chargeWeighted;
+			this.r0 = r0;
+			this.r1 = r1;
+			this.strip = strip;
+		}
+
+		protected HashMap<Integer, Domain> compute() {
+			if (r1 - r0 > strip) {
+				int mid = r0 + ((r1 - r0) / strip / 2) * strip;
+				if (mid == r0) {
+					mid += strip;
+				}
+				SumTask a = new SumTask(t, cls, parent, chargeWeighted, r0, mid, strip);
+				a.fork();
+				HashMap<Integer, Domain> b = new SumTask(t, cls, parent, chargeWeighted, mid, r1, strip).compute();
+				return merge(a.join(), b);
+			}
+			HashMap<Integer, Domain> map = new HashMap<Integer, Domain>();
+			int sx = t.sizeX, sy = t.sizeY;
+			int last = -1;   // root of the previous cell
+			Domain d = null; // its domain
+			for(int r=r0; r<r1; r++) {
+				int i = r * sx;
+				int y = r % sy;
+				for(int x=0; x<sx; x++) {
+					int c = i + x;
+					if (cls[c] == 0) {
+						continue;
+					}
+					int root = root(c);
+					if (root != last) {
+						d = map.get(root);
+						if (d == null) {
+							d = new Domain();
+							d.layer = r / sy;
+							d.sign = cls[c];
+							map.put(root, d);
+						}
+						last = root;
+					}
+					double q = t.q[c];
+					double w = chargeWeighted ? q : 1;
+					d.cells++;
+					d.charge += q;
+					d.x += w * x;
+					d.y += w * y;
+				}
+			}
+			return map;
+		}
+
+		// root of c, without path compression (other tasks read concurrently)
+		int root(int c) {
+			while (parent[c] != c) {
+				c = parent[c];
+			}
+			return c;
+		}
+
+		static HashMap<Integer, Domain> merge(HashMap<Integer, Domain> a, HashMap<Integer, Domain> b) {
+			for(Integer root: b.keySet()) {
+				Domain db = b.get(root);
+				Domain da = a.get(root);
+				if (da == null) {
+					a.put(root, db);
+				} else {
+					da.cells += db.cells;
+					da.charge += db.charge;
+					da.x += db.x;
+					da.y += db.y;
+				}
+			}
+			return a;
+		}
+	}
+
+	// main for testing: for all OVF2 files in the directory passed as first arg,
+	// in time order, print time and total charge per layer, then the cores
+	// (charge threshold given as second arg, default 1e-3).
+	public static void main(String[] args) throws IOException {
+		final double threshold = args.length > 1 ? Double.parseDouble(args[1]) : 1e-3;
+		new Batch().run(Batch.timeOrder(new File(args[0])), new Batch.Consumer() {
+			public void frame(int i, File file, OVF2 m) {
+				Topology t = new Topology(m);
+				StringBuilder line = new StringBuilder();
+				line.append(m.time);
+				for(int z=0; z<m.sizeZ(); z++) {
+					line.append('\t').append(t.charge(z));
+				}
+				System.out.println(line);
+				for(Domain d: t.cores(threshold)) {
+					System.out.println("#\t" + d);
+				}
+			}
+		});
+	}
+}
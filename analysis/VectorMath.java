@@ -0,0 +1,124 @@
+package analysis;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// VectorMath implements FieldMath with the Vector API (jdk.incubator.vector),
+// using the widest SIMD registers of the CPU.
+// Each kernel processes whole vectors, the remaining cells go through ScalarMath.
+// Compiling and running this class needs --add-modules jdk.incubator.vector,
+// FieldMath.get() falls back to ScalarMath without it.
+final class VectorMath extends ScalarMath {
+
+	static final VectorSpecies<Float> S = FloatVector.SPECIES_PREFERRED;
+
+	VectorMath() {
+		if (S.length() < 4) {
+			throw new UnsupportedOperationException("no SIMD: " + S);
+		}
+	}
+
+	public String toString() {
+		return "vector(" + S.length() + "x float)";
+	}
+
+	void norm(float[] x, float[] y, float[] z, float[] dst, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector vx = FloatVector.fromArray(S, x, i);
+			FloatVector vy = FloatVector.fromArray(S, y, i);
+			FloatVector vz = FloatVector.fromArray(S, z, i);
+			vx.mul(vx).add(vy.mul(vy)).add(vz.mul(vz)).lanewise(VectorOperators.SQRT).intoArray(dst, i);
+		}
+		super.norm(x, y, z, dst, i, to);
+	}
+
+	void dot(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz, float[] dst, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector d = FloatVector.fromArray(S, ax, i).mul(FloatVector.fromArray(S, bx, i));
+			d = FloatVector.fromArray(S, ay, i).fma(FloatVector.fromArray(S, by, i), d);
+			d = FloatVector.fromArray(S, az, i).fma(FloatVector.fromArray(S, bz, i), d);
+			d.intoArray(dst, i);
+		}
+		super.dot(ax, ay, az, bx, by, bz, dst, i, to);
+	}
+
+	void cross(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz,
+	           float[] dx, float[] dy, float[] dz, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector vax = FloatVector.fromArray(S, ax, i);
+			FloatVector vay = FloatVector.fromArray(S, ay, i);
+			FloatVector vaz = FloatVector.fromArray(S, az, i);
+			FloatVector vbx = FloatVector.fromArray(S, bx, i);
+			FloatVector vby = FloatVector.fromArray(S, by, i);
+			FloatVector vbz = FloatVector.fromArray(S, bz, i);
+			vay.mul(vbz).sub(vaz.mul(vby)).intoArray(dx, i);
+			vaz.mul(vbx).sub(vax.mul(vbz)).intoArray(dy, i);
+			vax.mul(vby).sub(vay.mul(vbx)).intoArray(dz, i);
+		}
+		super.cross(ax, ay, az, bx, by, bz, dx, dy, dz, i, to);
+	}
+
+	void normalizedCross(float[] ax, float[] ay, float[] az, float[] bx, float[] by, float[] bz,
+	                     float[] dx, float[] dy, float[] dz, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector vax = FloatVector.fromArray(S, ax, i);
+			FloatVector vay = FloatVector.fromArray(S, ay, i);
+			FloatVector vaz = FloatVector.fromArray(S, az, i);
+			FloatVector vbx = FloatVector.fromArray(S, bx, i);
+			FloatVector vby = FloatVector.fromArray(S, by, i);
+			FloatVector vbz = FloatVector.fromArray(S, bz, i);
+			FloatVector x = vay.mul(vbz).sub(vaz.mul(vby));
+			FloatVector y = vaz.mul(vbx).sub(vax.mul(vbz));
+			FloatVector z = vax.mul(vby).sub(vay.mul(vbx));
+			FloatVector inv = inverseNorm(x, y, z);
+			x.mul(inv).intoArray(dx, i);
+			y.mul(inv).intoArray(dy, i);
+			z.mul(inv).intoArray(dz, i);
+		}
+		super.normalizedCross(ax, ay, az, bx, by, bz, dx, dy, dz, i, to);
+	}
+
+	void normalize(float[] x, float[] y, float[] z, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector vx = FloatVector.fromArray(S, x, i);
+			FloatVector vy = FloatVector.fromArray(S, y, i);
+			FloatVector vz = FloatVector.fromArray(S, z, i);
+			FloatVector inv = inverseNorm(vx, vy, vz);
+			vx.mul(inv).intoArray(x, i);
+			vy.mul(inv).intoArray(y, i);
+			vz.mul(inv).intoArray(z, i);
+		}
+		super.normalize(x, y, z, i, to);
+	}
+
+	// 1/|(x, y, z)|, 0 for zero vectors.
+	static FloatVector inverseNorm(FloatVector x, FloatVector y, FloatVector z) {
+		FloatVector n2 = x.fma(x, y.fma(y, z.mul(z)));
+		VectorMask<Float> zero = n2.compare(VectorOperators.EQ, 0);
+		FloatVector inv = FloatVector.broadcast(S, 1).div(n2.lanewise(VectorOperators.SQRT));
+		return inv.blend(0, zero);
+	}
+
+	void scale(float[] a, float s, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector.fromArray(S, a, i).mul(s).intoArray(a, i);
+		}
+		super.scale(a, s, i, to);
+	}
+
+	void sub(float[] a, float[] b, float[] dst, int from, int to) {
+		int i = from;
+		for(int end=from+S.loopBound(to-from); i<end; i+=S.length()) {
+			FloatVector.fromArray(S, a, i).sub(FloatVector.fromArray(S, b, i)).intoArray(dst, i);
+		}
+		super.sub(a, b, dst, i, to);
+	}
+}
@@ -0,0 +1,176 @@
+package ovf2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Batch loads many OVF2 files concurrently and delivers them, in order, to a Consumer.
+// Each file is first pulled into the page cache by one of many I/O threads,
+// then decoded by one of a few decode threads.
+// The decode threads form a ForkJoinPool of their own, so that the parallel
+// decoding of a single file (DecodeTask, ChunkCache) also runs on them:
+// decodeThreads bounds the CPU used for decoding, not only the number of files decoded at once.
+// The number of frames in flight is bounded by a memory budget:
+// no new file is started while the frames loaded but not yet consumed
+// would exceed the budget.
+public final class Batch {
+
+	// Consumer receives the loaded frames, in the order of the input files.
+	public interface Consumer {
+		void frame(int i, File file, OVF2 data) throws IOException;
+	}
+
+	final int ioThreads, decodeThreads;
+	final long budget; // maximum bytes of frames in flight
+
+	// Constructs a Batch with the given number of threads and memory budget (bytes).
+	public Batch(int ioThreads, int decodeThreads, long budget) {
+		this.ioThreads = ioThreads;
+		this.decodeThreads = decodeThreads;
+		this.budget = budget;
+	}
+
+	// Constructs a Batch with threads suited for this machine and the given memory budget (bytes).
+	public Batch(long budget) {
+		this(4 * Runtime.getRuntime().availableProcessors(),
+		     Runtime.getRuntime().availableProcessors(),
+		     budget);
+	}
+
+	// Constructs a Batch suited for this machine, using at most a quarter of the maximum heap.
+	public Batch() {
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	// Loads files and passes them to c, in order, on the calling thread.
+	// Stops at the first error, which is re-thrown.
+	public void run(List<File> files, Consumer c) throws IOException {
+		ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+		// tasks forked by DECODE go to the pool they run in, rather than the common pool.
+		ExecutorService decode = new ForkJoinPool(decodeThreads);
+		ArrayDeque<CompletableFuture<OVF2>> pending = new ArrayDeque<CompletableFuture<OVF2>>();
+		ArrayDeque<Long> pendingBytes = new ArrayDeque<Long>();
+		long inFlight = 0; // bytes of pending frames
+		int next = 0;      // index of next frame to consume
+		try {
+			for(File f: files) {
+				// the file size bounds the decoded size of binary files,
+				// and text files are larger still.
+				long bytes = f.length();
+				while (!pending.isEmpty() && inFlight + bytes > budget) {
+					c.frame(next, files.get(next), get(pending.removeFirst()));
+					inFlight -= pendingBytes.removeFirst();
+					next++;
+				}
+				pending.addLast(CompletableFuture.supplyAsync(new Fetch(f), io).thenApplyAsync(DECODE, decode));
+				pendingBytes.addLast(bytes);
+				inFlight += bytes;
+			}
+			while (!pending.isEmpty()) {
+				c.frame(next, files.get(next), get(pending.removeFirst()));
+				next++;
+			}
+		} finally {
+			for(CompletableFuture<OVF2> p: pending) {
+				p.cancel(false);
+			}
+			io.shutdownNow();
+			decode.shutdownNow();
+		}
+	}
+
+	// waits for f and returns its result, unwrapping I/O errors.
+	static OVF2 get(CompletableFuture<OVF2> f) throws IOException {
+		try {
+			return f.get();
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException)(cause)).getCause();
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	// Fetch maps a file and loads it into physical memory (page cache),
+	// so that decoding does not block on the disk.
+	static final class Fetch implements Supplier<File> {
+		final File file;
+		Fetch(File file) {
+			this.file = file;
+		}
+		public File get() {
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					FileChannel ch = in.getChannel();
+					long size = ch.size();
+					for (long off=0; off<size; off+=OVF2.MAX_MAP) {
+						ch.map(FileChannel.MapMode.READ_ONLY, off, Math.min(OVF2.MAX_MAP, size - off)).load();
+					}
+				} finally {
+					in.close();
+				}
+				return file;
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// DECODE reads a fetched file.
+	static final Function<File, OVF2> DECODE = new Function<File, OVF2>() {
+		public OVF2 apply(File file) {
+			try {
+				return OVF2.read(file);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	};
+
+	// Returns the .ovf files in dir, sorted by simulation time.
+	// Headers are taken from the directory's Index.
+	public static List<File> timeOrder(File dir) throws IOException {
+		Index index = Index.open(dir);
+		List<Header> headers = index.scan();
+		index.save();
+		Collections.sort(headers, new Comparator<Header>() {
+			public int compare(Header a, Header b) {
+				return Double.compare(a.time, b.time);
+			}
+		});
+		ArrayList<File> files = new ArrayList<File>();
+		for(Header h: headers) {
+			files.add(h.file);
+		}
+		return files;
+	}
+
+	// main for testing: load all frames in the directories passed as args.
+	public static void main(String[] args) throws IOException {
+		for(String arg: args) {
+			new Batch().run(timeOrder(new File(arg)), new Consumer() {
+				public void frame(int i, File file, OVF2 data) {
+					System.out.println(i + "\t" + file + "\t" + data);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package ovf2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+// BufferStorage keeps values outside of the Java heap, in direct or memory-mapped buffers.
+// A single buffer can hold at most 2GB, so values are spread over chunks of CHUNK floats.
+// Component c of cell i is found at float position c*cStride + i*iStride.
+public final class BufferStorage extends Storage {
+
+	static final int SHIFT = 28;         // log2(CHUNK)
+	static final int CHUNK = 1 << SHIFT; // floats per buffer
+	static final int MASK = CHUNK - 1;
+
+	final FloatBuffer[] chunk;
+	final int nComp, len;
+	final long cStride, iStride;
+
+	private BufferStorage(FloatBuffer[] chunk, int nComp, int len, long cStride, long iStride) {
+		this.chunk = chunk;
+		this.nComp = nComp;
+		this.len = len;
+		this.cStride = cStride;
+		this.iStride = iStride;
+	}
+
+	// allocates zero-valued, direct (off-heap) storage.
+	// Each component is contiguous.
+	public static BufferStorage allocate(int nComp, int len) {
+		long n = (long)(nComp) * len;
+		FloatBuffer[] chunk = new FloatBuffer[nChunks(n)];
+		for(int k=0; k<chunk.length; k++) {
+			int size = (int)(Math.min(CHUNK, n - (long)(k) * CHUNK));
+			chunk[k] = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		return new BufferStorage(chunk, nComp, len, len, 1);
+	}
+
+	// maps nComp*len little-endian floats starting at offset in ch, read-only.
+	// Components are interleaved, as in the OVF2 binary 4 data section.
+	// The mapping stays valid after ch is closed.
+	public static BufferStorage map(FileChannel ch, long offset, int nComp, int len) throws IOException {
+		long n = (long)(nComp) * len;
+		FloatBuffer[] chunk = new FloatBuffer[nChunks(n)];
+		for(int k=0; k<chunk.length; k++) {
+			long size = Math.min(CHUNK, n - (long)(k) * CHUNK);
+			chunk[k] = ch.map(FileChannel.MapMode.READ_ONLY, offset + 4L * k * CHUNK, 4 * size).
+			           order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+		return new BufferStorage(chunk, nComp, len, 1, nComp);
+	}
+
+	static int nChunks(long n) {
+		return (int)((n + CHUNK - 1) >>> SHIFT);
+	}
+
+	public int nComp() {
+		return nComp;
+	}
+
+	public int len() {
+		return len;
+	}
+
+	public float get(int c, int i) {
+		long p = c * cStride + i * iStride;
+		return chunk[(int)(p >>> SHIFT)].get((int)(p) & MASK);
+	}
+
+	// throws ReadOnlyBufferException for mapped storage
+	public void set(int c, int i, float v) {
+		long p = c * cStride + i * iStride;
+		chunk[(int)(p >>> SHIFT)].put((int)(p) & MASK, v);
+	}
+
+	public void get(int c, int i, float[] dst, int off, int n) {
+		if (iStride != 1) {
+			super.get(c, i, dst, off, n);
+			return;
+		}
+		long p = c * cStride + i;
+		while (n > 0) {
+			int k = (int)(p & MASK);
+			int m = Math.min(n, CHUNK - k);
+			chunk[(int)(p >>> SHIFT)].get(k, dst, off, m);
+			p += m;
+			off += m;
+			n -= m;
+		}
+	}
+
+	public void set(int c, int i, float[] src, int off, int n) {
+		if (iStride != 1) {
+			super.set(c, i, src, off, n);
+			return;
+		}
+		long p = c * cStride + i;
+		while (n > 0) {
+			int k = (int)(p & MASK);
+			int m = Math.min(n, CHUNK - k);
+			chunk[(int)(p >>> SHIFT)].put(k, src, off, m);
+			p += m;
+			off += m;
+			n -= m;
+		}
+	}
+}
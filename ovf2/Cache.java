@@ -0,0 +1,155 @@
+package ovf2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Cache keeps recently loaded OVF2 files in memory, so that re-reading them is instant.
+// Entries are keyed by path and only valid while the file's size and modification time
+// are unchanged. The cache holds at most budget bytes of data strongly;
+// least recently used entries beyond that are only held softly,
+// so they may still be hit until the garbage collector needs the memory.
+// Cached OVF2s are shared and must not be modified.
+public final class Cache {
+
+	private static Cache shared;
+
+	long budget;  // maximum bytes held strongly
+	long bytes;   // bytes currently held strongly
+	long hits, softHits, misses, evictions;
+
+	final LinkedHashMap<String, Entry> lru;                // strongly held, in access order
+	final HashMap<String, SoftReference<Entry>> evicted;   // softly held
+
+	static final class Entry {
+		long size, mtime; // of the file when it was loaded
+		OVF2 data;
+		long bytes() {
+			return data.data.bytes();
+		}
+	}
+
+	// Constructs a cache holding at most budget bytes strongly.
+	public Cache(long budget) {
+		this.budget = budget;
+		this.lru = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.evicted = new HashMap<String, SoftReference<Entry>>();
+	}
+
+	// Returns the process-wide cache, with a budget of a quarter of the maximum heap.
+	public static synchronized Cache shared() {
+		if (shared == null) {
+			shared = new Cache(Runtime.getRuntime().maxMemory() / 4);
+		}
+		return shared;
+	}
+
+	// Returns the contents of file, from the cache if possible.
+	public OVF2 get(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		long size = file.length();
+		long mtime = file.lastModified();
+
+		synchronized(this) {
+			Entry e = lru.get(key);
+			if (e != null && e.size == size && e.mtime == mtime) {
+				hits++;
+				return e.data;
+			}
+			SoftReference<Entry> ref = evicted.remove(key);
+			e = (ref == null) ? null : ref.get();
+			if (e != null && e.size == size && e.mtime == mtime) {
+				softHits++;
+				put(key, e);
+				return e.data;
+			}
+			misses++;
+		}
+
+		// load outside of the lock, so other threads can hit in the meanwhile.
+		Entry e = new Entry();
+		e.size = size;
+		e.mtime = mtime;
+		e.data = OVF2.read(file);
+		synchronized(this) {
+			put(key, e);
+		}
+		return e.data;
+	}
+
+	// adds e as most recently used, then evicts least recently used entries over budget.
+	private void put(String key, Entry e) {
+		Entry old = lru.put(key, e);
+		if (old != null) {
+			bytes -= old.bytes();
+		}
+		bytes += e.bytes();
+		evict();
+	}
+
+	// moves least recently used entries to the soft map until within budget.
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = lru.entrySet().iterator();
+		while (bytes > budget && it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			it.remove();
+			bytes -= e.getValue().bytes();
+			evicted.put(e.getKey(), new SoftReference<Entry>(e.getValue()));
+			evictions++;
+		}
+		// drop references cleared by the garbage collector
+		Iterator<SoftReference<Entry>> s = evicted.values().iterator();
+		while (s.hasNext()) {
+			if (s.next().get() == null) {
+				s.remove();
+			}
+		}
+	}
+
+	// Sets the maximum number of bytes held strongly, evicting entries if needed.
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		evict();
+	}
+
+	// Removes all entries, strong and soft.
+	public synchronized void clear() {
+		lru.clear();
+		evicted.clear();
+		bytes = 0;
+	}
+
+	// number of requests answered from strongly held entries
+	public synchronized long hits() {
+		return hits;
+	}
+
+	// number of requests answered from softly held (evicted but not collected) entries
+	public synchronized long softHits() {
+		return softHits;
+	}
+
+	// number of requests that had to read the file
+	public synchronized long misses() {
+		return misses;
+	}
+
+	// number of entries moved out of the budget
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	// number of bytes held strongly
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public synchronized String toString() {
+		return "Cache " + lru.size() + " entries, " + bytes + "/" + budget + " bytes, " +
+		       hits + " hits, " + softHits + " soft hits, " + misses + " misses, " + evictions + " evictions";
+	}
+}
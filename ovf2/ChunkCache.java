@@ -0,0 +1,338 @@
+package ovf2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// ChunkCache is a compact companion format for OVF2 files, stored next to the OVF2 file
+// with suffix SUFFIX (e.g.: m000001.ovf -> m000001.ovfc).
+// The data is split into chunks of whole rows, stored component by component,
+// optionally delta-encoded and Deflate-compressed. An offset table allows
+// reading any chunk independently, and full loads decode chunks in parallel.
+// A cache records the size and modification time of its source file,
+// and is only used while they match. OVF2.read(File) prefers a fresh cache.
+// Caches are written to a temporary file renamed into place, so a partially
+// written cache is never picked up.
+//
+// Layout (big-endian):
+// 	int MAGIC, int VERSION, long source size, long source mtime,
+// 	Header (see Header.store), int codec, int rowsPerChunk, int nChunks,
+// 	long[nChunks+1] chunk offsets from the start of the file,
+// 	chunks.
+public final class ChunkCache {
+
+	public static final String SUFFIX = "c";
+	static final int MAGIC = 0x4f564643; // "OVFC"
+	static final int VERSION = 1;
+	static final int CHUNK_BYTES = 1 << 20; // approximate uncompressed bytes per chunk
+
+	// codecs
+	public static final int RAW = 0;     // uncompressed float bits
+	public static final int DEFLATE = 1; // Deflate-compressed float bits
+	public static final int DELTA = 2;   // differences between neighboring float bits, split into byte planes, Deflate-compressed
+
+	final File file;
+	final Header header;
+	final int codec, rowsPerChunk;
+	final long[] offset;
+
+	private ChunkCache(File file, Header header, int codec, int rowsPerChunk, long[] offset) {
+		this.file = file;
+		this.header = header;
+		this.codec = codec;
+		this.rowsPerChunk = rowsPerChunk;
+		this.offset = offset;
+	}
+
+	// companion cache file of an OVF2 file
+	public static File companion(File source) {
+		return new File(source.getPath() + SUFFIX);
+	}
+
+	// Opens the cache of source, or returns null if there is none or it is stale or unreadable,
+	// including when its offset table is inconsistent with its length.
+	public static ChunkCache open(File source) {
+		File file = companion(source);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+					return null;
+				}
+				if (raf.readLong() != source.length() || raf.readLong() != source.lastModified()) {
+					return null;
+				}
+				Header h = Header.load(raf);
+				h.file = source;
+				int codec = raf.readInt();
+				int rowsPerChunk = raf.readInt();
+				int nChunks = raf.readInt();
+				if (codec < RAW || codec > DELTA || rowsPerChunk <= 0 ||
+				        nChunks != (h.sizeY * h.sizeZ + rowsPerChunk - 1) / rowsPerChunk) {
+					return null;
+				}
+				long[] offset = new long[nChunks + 1];
+				for(int k=0; k<offset.length; k++) {
+					offset[k] = raf.readLong();
+				}
+				// chunks follow the table, in order, and end within the file
+				long prev = raf.getFilePointer();
+				for(long o: offset) {
+					if (o < prev) {
+						return null;
+					}
+					prev = o;
+				}
+				if (prev > raf.length()) {
+					return null;
+				}
+				return new ChunkCache(file, h, codec, rowsPerChunk, offset);
+			} finally {
+				raf.close();
+			}
+		} catch(IOException e) {
+			return null;
+		}
+	}
+
+	// Writes the cache for source, using codec RAW, DEFLATE or DELTA.
+	// The data is parsed from source itself, never from an existing cache.
+	// The cache is replaced atomically, so concurrent readers see either the old cache or the new one.
+	public static void write(File source, int codec) throws IOException {
+		// recorded before parsing: if source changes meanwhile, the cache is stale, not wrong.
+		long size = source.length();
+		long mtime = source.lastModified();
+		Header h = Header.read(source);
+		OVF2 f = OVF2.parse(source, false);
+		int rowBytes = 4 * f.nComp() * f.sizeX;
+		int nRows = f.sizeY * f.sizeZ;
+		int rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+		int nChunks = (nRows + rowsPerChunk - 1) / rowsPerChunk;
+		long[] offset = new long[nChunks + 1];
+
+		File file = companion(source);
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeLong(size);
+			raf.writeLong(mtime);
+			h.store(raf);
+			raf.writeInt(codec);
+			raf.writeInt(rowsPerChunk);
+			raf.writeInt(nChunks);
+			long table = raf.getFilePointer();
+			raf.seek(table + 8L * offset.length);
+
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			for(int k=0; k<nChunks; k++) {
+				offset[k] = raf.getFilePointer();
+				int r0 = k * rowsPerChunk;
+				int r1 = Math.min(nRows, r0 + rowsPerChunk);
+				raf.write(encode(f, r0 * f.sizeX, r1 * f.sizeX, codec, deflater));
+			}
+			offset[nChunks] = raf.getFilePointer();
+			deflater.end();
+
+			raf.seek(table);
+			for(long o: offset) {
+				raf.writeLong(o);
+			}
+		} finally {
+			raf.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("cannot rename " + tmp);
+		}
+	}
+
+	// encodes cells i0 to i1 of f, component by component.
+	static byte[] encode(OVF2 f, int i0, int i1, int codec, Deflater deflater) {
+		int n = i1 - i0;
+		int nComp = f.nComp();
+		float[][] comp = new float[nComp][n];
+		f.data.get(i0, comp, 0, n);
+		byte[] raw = new byte[4 * n * nComp];
+		if (codec != DELTA) {
+			FloatBuffer buf = ByteBuffer.wrap(raw).asFloatBuffer();
+			for(int c=0; c<nComp; c++) {
+				buf.put(comp[c]);
+			}
+		} else {
+			int plane = n * nComp;
+			for(int c=0; c<nComp; c++) {
+				int prev = 0;
+				for(int i=0; i<n; i++) {
+					int bits = Float.floatToRawIntBits(comp[c][i]);
+					int d = bits - prev;
+					prev = bits;
+					// byte planes: most significant bytes of all values first
+					int p = c * n + i;
+					raw[p] = (byte)(d >>> 24);
+					raw[plane + p] = (byte)(d >>> 16);
+					raw[2*plane + p] = (byte)(d >>> 8);
+					raw[3*plane + p] = (byte)(d);
+				}
+			}
+		}
+		if (codec == RAW) {
+			return raw;
+		}
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+		byte[] buf = new byte[1 << 16];
+		while (!deflater.finished()) {
+			int m = deflater.deflate(buf);
+			out.write(buf, 0, m);
+		}
+		return out.toByteArray();
+	}
+
+	// number of chunks
+	public int nChunks() {
+		return offset.length - 1;
+	}
+
+	// Decodes chunk k into the corresponding cells of dst, which has the size of the source.
+	public void readChunk(FileChannel ch, int k, Storage dst) throws IOException {
+		int nRows = header.sizeY * header.sizeZ;
+		int i0 = k * rowsPerChunk * header.sizeX;
+		int i1 = Math.min(nRows, (k + 1) * rowsPerChunk) * header.sizeX;
+		int n = i1 - i0;
+		int nComp = header.nComp;
+
+		int rawLen = 4 * n * nComp;
+		ByteBuffer stored = ByteBuffer.allocate((int)(offset[k+1] - offset[k]));
+		while (stored.hasRemaining()) {
+			if (ch.read(stored, offset[k] + stored.position()) < 0) {
+				throw new IOException("unexpected EOF in " + file);
+			}
+		}
+		byte[] raw = stored.array();
+		if (codec == RAW && raw.length != rawLen) {
+			throw new IOException("chunk " + k + " has " + raw.length + " bytes, want " + rawLen + " in " + file);
+		}
+		if (codec != RAW) {
+			raw = new byte[rawLen];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(stored.array());
+				int m = 0;
+				while (!inflater.finished()) {
+					int got = inflater.inflate(raw, m, raw.length - m);
+					if (got == 0 && !inflater.finished()) {
+						// needs input (truncated), a dictionary, or more room than the chunk's cells
+						throw new IOException("corrupt chunk " + k + " in " + file);
+					}
+					m += got;
+				}
+				if (m != rawLen) {
+					throw new IOException("chunk " + k + " inflates to " + m + " bytes, want " + rawLen + " in " + file);
+				}
+				if (inflater.getRemaining() != 0) {
+					throw new IOException("trailing bytes after chunk " + k + " in " + file);
+				}
+			} catch(DataFormatException e) {
+				throw new IOException("corrupt chunk in " + file, e);
+			} finally {
+				inflater.end();
+			}
+		}
+
+		float[] comp = new float[n];
+		if (codec != DELTA) {
+			FloatBuffer buf = ByteBuffer.wrap(raw).asFloatBuffer();
+			for(int c=0; c<nComp; c++) {
+				buf.get(comp);
+				dst.set(c, i0, comp, 0, n);
+			}
+			return;
+		}
+		int plane = n * nComp;
+		for(int c=0; c<nComp; c++) {
+			int prev = 0;
+			for(int i=0; i<n; i++) {
+				int p = c * n + i;
+				int bits = prev + (((raw[p] & 0xff) << 24) | ((raw[plane + p] & 0xff) << 16) |
+				                   ((raw[2*plane + p] & 0xff) << 8) | (raw[3*plane + p] & 0xff));
+				prev = bits;
+				comp[i] = Float.intBitsToFloat(bits);
+			}
+			dst.set(c, i0, comp, 0, n);
+		}
+	}
+
+	// Decodes all chunks into dst, in parallel.
+	void readAll(Storage dst) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			new ChunkTask(raf.getChannel(), dst, 0, nChunks()).invoke();
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Reads the cache into a new OVF2 with the given storage.
+	OVF2 read(boolean direct) throws IOException {
+		Storage data = direct ? BufferStorage.allocate(header.nComp, header.len()) : new HeapStorage(header.nComp, header.len());
+		readAll(data);
+		return header.newOVF2(data);
+	}
+
+	// ChunkTask decodes chunks k0 to k1, splitting the range in halves decoded in parallel.
+	final class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+		final FileChannel ch;
+		final Storage dst;
+		final int k0, k1;
+
+		ChunkTask(FileChannel ch, Storage dst, int k0, int k1) {
+			this.ch = ch;
+			this.dst = dst;
+			this.k0 = k0;
+			this.k1 = k1;
+		}
+
+		protected void compute() {
+			if (k1 - k0 > 1) {
+				int mid = (k0 + k1) >>> 1;
+				invokeAll(new ChunkTask(ch, dst, k0, mid), new ChunkTask(ch, dst, mid, k1));
+				return;
+			}
+			try {
+				for(int k=k0; k<k1; k++) {
+					readChunk(ch, k, dst);
+				}
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// main for testing: write DELTA caches for the files passed as args.
+	public static void main(String[] args) throws IOException {
+		for(String arg: args) {
+			File f = new File(arg);
+			write(f, DELTA);
+			System.out.println(companion(f) + ": " + companion(f).length() + " bytes, source " + f.length() + " bytes");
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package ovf2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveAction;
+
+// DecodeTask decodes rows r0 (inclusive) to r1 (exclusive) of binary 4 or 8 data into a Storage.
+// Binary 8 values are rounded to float.
+// A row holds sizeX cells with all components interleaved, as on disk.
+// Row r covers y = r % sizeY, z = r / sizeY, so row ranges split the grid along z, then y.
+// Large ranges are split in halves and decoded in parallel,
+// each half writing to its own cells of the destination.
+final class DecodeTask extends RecursiveAction {
+
+	static final long GRAIN = 1 << 20; // do not split ranges of fewer bytes
+	private static final long serialVersionUID = 1L; // sigh
+
+	final FileChannel ch;
+	final long offset; // position of the first value (after the control number)
+	final int format; // Header.BINARY_4 or BINARY_8
+	final Storage dst;
+	final int sizeX;
+	final int r0, r1;
+
+	DecodeTask(FileChannel ch, long offset, int format, Storage dst, int sizeX, int r0, int r1) {
+		this.ch = ch;
+		this.offset = offset;
+		this.format = format;
+		this.dst = dst;
+		this.sizeX = sizeX;
+		this.r0 = r0;
+		this.r1 = r1;
+	}
+
+	// Decodes all rows of dst in parallel.
+	static void decode(FileChannel ch, long offset, int format, Storage dst, int sizeX) throws IOException {
+		try {
+			new DecodeTask(ch, offset, format, dst, sizeX, 0, dst.len() / sizeX).invoke();
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	protected void compute() {
+		long rowBytes = (long)(format) * dst.nComp() * sizeX;
+		if (r1 - r0 > 1 && (r1 - r0) * rowBytes > GRAIN) {
+			int mid = (r0 + r1) >>> 1;
+			invokeAll(new DecodeTask(ch, offset, format, dst, sizeX, r0, mid),
+			          new DecodeTask(ch, offset, format, dst, sizeX, mid, r1));
+			return;
+		}
+		try {
+			decodeRows(rowBytes);
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Sequentially decodes rows r0 to r1,
+	// mapping at most OVF2.MAX_MAP bytes at a time.
+	void decodeRows(long rowBytes) throws IOException {
+		int nComp = dst.nComp();
+		float[] row = new float[nComp * sizeX];  // interleaved components, as on disk
+		double[] row8 = null;                     // same, for binary 8
+		float[] comp = new float[sizeX];         // one component of row
+		if (format == Header.BINARY_8) {
+			row8 = new double[nComp * sizeX];
+		}
+		int rowsPerMap = (int)(Math.max(1, OVF2.MAX_MAP / rowBytes));
+		for (int m0=r0; m0<r1; m0+=rowsPerMap) {
+			int m1 = Math.min(r1, m0 + rowsPerMap);
+			ByteBuffer bytes = ch.map(FileChannel.MapMode.READ_ONLY, offset + m0 * rowBytes, (m1 - m0) * rowBytes).
+			                   order(ByteOrder.LITTLE_ENDIAN);
+			FloatBuffer buf = null;
+			DoubleBuffer buf8 = null;
+			if (row8 == null) {
+				buf = bytes.asFloatBuffer();
+			} else {
+				buf8 = bytes.asDoubleBuffer();
+			}
+			for (int r=m0; r<m1; r++) {
+				if (row8 == null) {
+					buf.get(row);
+				} else {
+					buf8.get(row8);
+					for(int k=0; k<row.length; k++) {
+						row[k] = (float)(row8[k]);
+					}
+				}
+				int i0 = r * sizeX; // rows are contiguous, so this is index(0, y, z)
+				for(int c=0; c<nComp; c++) {
+					for(int x=0; x<sizeX; x++) {
+						comp[x] = row[x*nComp + c];
+					}
+					dst.set(c, i0, comp, 0, sizeX);
+				}
+			}
+		}
+	}
+}
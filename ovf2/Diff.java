@@ -0,0 +1,351 @@
+package ovf2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Diff compares OVF2 files cell by cell, e.g. to check convergence or to regression-test
+// simulations. It reports the maximum, RMS and mean absolute difference per component
+// and the cell with the largest difference.
+//
+// Binary files are streamed: blocks of rows of both files are read with positional reads
+// and compared in parallel, so memory use is a few blocks per thread, regardless of the file size.
+// Text files are read entirely.
+// With stopEarly set, a comparison stops as soon as a block exceeds maxTolerance,
+// and a directory comparison stops at the first failing pair.
+public final class Diff {
+
+	static final long GRAIN = 1 << 20; // bytes per block, and do not split ranges of fewer bytes
+
+	public double maxTolerance = Double.POSITIVE_INFINITY; // largest allowed absolute difference
+	public double rmsTolerance = Double.POSITIVE_INFINITY; // largest allowed RMS difference
+	public boolean stopEarly;                              // stop at the first difference above maxTolerance
+
+	// Result holds the comparison of two files.
+	public static final class Result {
+		public File a, b;
+		public String error;       // why the files could not be compared (missing, different size), or null
+		public int nComp;
+		public long cells;         // number of cells compared (fewer than all if stopped early)
+		public double[] max, rms, meanAbs; // per-component differences
+		public int worstComp = -1; // component and cell with the largest difference
+		public int worstX, worstY, worstZ;
+		public boolean stopped;    // stopped early, statistics cover only part of the data
+		public boolean pass;       // within tolerances
+
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			s.append(pass ? "ok  " : "FAIL").append('\t').append(a).append('\t').append(b);
+			if (error != null) {
+				return s.append('\t').append(error).toString();
+			}
+			s.append("\tmax ").append(Arrays.toString(max));
+			s.append("\trms ").append(Arrays.toString(rms));
+			s.append("\tmeanAbs ").append(Arrays.toString(meanAbs));
+			if (worstComp >= 0) {
+				s.append("\tworst ").append(worstComp).append('@').append(worstX).append(',').append(worstY).append(',').append(worstZ);
+			}
+			if (stopped) {
+				s.append("\tstopped early");
+			}
+			return s.toString();
+		}
+	}
+
+	// Compares two files.
+	public Result compare(File a, File b) throws IOException {
+		Result r = new Result();
+		r.a = a;
+		r.b = b;
+		if (!a.exists() || !b.exists()) {
+			r.error = "missing " + (a.exists() ? b : a);
+			return r;
+		}
+		Header ha = Header.read(a), hb = Header.read(b);
+		if (ha.nComp != hb.nComp || ha.sizeX != hb.sizeX || ha.sizeY != hb.sizeY || ha.sizeZ != hb.sizeZ) {
+			r.error = "size mismatch: " + ha.nComp + "x" + ha.sizeX + "x" + ha.sizeY + "x" + ha.sizeZ +
+			          " vs " + hb.nComp + "x" + hb.sizeX + "x" + hb.sizeY + "x" + hb.sizeZ;
+			return r;
+		}
+		r.nComp = ha.nComp;
+		Acc acc;
+		if (ha.format == Header.TEXT || hb.format == Header.TEXT) {
+			acc = compare(new Heap(OVF2.read(a)), new Heap(OVF2.read(b)), ha);
+		} else {
+			FileInputStream ina = new FileInputStream(a);
+			FileInputStream inb = new FileInputStream(b);
+			try {
+				OVF2.checkData(ina.getChannel(), ha);
+				OVF2.checkData(inb.getChannel(), hb);
+				acc = compare(new Binary(ina.getChannel(), ha), new Binary(inb.getChannel(), hb), ha);
+			} finally {
+				ina.close();
+				inb.close();
+			}
+		}
+		r.cells = acc.cells;
+		r.max = acc.max;
+		r.rms = new double[r.nComp];
+		r.meanAbs = new double[r.nComp];
+		for(int c=0; c<r.nComp; c++) {
+			r.rms[c] = Math.sqrt(acc.sumSq[c] / Math.max(1, acc.cells));
+			r.meanAbs[c] = acc.sumAbs[c] / Math.max(1, acc.cells);
+		}
+		if (acc.worstComp >= 0) {
+			r.worstComp = acc.worstComp;
+			r.worstX = (int)(acc.worstCell % ha.sizeX);
+			r.worstY = (int)(acc.worstCell / ha.sizeX % ha.sizeY);
+			r.worstZ = (int)(acc.worstCell / ha.sizeX / ha.sizeY);
+		}
+		r.stopped = acc.cells < ha.len();
+		r.pass = true;
+		for(int c=0; c<r.nComp; c++) {
+			if (!(r.max[c] <= maxTolerance && r.rms[c] <= rmsTolerance)) {
+				r.pass = false;
+			}
+		}
+		return r;
+	}
+
+	// Compares the OVF2 files with equal names in directories a and b,
+	// in name order. Files present in only one of them are reported as missing.
+	public List<Result> compareDirs(File a, File b) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for(File dir: new File[] {a, b}) {
+			String[] list = dir.list();
+			if (list == null) {
+				throw new IOException("cannot list " + dir);
+			}
+			for(String n: list) {
+				if (n.endsWith(".ovf") && !names.contains(n)) {
+					names.add(n);
+				}
+			}
+		}
+		String[] sorted = names.toArray(new String[0]);
+		Arrays.sort(sorted);
+		List<Result> results = new ArrayList<Result>();
+		for(String n: sorted) {
+			Result r = compare(new File(a, n), new File(b, n));
+			results.add(r);
+			if (stopEarly && !r.pass) {
+				break;
+			}
+		}
+		return results;
+	}
+
+	// compares all rows of a and b in parallel.
+	Acc compare(Rows a, Rows b, Header h) throws IOException {
+		try {
+			return new Task(this, a, b, h, new AtomicBoolean(), 0, h.sizeY * h.sizeZ).invoke();
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Acc accumulates differences over a range of rows.
+	static final class Acc {
+		long cells;
+		double[] max, sumSq, sumAbs;
+		double worst;       // largest difference over all components
+		int worstComp = -1; // its component and cell index
+		long worstCell;
+
+		Acc(int nComp) {
+			max = new double[nComp];
+			sumSq = new double[nComp];
+			sumAbs = new double[nComp];
+		}
+
+		// adds o, which covers rows after those of this Acc,
+		// so that the first worst cell is kept on a tie.
+		Acc add(Acc o) {
+			cells += o.cells;
+			for(int c=0; c<max.length; c++) {
+				max[c] = Math.max(max[c], o.max[c]);
+				sumSq[c] += o.sumSq[c];
+				sumAbs[c] += o.sumAbs[c];
+			}
+			if (o.worst > worst) {
+				worst = o.worst;
+				worstComp = o.worstComp;
+				worstCell = o.worstCell;
+			}
+			return this;
+		}
+	}
+
+	// Rows reads rows r0 to r1 of a file as doubles, components interleaved.
+	static abstract class Rows {
+		abstract void read(int r0, int r1, double[] dst) throws IOException;
+	}
+
+	// Binary reads rows with positional reads, safe for concurrent use.
+	static final class Binary extends Rows {
+		final FileChannel ch;
+		final Header h;
+
+		Binary(FileChannel ch, Header h) {
+			this.ch = ch;
+			this.h = h;
+		}
+
+		void read(int r0, int r1, double[] dst) throws IOException {
+			int n = (r1 - r0) * h.sizeX * h.nComp;
+			ByteBuffer buf = ByteBuffer.allocate(n * h.format).order(ByteOrder.LITTLE_ENDIAN);
+			OVF2.readFully(ch, buf, h.dataOffset + h.format + (long)(h.format) * r0 * h.sizeX * h.nComp);
+			buf.flip();
+			if (h.format == Header.BINARY_4) {
+				for(int i=0; i<n; i++) {
+					dst[i] = buf.getFloat(4 * i);
+				}
+			} else {
+				buf.asDoubleBuffer().get(dst, 0, n);
+			}
+		}
+	}
+
+	// Heap reads rows from a loaded OVF2.
+	static final class Heap extends Rows {
+		final OVF2 f;
+
+		Heap(OVF2 f) {
+			this.f = f;
+		}
+
+		void read(int r0, int r1, double[] dst) {
+			int nComp = f.nComp(), sx = f.sizeX();
+			float[] row = new float[sx];
+			for(int r=r0; r<r1; r++) {
+				for(int c=0; c<nComp; c++) {
+					f.data.get(c, r * sx, row, 0, sx);
+					int o = (r - r0) * sx * nComp + c;
+					for(int x=0; x<sx; x++) {
+						dst[o + x * nComp] = row[x];
+					}
+				}
+			}
+		}
+	}
+
+	// Task compares rows r0 (inclusive) to r1 (exclusive), splitting large ranges in halves.
+	static final class Task extends RecursiveTask<Acc> {
+		private static final long serialVersionUID = 1L; // sigh
+
+		final Diff d;
+		final Rows a, b;
+		final Header h;
+		final AtomicBoolean stop;
+		final int r0, r1;
+
+		Task(Diff d, Rows a, Rows b, Header h, AtomicBoolean stop, int r0, int r1) {
+			this.d = d;
+			this.a = a;
+			this.b = b;
+			this.h = h;
+			this.stop = stop;
+			this.r0 = r0;
+			this.r1 = r1;
+		}
+
+		protected Acc compute() {
+			long rowBytes = 8L * h.nComp * h.sizeX;
+			if (r1 - r0 > 1 && (r1 - r0) * rowBytes > GRAIN) {
+				int mid = (r0 + r1) >>> 1;
+				Task left = new Task(d, a, b, h, stop, r0, mid);
+				left.fork();
+				Acc right = new Task(d, a, b, h, stop, mid, r1).compute();
+				return left.join().add(right);
+			}
+			try {
+				return compareRows();
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		Acc compareRows() throws IOException {
+			int nComp = h.nComp, sx = h.sizeX;
+			Acc acc = new Acc(nComp);
+			int rowsPerBlock = (int)(Math.max(1, GRAIN / (8L * nComp * sx)));
+			double[] va = new double[Math.min(rowsPerBlock, r1 - r0) * sx * nComp];
+			double[] vb = new double[va.length];
+			for(int b0=r0; b0<r1 && !stop.get(); b0+=rowsPerBlock) {
+				int b1 = Math.min(r1, b0 + rowsPerBlock);
+				a.read(b0, b1, va);
+				b.read(b0, b1, vb);
+				int n = (b1 - b0) * sx * nComp;
+				for(int i=0; i<n; i++) {
+					int c = i % nComp;
+					double diff = Math.abs(va[i] - vb[i]);
+					if (diff != diff) {
+						diff = Double.POSITIVE_INFINITY; // NaN in either file
+					}
+					if (diff > acc.max[c]) {
+						acc.max[c] = diff;
+						if (diff > acc.worst) {
+							acc.worst = diff;
+							acc.worstComp = c;
+							acc.worstCell = (long)(b0) * sx + i / nComp;
+						}
+					}
+					acc.sumSq[c] += diff * diff;
+					acc.sumAbs[c] += diff;
+				}
+				acc.cells += (long)(b1 - b0) * sx;
+				if (d.stopEarly) {
+					for(int c=0; c<nComp; c++) {
+						if (acc.max[c] > d.maxTolerance) {
+							stop.set(true);
+						}
+					}
+				}
+			}
+			return acc;
+		}
+	}
+
+	// main for testing: compare two files or directories.
+	// Options before the paths: -max <tolerance>, -rms <tolerance>, -stop (stop early).
+	// Exits with status 1 if any comparison fails.
+	public static void main(String[] args) throws IOException {
+		Diff d = new Diff();
+		int i = 0;
+		for(; i<args.length - 2; i++) {
+			if (args[i].equals("-max")) {
+				d.maxTolerance = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-rms")) {
+				d.rmsTolerance = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-stop")) {
+				d.stopEarly = true;
+			} else {
+				throw new IllegalArgumentException("unknown option: " + args[i]);
+			}
+		}
+		File a = new File(args[i]), b = new File(args[i+1]);
+		List<Result> results = new ArrayList<Result>();
+		if (a.isDirectory()) {
+			results.addAll(d.compareDirs(a, b));
+		} else {
+			results.add(d.compare(a, b));
+		}
+		boolean pass = true;
+		for(Result r: results) {
+			System.out.println(r);
+			pass &= r.pass;
+		}
+		if (!pass) {
+			System.exit(1);
+		}
+	}
+}
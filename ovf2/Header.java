@@ -0,0 +1,261 @@
+package ovf2;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Header holds the information parsed from an OVF2 text header,
+// without the data that follows it.
+public final class Header {
+
+	public File file;                             // file the header was read from, if any
+	public String title = "";                     // e.g.: "m"
+	public String meshUnit = "m";                 // unit of positions and cell sizes
+	public String valueLabels = "";               // e.g.: "m_x m_y m_z"
+	public String valueUnits = "";                // e.g.: "1 1 1"
+	public double time;                           // total simulation time (s), from "# Desc: Total simulation time"
+	public int nComp;                             // valuedim
+	public int sizeX, sizeY, sizeZ;               // xnodes, ynodes, znodes
+	public float xMin, yMin, zMin;                // lower mesh bounds
+	public float xBase, yBase, zBase;             // position of the first cell's center
+	public float xStepSize, yStepSize, zStepSize; // cell sizes
+	public int format;                            // data format: BINARY_4, BINARY_8 or TEXT
+	public long dataOffset;           // position of the data (control number), in bytes from the start of the file
+
+	// data formats. For binary formats, the value is the number of bytes per value.
+	public static final int TEXT = 0;
+	public static final int BINARY_4 = 4;
+	public static final int BINARY_8 = 8;
+
+	static final String TIME_DESC = "Total simulation time"; // mumax description of the time
+
+	// Reads only the header of file, the data is not touched.
+	public static Header read(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1024);
+		try {
+			Header h = read(in);
+			h.file = file;
+			return h;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Reads the text header from in, up to and including the "# Begin: Data" line.
+	// Afterwards, in is positioned at the start of the data (control number).
+	public static Header read(InputStream in) throws IOException {
+
+		Header h = new Header();
+		String line = readline(in);
+		h.dataOffset += line.length() + 1;
+
+		if (!"# OOMMF OVF 2.0".equals(line)) {
+			throw new IOException("invalid header: " + line);
+		}
+
+		line = readline(in);
+		h.dataOffset += line.length() + 1;
+		while (!"# End: Header".equals(line)) {
+			line = line.substring(2);
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				throw new IOException("invalid header line: " + line);
+			}
+			String key = line.substring(0, colon).trim();
+			String val = line.substring(colon + 1).trim();
+			if ("Title".equals(key)) {
+				h.title = val;
+			}
+			if ("meshunit".equals(key)) {
+				h.meshUnit = val;
+			}
+			if ("valuelabels".equals(key)) {
+				h.valueLabels = val;
+			}
+			if ("valueunits".equals(key)) {
+				h.valueUnits = val;
+			}
+			if ("Desc".equals(key) && val.startsWith(TIME_DESC + ":")) {
+				// e.g.: "Total simulation time:  1e-09  s"
+				String t = val.substring(TIME_DESC.length() + 1).trim();
+				int space = t.indexOf(' ');
+				if (space > 0) {
+					t = t.substring(0, space);
+				}
+				h.time = Double.parseDouble(t);
+			}
+			if ("xnodes".equals(key)) {
+				h.sizeX = Integer.parseInt(val);
+			}
+			if ("ynodes".equals(key)) {
+				h.sizeY = Integer.parseInt(val);
+			}
+			if ("znodes".equals(key)) {
+				h.sizeZ = Integer.parseInt(val);
+			}
+			if ("valuedim".equals(key)) {
+				h.nComp = Integer.parseInt(val);
+			}
+			if ("xbase".equals(key)) {
+				h.xBase = Float.parseFloat(val);
+			}
+			if ("ybase".equals(key)) {
+				h.yBase = Float.parseFloat(val);
+			}
+			if ("zbase".equals(key)) {
+				h.zBase = Float.parseFloat(val);
+			}
+			if ("xmin".equals(key)) {
+				h.xMin = Float.parseFloat(val);
+			}
+			if ("ymin".equals(key)) {
+				h.yMin = Float.parseFloat(val);
+			}
+			if ("zmin".equals(key)) {
+				h.zMin = Float.parseFloat(val);
+			}
+			if ("xstepsize".equals(key)) {
+				h.xStepSize = Float.parseFloat(val);
+			}
+			if ("ystepsize".equals(key)) {
+				h.yStepSize = Float.parseFloat(val);
+			}
+			if ("zstepsize".equals(key)) {
+				h.zStepSize = Float.parseFloat(val);
+			}
+
+			line = readline(in);
+			h.dataOffset += line.length() + 1;
+		}
+
+		line = readline(in);
+		h.dataOffset += line.length() + 1;
+		line = line.trim();
+		if ("# Begin: Data Binary 4".equals(line)) {
+			h.format = BINARY_4;
+		} else if ("# Begin: Data Binary 8".equals(line)) {
+			h.format = BINARY_8;
+		} else if ("# Begin: Data Text".equals(line)) {
+			h.format = TEXT;
+		} else {
+			throw new IOException("invalid data header: " + line);
+		}
+		return h;
+	}
+
+	// number of cells
+	public int len() {
+		return sizeX * sizeY * sizeZ;
+	}
+
+	// number of bytes in the data section, including the control number.
+	// Only defined for binary formats.
+	long dataBytes() {
+		return format * (1 + (long)(nComp) * len());
+	}
+
+	// constructs an OVF2 of the size described by this header, backed by data.
+	OVF2 newOVF2(Storage data) {
+		return newOVF2(data, sizeX, sizeY, sizeZ);
+	}
+
+	// constructs an OVF2 of the given size, backed by data, with metadata from this header.
+	OVF2 newOVF2(Storage data, int sizeX, int sizeY, int sizeZ) {
+		OVF2 ovf2 = new OVF2(data, sizeX, sizeY, sizeZ);
+		ovf2.title = title;
+		ovf2.meshUnit = meshUnit;
+		ovf2.valueLabels = valueLabels;
+		ovf2.valueUnits = valueUnits;
+		ovf2.time = time;
+		ovf2.xMin = xMin;
+		ovf2.yMin = yMin;
+		ovf2.zMin = zMin;
+		ovf2.xBase = xBase;
+		ovf2.yBase = yBase;
+		ovf2.zBase = zBase;
+		ovf2.xStepSize = xStepSize;
+		ovf2.yStepSize = yStepSize;
+		ovf2.zStepSize = zStepSize;
+		return ovf2;
+	}
+
+	// Serializes the header, except file, for Index.
+	void store(DataOutput out) throws IOException {
+		out.writeUTF(title);
+		out.writeUTF(meshUnit);
+		out.writeUTF(valueLabels);
+		out.writeUTF(valueUnits);
+		out.writeDouble(time);
+		out.writeInt(nComp);
+		out.writeInt(sizeX);
+		out.writeInt(sizeY);
+		out.writeInt(sizeZ);
+		out.writeFloat(xMin);
+		out.writeFloat(yMin);
+		out.writeFloat(zMin);
+		out.writeFloat(xBase);
+		out.writeFloat(yBase);
+		out.writeFloat(zBase);
+		out.writeFloat(xStepSize);
+		out.writeFloat(yStepSize);
+		out.writeFloat(zStepSize);
+		out.writeInt(format);
+		out.writeLong(dataOffset);
+	}
+
+	// Deserializes a header written by store().
+	static Header load(DataInput in) throws IOException {
+		Header h = new Header();
+		h.title = in.readUTF();
+		h.meshUnit = in.readUTF();
+		h.valueLabels = in.readUTF();
+		h.valueUnits = in.readUTF();
+		h.time = in.readDouble();
+		h.nComp = in.readInt();
+		h.sizeX = in.readInt();
+		h.sizeY = in.readInt();
+		h.sizeZ = in.readInt();
+		h.xMin = in.readFloat();
+		h.yMin = in.readFloat();
+		h.zMin = in.readFloat();
+		h.xBase = in.readFloat();
+		h.yBase = in.readFloat();
+		h.zBase = in.readFloat();
+		h.xStepSize = in.readFloat();
+		h.yStepSize = in.readFloat();
+		h.zStepSize = in.readFloat();
+		h.format = in.readInt();
+		h.dataOffset = in.readLong();
+		return h;
+	}
+
+	public String toString() {
+		return title + " " + nComp + "x" + sizeX + "x" + sizeY + "x" + sizeZ +
+		       "," + xStepSize + "x" + yStepSize + "x" + zStepSize + meshUnit + ", t=" + time + "s";
+	}
+
+	// Reads a line from in.
+	// Files are mixed text+binary, so BufferedReader et al. are problematic
+	static String readline(InputStream in) throws IOException {
+		StringBuilder str = new StringBuilder();
+		byte b = readByte(in);
+		while (b != '\n') {
+			str.append((char)(b));
+			b = readByte(in);
+		}
+		return str.toString();
+	}
+
+	// Reads a byte from in, throws exception on EOF
+	static byte readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new IOException("unexpected EOF");
+		}
+		return (byte)(b);
+	}
+}
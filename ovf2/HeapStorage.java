@@ -0,0 +1,45 @@
+package ovf2;
+
+// HeapStorage stores each component in a float array on the Java heap.
+public final class HeapStorage extends Storage {
+
+	final float[][] data; // indexed by component, cell
+
+	// allocates zero-valued storage
+	public HeapStorage(int nComp, int len) {
+		this(new float[nComp][len]);
+	}
+
+	// wraps existing arrays, one per component
+	public HeapStorage(float[][] data) {
+		this.data = data;
+	}
+
+	public int nComp() {
+		return data.length;
+	}
+
+	public int len() {
+		return data[0].length;
+	}
+
+	public float get(int c, int i) {
+		return data[c][i];
+	}
+
+	public void set(int c, int i, float v) {
+		data[c][i] = v;
+	}
+
+	public void get(int c, int i, float[] dst, int off, int n) {
+		System.arraycopy(data[c], i, dst, off, n);
+	}
+
+	public void set(int c, int i, float[] src, int off, int n) {
+		System.arraycopy(src, off, data[c], i, n);
+	}
+
+	public float[] array(int c) {
+		return data[c];
+	}
+}
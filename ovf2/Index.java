@@ -0,0 +1,158 @@
+package ovf2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Index keeps the headers of all OVF2 files in a directory,
+// persisted in the file FILENAME in that directory.
+// An entry is reused as long as the file's size and modification time match,
+// so repeated scans only parse new or modified files.
+public final class Index {
+
+	static final String FILENAME = ".ovf2index";
+	static final int MAGIC = 0x4f564649; // "OVFI"
+	static final int VERSION = 3;
+
+	final File dir;
+	final HashMap<String, Entry> entries; // indexed by file name
+	boolean dirty;                        // entries changed since load/save
+
+	// one indexed file
+	static final class Entry {
+		long size, mtime;
+		Header header;
+	}
+
+	private Index(File dir) {
+		this.dir = dir;
+		this.entries = new HashMap<String, Entry>();
+	}
+
+	// Opens the index of dir, loading the persisted index if present.
+	// A corrupt or outdated index file is ignored and will be overwritten.
+	public static Index open(File dir) throws IOException {
+		Index index = new Index(dir);
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, FILENAME))));
+		} catch(FileNotFoundException e) {
+			return index;
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				index.dirty = true;
+				return index;
+			}
+			int n = in.readInt();
+			for(int i=0; i<n; i++) {
+				String name = in.readUTF();
+				Entry e = new Entry();
+				e.size = in.readLong();
+				e.mtime = in.readLong();
+				e.header = Header.load(in);
+				e.header.file = new File(dir, name);
+				index.entries.put(name, e);
+			}
+		} catch(IOException e) {
+			index.entries.clear();
+			index.dirty = true;
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	// Returns the header of file f in the indexed directory,
+	// parsing it only if it is not indexed or has been modified since.
+	public Header get(File f) throws IOException {
+		String name = f.getName();
+		long size = f.length();
+		long mtime = f.lastModified();
+		Entry e = entries.get(name);
+		if (e != null && e.size == size && e.mtime == mtime) {
+			return e.header;
+		}
+		e = new Entry();
+		e.size = size;
+		e.mtime = mtime;
+		e.header = Header.read(new File(dir, name));
+		entries.put(name, e);
+		dirty = true;
+		return e.header;
+	}
+
+	// Returns the headers of all .ovf files in the directory, sorted by file name.
+	// Entries of files that no longer exist are dropped.
+	public List<Header> scan() throws IOException {
+		String[] names = dir.list();
+		if (names == null) {
+			throw new IOException("cannot list " + dir);
+		}
+		Arrays.sort(names);
+		ArrayList<Header> headers = new ArrayList<Header>();
+		HashMap<String, Entry> keep = new HashMap<String, Entry>();
+		for(String name: names) {
+			if (!name.endsWith(".ovf")) {
+				continue;
+			}
+			headers.add(get(new File(dir, name)));
+			keep.put(name, entries.get(name));
+		}
+		if (keep.size() != entries.size()) {
+			entries.clear();
+			entries.putAll(keep);
+			dirty = true;
+		}
+		return headers;
+	}
+
+	// Writes the index to disk if it has changed.
+	// The file is replaced atomically, so concurrent readers see either the old or the new index.
+	public void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		File tmp = new File(dir, FILENAME + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for(String name: entries.keySet()) {
+				Entry e = entries.get(name);
+				out.writeUTF(name);
+				out.writeLong(e.size);
+				out.writeLong(e.mtime);
+				e.header.store(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(dir, FILENAME))) {
+			throw new IOException("cannot rename " + tmp);
+		}
+		dirty = false;
+	}
+
+	// main for testing: print the headers of all files in the directories passed as args.
+	public static void main(String[] args) throws IOException {
+		for(String arg: args) {
+			Index index = open(new File(arg));
+			for(Header h: index.scan()) {
+				System.out.println(h.file + ": " + h);
+			}
+			index.save();
+		}
+	}
+}
@@ -3,161 +3,453 @@ package ovf2;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
 // OVF2 stores data from a single OOMMF OVF2 file (http://math.nist.gov/oommf) generated by mumax.
 // There is no guarantee that non-mumax files are accepted.
 public final class OVF2 {
 
-	public float[][][][] data;        // data indexed by: component, z, y, x
-	public float xBase, yBase, zBase; // cell sizes
+	public Storage data;                          // data indexed by: component, index(x, y, z)
+	public float xBase, yBase, zBase;             // position of the first cell's center
+	public float xStepSize, yStepSize, zStepSize; // cell sizes
+	public float xMin, yMin, zMin;                // lower mesh bounds
+	public String title = "";                     // e.g.: "m"
+	public String meshUnit = "m";                 // unit of positions and cell sizes
+	public String valueLabels = "";               // e.g.: "m_x m_y m_z"
+	public String valueUnits = "";                // e.g.: "1 1 1"
+	public double time;                           // total simulation time (s)
+	int sizeX, sizeY, sizeZ;                      // number of cells
 
-	// Reads OVF2, binary 4 format, from in.
-	public static OVF2 read(InputStream in) throws IOException {
+	static final float CONTROL_NUMBER_4 = 1234567.0f;          // first value of binary 4 data
+	static final double CONTROL_NUMBER_8 = 123456789012345.0; // first value of binary 8 data
+	static final long MAX_MAP = 1 << 30;             // maximum number of bytes mapped at once
+	static final String END_DATA = "# End: Data";     // start of the line following the data
 
-		String line = readline(in);
+	// Constructs a zero-valued OVF2 with nComp components of sizeX x sizeY x sizeZ cells.
+	// Each component is stored contiguously on the heap, x varying fastest.
+	public OVF2(int nComp, int sizeX, int sizeY, int sizeZ) {
+		this(new HeapStorage(nComp, sizeX * sizeY * sizeZ), sizeX, sizeY, sizeZ);
+	}
 
-		if (!"# OOMMF OVF 2.0".equals(line)) {
-			throw new IOException("invalid header: " + line);
+	// Constructs an OVF2 of sizeX x sizeY x sizeZ cells backed by data.
+	public OVF2(Storage data, int sizeX, int sizeY, int sizeZ) {
+		if (data.len() != sizeX * sizeY * sizeZ) {
+			throw new IllegalArgumentException("storage size " + data.len() + " does not match " + sizeX + "x" + sizeY + "x" + sizeZ);
 		}
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.data = data;
+	}
+
+	// Reads OVF2, binary 4, binary 8 or text format, from in.
+	// Binary data is decoded one byte at a time, prefer read(File) for files.
+	public static OVF2 read(InputStream in) throws IOException {
+
+		Header h = Header.read(in);
+		OVF2 ovf2 = h.newOVF2(new HeapStorage(h.nComp, h.len()));
+		Storage data = ovf2.data;
 
+		if (h.format == Header.TEXT) {
+			new TextParser(in).parse(data);
+			return ovf2;
+		}
 
-		int nComp =0, sizeX =0, sizeY =0, sizeZ = 0;
-		OVF2 ovf2 = new OVF2();
+		// read data
+		int nComp = h.nComp;
+		int n = ovf2.len();
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		double controlNumber = readValue(in, buffer, h.format);
+		if (controlNumber != controlNumber(h.format)) {
+			throw new IOException("bad ovf2 control number: " + controlNumber);
+		}
 
-		line = readline(in);
-		while (!"# End: Header".equals(line)) {
-			line = line.substring(2);
-			String[]split = line.split(":");
-			String key = split[0].trim();
-			String val = split[1].trim();
-			if ("xnodes".equals(key)) {
-				sizeX = Integer.parseInt(val);
+		for(int i=0; i<n; i++) {
+			for(int c=0; c<nComp; c++) {
+				data.set(c, i, (float)(readValue(in, buffer, h.format)));
 			}
-			if ("ynodes".equals(key)) {
-				sizeY = Integer.parseInt(val);
+		}
+
+		String end = Header.readline(in);
+		if (end.isEmpty()) { // tolerate newline after data
+			end = Header.readline(in);
+		}
+		if (!end.startsWith(END_DATA)) {
+			throw new IOException("expected " + END_DATA + ", found: " + end);
+		}
+
+		return ovf2;
+	}
+
+	// get float (format 4) or double (format 8) from little-endian binary data,
+	// using buffer as scratch space.
+	private static double readValue(InputStream in, ByteBuffer buffer, int format) throws IOException {
+		for(int i=format-1; i>=0; i--) {
+			buffer.put(i, Header.readByte(in));
+		}
+		if (format == Header.BINARY_4) {
+			return buffer.getFloat(0);
+		} else {
+			return buffer.getDouble(0);
+		}
+	}
+
+	// control number for binary format 4 or 8
+	static double controlNumber(int format) {
+		if (format == Header.BINARY_4) {
+			return CONTROL_NUMBER_4;
+		} else {
+			return CONTROL_NUMBER_8;
+		}
+	}
+
+	// Reads OVF2, binary 4, binary 8 or text format, from file.
+	// Binary data is memory-mapped and decoded in bulk,
+	// large files are split into chunks of rows decoded in parallel.
+	// Binary 8 values are rounded to float.
+	public static OVF2 read(File file) throws IOException {
+		return read(file, false);
+	}
+
+	// Like read(File), but decodes into direct buffers outside of the Java heap
+	// when direct is true. See BufferStorage.
+	// If file has a fresh ChunkCache, it is read instead,
+	// falling back to file if the cache turns out to be corrupt.
+	public static OVF2 read(File file, boolean direct) throws IOException {
+		ChunkCache cache = ChunkCache.open(file);
+		if (cache != null) {
+			try {
+				return cache.read(direct);
+			} catch(IOException e) {
+				// corrupt cache: parse the source
 			}
-			if ("znodes".equals(key)) {
-				sizeZ = Integer.parseInt(val);
+		}
+		return parse(file, direct);
+	}
+
+	// Reads file itself, ignoring any ChunkCache.
+	static OVF2 parse(File file, boolean direct) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Header h = Header.read(new BufferedInputStream(in));
+			Storage data = direct ? BufferStorage.allocate(h.nComp, h.len()) : new HeapStorage(h.nComp, h.len());
+			OVF2 ovf2 = h.newOVF2(data);
+			FileChannel ch = in.getChannel();
+			if (h.format == Header.TEXT) {
+				ch.position(h.dataOffset);
+				new TextParser(in).parse(data);
+				return ovf2;
 			}
-			if ("valuedim".equals(key)) {
-				nComp = Integer.parseInt(val);
+			checkData(ch, h);
+			DecodeTask.decode(ch, h.dataOffset + h.format, h.format, data, h.sizeX);
+			return ovf2;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Maps OVF2, binary 4 format, from file without decoding.
+	// The returned OVF2 is read-only and backed by the file itself,
+	// so it uses neither heap nor swap, regardless of the file size.
+	public static OVF2 map(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Header h = Header.read(new BufferedInputStream(in));
+			if (h.format != Header.BINARY_4) {
+				throw new IOException("can only map binary 4 data: " + file);
 			}
-			if ("xbase".equals(key)) {
-				ovf2.xBase = Float.parseFloat(val);
+			FileChannel ch = in.getChannel();
+			checkData(ch, h);
+			return h.newOVF2(BufferStorage.map(ch, h.dataOffset + 4, h.nComp, h.len()));
+		} finally {
+			in.close();
+		}
+	}
+
+	// Reads only the cells and components selected by region from file.
+	// Unselected rows are skipped without being read, so loading e.g.
+	// a single layer costs only the bytes of that layer.
+	// Cell sizes are scaled by the region's steps.
+	// The mesh keeps its origin, xBase etc. point to the first selected cell.
+	public static OVF2 read(File file, Region region) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Header h = Header.read(new BufferedInputStream(in));
+			if (h.format == Header.TEXT) {
+				throw new IOException("can only read regions of binary data: " + file);
 			}
-			if ("ybase".equals(key)) {
-				ovf2.yBase = Float.parseFloat(val);
+			Region r = region.clip(h.nComp, h.sizeX, h.sizeY, h.sizeZ);
+			FileChannel ch = in.getChannel();
+			checkData(ch, h);
+
+			OVF2 ovf2 = h.newOVF2(new HeapStorage(r.comp.length, r.sizeX() * r.sizeY() * r.sizeZ()), r.sizeX(), r.sizeY(), r.sizeZ());
+			ovf2.xBase = h.xBase + r.x0 * h.xStepSize;
+			ovf2.yBase = h.yBase + r.y0 * h.yStepSize;
+			ovf2.zBase = h.zBase + r.z0 * h.zStepSize;
+			ovf2.xStepSize = h.xStepSize * r.xStep;
+			ovf2.yStepSize = h.yStepSize * r.yStep;
+			ovf2.zStepSize = h.zStepSize * r.zStep;
+			ovf2.valueLabels = select(h.valueLabels, r.comp);
+			ovf2.valueUnits = select(h.valueUnits, r.comp);
+
+			// the selected x-range of one row, all components interleaved
+			ByteBuffer buf = ByteBuffer.allocateDirect(h.format * h.nComp * (r.x1 - r.x0)).order(ByteOrder.LITTLE_ENDIAN);
+			FloatBuffer row = buf.asFloatBuffer();
+			DoubleBuffer row8 = buf.asDoubleBuffer();
+			float[] comp = new float[ovf2.sizeX];
+
+			for(int z=r.z0, iz=0; z<r.z1; z+=r.zStep, iz++) {
+				for(int y=r.y0, iy=0; y<r.y1; y+=r.yStep, iy++) {
+					long cell = ((long)(z) * h.sizeY + y) * h.sizeX + r.x0;
+					buf.clear();
+					readFully(ch, buf, h.dataOffset + h.format + (long)(h.format) * h.nComp * cell);
+					for(int k=0; k<r.comp.length; k++) {
+						for(int ix=0; ix<comp.length; ix++) {
+							int p = ix * r.xStep * h.nComp + r.comp[k];
+							if (h.format == Header.BINARY_4) {
+								comp[ix] = row.get(p);
+							} else {
+								comp[ix] = (float)(row8.get(p));
+							}
+						}
+						ovf2.data.set(k, ovf2.index(0, iy, iz), comp, 0, comp.length);
+					}
+				}
 			}
-			if ("zbase".equals(key)) {
-				ovf2.zBase = Float.parseFloat(val);
+			return ovf2;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Reads file row by row, passing each row to v without storing the data.
+	// Memory use is one row, regardless of the file size.
+	// Returns the file's header.
+	public static Header scan(File file, Visitor v) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Header h = Header.read(new BufferedInputStream(in));
+			h.file = file;
+			v.begin(h);
+			int nRows = h.sizeY * h.sizeZ;
+			float[] row = new float[h.nComp * h.sizeX];
+			FileChannel ch = in.getChannel();
+
+			if (h.format == Header.TEXT) {
+				ch.position(h.dataOffset);
+				TextParser p = new TextParser(in);
+				for(int r=0; r<nRows; r++) {
+					p.parse(row);
+					v.row(r % h.sizeY, r / h.sizeY, row);
+				}
+				p.expectEnd();
+				return h;
 			}
 
-			line = readline(in);
+			checkData(ch, h);
+			double[] row8 = (h.format == Header.BINARY_8) ? new double[row.length] : null;
+			long rowBytes = (long)(h.format) * row.length;
+			long offset = h.dataOffset + h.format;
+			int rowsPerMap = (int)(Math.max(1, MAX_MAP / rowBytes));
+			for (int m0=0; m0<nRows; m0+=rowsPerMap) {
+				int m1 = Math.min(nRows, m0 + rowsPerMap);
+				ByteBuffer bytes = ch.map(FileChannel.MapMode.READ_ONLY, offset + m0 * rowBytes, (m1 - m0) * rowBytes).
+				                   order(ByteOrder.LITTLE_ENDIAN);
+				FloatBuffer buf = bytes.asFloatBuffer();
+				DoubleBuffer buf8 = bytes.asDoubleBuffer();
+				for (int r=m0; r<m1; r++) {
+					if (row8 == null) {
+						buf.get(row);
+					} else {
+						buf8.get(row8);
+						for(int k=0; k<row.length; k++) {
+							row[k] = (float)(row8[k]);
+						}
+					}
+					v.row(r % h.sizeY, r / h.sizeY, row);
+				}
+			}
+			return h;
+		} finally {
+			in.close();
 		}
+	}
 
-		line = readline(in);
-		if (! "# Begin: Data Binary 4".equals(line)) {
-			throw new IOException("invalid data header: " + line);
+	// returns the space-separated words of list selected by index,
+	// or list itself if it does not hold a word per component.
+	static String select(String list, int[] index) {
+		String[] words = list.trim().split("\\s+");
+		StringBuilder str = new StringBuilder();
+		for(int i: index) {
+			if (i >= words.length) {
+				return list;
+			}
+			if (str.length() > 0) {
+				str.append(' ');
+			}
+			str.append(words[i]);
 		}
+		return str.toString();
+	}
 
-		// allocate data
-		float[][][][] data = new float[nComp][][][];
-		for(int c=0; c<data.length; c++) {
-			data[c] = new float[sizeZ][][];
-			for(int z=0; z<data[c].length; z++) {
-				data[c][z] = new float[sizeY][];
-				for(int y=0; y<data[c][z].length; y++) {
-					data[c][z][y] = new float[sizeX];
-				}
+	// Fills buf with bytes from ch, starting at position pos.
+	static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = ch.read(buf, pos);
+			if (n < 0) {
+				throw new IOException("unexpected EOF");
 			}
+			pos += n;
 		}
+	}
 
+	// Checks that the binary data section described by h starts with the control number,
+	// and is followed by the "# End: Data" line, so that the file is not truncated.
+	static void checkData(FileChannel ch, Header h) throws IOException {
+		long end = h.dataOffset + h.dataBytes();
+		if (ch.size() < end + END_DATA.length()) {
+			throw new IOException("unexpected EOF");
+		}
 
-		// read data
+		ByteBuffer control = ByteBuffer.allocate(h.format).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(ch, control, h.dataOffset);
+		double controlNumber = (h.format == Header.BINARY_4) ? control.getFloat(0) : control.getDouble(0);
+		if (controlNumber != controlNumber(h.format)) {
+			throw new IOException("bad ovf2 control number: " + controlNumber);
+		}
 
-		// get float from little-endian binary data.
-		ByteBuffer buffer = ByteBuffer.allocate(4);
-		buffer.put(3, readByte(in));
-		buffer.put(2, readByte(in));
-		buffer.put(1, readByte(in));
-		buffer.put(0, readByte(in));
-		float controlNumber = buffer.getFloat(0);
+		ByteBuffer trailer = ByteBuffer.allocate((int)(Math.min(ch.size() - end, END_DATA.length() + 1)));
+		readFully(ch, trailer, end);
+		String str = new String(trailer.array(), 0, trailer.limit(), "US-ASCII");
+		if (str.startsWith("\n")) { // tolerate newline after data
+			str = str.substring(1);
+		}
+		if (!str.startsWith(END_DATA)) {
+			throw new IOException("expected " + END_DATA + " after data");
+		}
+	}
 
-		if (controlNumber != 1234567.0) {
-			throw new IOException("bad ovf2 control number: " + controlNumber);
+	// Returns an OVF2 with the size and metadata of this one, backed by data.
+	public OVF2 like(Storage data) {
+		OVF2 f = new OVF2(data, sizeX, sizeY, sizeZ);
+		f.xBase = xBase;
+		f.yBase = yBase;
+		f.zBase = zBase;
+		f.xStepSize = xStepSize;
+		f.yStepSize = yStepSize;
+		f.zStepSize = zStepSize;
+		f.xMin = xMin;
+		f.yMin = yMin;
+		f.zMin = zMin;
+		f.title = title;
+		f.meshUnit = meshUnit;
+		f.valueLabels = valueLabels;
+		f.valueUnits = valueUnits;
+		f.time = time;
+		return f;
+	}
+
+	// Returns a zero-valued OVF2 with nComp components on the heap,
+	// with the size and metadata of this one.
+	// Value labels and units are cleared if nComp differs.
+	public OVF2 like(int nComp) {
+		OVF2 f = like(new HeapStorage(nComp, len()));
+		if (nComp != nComp()) {
+			f.valueLabels = "";
+			f.valueUnits = "";
 		}
+		return f;
+	}
 
-		for(int z=0; z<data[0].length; z++) {
-			for(int y=0; y<data[0][z].length; y++) {
-				for(int x=0; x<data[0][z][y].length; x++) {
-					for(int c=0; c<data.length; c++) {
-						buffer.put(3, readByte(in));
-						buffer.put(2, readByte(in));
-						buffer.put(1, readByte(in));
-						buffer.put(0, readByte(in));
-						data[c][z][y][x] = buffer.getFloat(0);
-					}
-				}
-			}
+	// Writes this OVF2 to file, in binary 4 format.
+	public void write(File file) throws IOException {
+		write(file, Header.BINARY_4);
+	}
+
+	// Writes this OVF2 to file, in format Header.BINARY_4, BINARY_8 or TEXT.
+	public void write(File file, int format) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			new OVF2Writer(this, out.getChannel(), format).write();
+		} finally {
+			out.close();
 		}
+	}
 
-		ovf2.data = data;
-		return ovf2;
+	// Writes this OVF2 to out, in format Header.BINARY_4, BINARY_8 or TEXT.
+	public void write(OutputStream out, int format) throws IOException {
+		new OVF2Writer(this, Channels.newChannel(out), format).write();
 	}
 
-	// number of cells in X (bound for last index of data)
+	// number of cells in X
 	public int sizeX() {
-		return data[0][0][0].length;
+		return sizeX;
 	}
 
 	// number of cells in Y
 	public int sizeY() {
-		return data[0][0].length;
+		return sizeY;
 	}
 
 	// number of cells in Z
 	public int sizeZ() {
-		return data[0].length;
+		return sizeZ;
 	}
 
-	// number of components (bound for first index of data)
+	// number of components
 	public int nComp() {
-		return data.length;
+		return data.nComp();
 	}
 
-	public String toString() {
-		return "OVF2 " + nComp() + "x" + sizeX() + "x" + sizeY() + "x" + sizeZ() +
-		       "," + xBase + "x" + yBase + "x" + zBase + "m";
+	// number of cells
+	public int len() {
+		return sizeX * sizeY * sizeZ;
 	}
 
-	// Reads a line from in.
-	// Files are mixed text+binary, so BufferedReader et al. are problematic
-	private static String readline(InputStream in) throws IOException {
-		StringBuilder str = new StringBuilder();
-		byte b = readByte(in);
-		while (b != '\n') {
-			str.append((char)(b));
-			b = readByte(in);
-		}
-		return str.toString();
+	// index of cell x, y, z in a component array.
+	// Neighbors in x, y, z are 1, strideY(), strideZ() apart.
+	public int index(int x, int y, int z) {
+		return (z * sizeY + y) * sizeX + x;
 	}
 
-	// Reads a byte from in, throws exception on EOF
-	private static byte readByte(InputStream in) throws IOException {
-		int b = in.read();
-		if (b < 0) {
-			throw new IOException("unexpected EOF");
-		}
-		return (byte)(b);
+	// distance between neighboring cells in Y
+	public int strideY() {
+		return sizeX;
+	}
+
+	// distance between neighboring cells in Z
+	public int strideZ() {
+		return sizeX * sizeY;
+	}
+
+	// value of component c in cell x, y, z
+	public float get(int c, int x, int y, int z) {
+		return data.get(c, index(x, y, z));
+	}
+
+	// sets component c in cell x, y, z
+	public void set(int c, int x, int y, int z, float v) {
+		data.set(c, index(x, y, z), v);
+	}
+
+	public String toString() {
+		return "OVF2 " + nComp() + "x" + sizeX() + "x" + sizeY() + "x" + sizeZ() +
+		       "," + xStepSize + "x" + yStepSize + "x" + zStepSize + meshUnit;
 	}
 
 	// main for testing: read files passed as args.
 	public static void main(String[] args)throws IOException {
 		for(String arg: args) {
-			OVF2 data = read(new BufferedInputStream(new FileInputStream(new File(arg))));
+			OVF2 data = read(new File(arg));
 			System.out.println(arg + ": " + data);
 		}
 	}
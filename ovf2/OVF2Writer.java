@@ -0,0 +1,212 @@
+package ovf2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// OVF2Writer encodes an OVF2 in OOMMF OVF 2.0 format.
+// Binary data is interleaved one row at a time and written
+// through a little-endian float or double view of a large buffer,
+// so values are converted in bulk rather than one stream write per value.
+final class OVF2Writer {
+
+	static final int BUFSIZE = 1 << 20; // bytes buffered before writing
+
+	final OVF2 f;
+	final WritableByteChannel out;
+	final int format;
+	final ByteBuffer buf;
+
+	OVF2Writer(OVF2 f, WritableByteChannel out, int format) {
+		if (format != Header.BINARY_4 && format != Header.BINARY_8 && format != Header.TEXT) {
+			throw new IllegalArgumentException("unknown format: " + format);
+		}
+		this.f = f;
+		this.out = out;
+		this.format = format;
+		int rowBytes = Math.max(8, format) * f.nComp() * f.sizeX;
+		this.buf = ByteBuffer.allocate(Math.max(BUFSIZE, rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	void write() throws IOException {
+		writeString(header());
+		if (format == Header.TEXT) {
+			writeText();
+		} else {
+			writeBinary();
+		}
+		writeString("# End: Data " + formatName(format) + "\n# End: Segment\n");
+	}
+
+	// header text, up to and including the "# Begin: Data" line.
+	String header() {
+		StringBuilder h = new StringBuilder();
+		h.append("# OOMMF OVF 2.0\n");
+		h.append("# Segment count: 1\n");
+		h.append("# Begin: Segment\n");
+		h.append("# Begin: Header\n");
+		line(h, "Title", f.title);
+		line(h, "meshtype", "rectangular");
+		line(h, "meshunit", f.meshUnit);
+		line(h, "xmin", f.xMin);
+		line(h, "ymin", f.yMin);
+		line(h, "zmin", f.zMin);
+		line(h, "xmax", f.xMin + f.sizeX * f.xStepSize);
+		line(h, "ymax", f.yMin + f.sizeY * f.yStepSize);
+		line(h, "zmax", f.zMin + f.sizeZ * f.zStepSize);
+		line(h, "valuedim", f.nComp());
+		line(h, "valuelabels", f.valueLabels);
+		line(h, "valueunits", f.valueUnits);
+		line(h, "Desc", Header.TIME_DESC + ": " + f.time + " s");
+		line(h, "xbase", f.xBase);
+		line(h, "ybase", f.yBase);
+		line(h, "zbase", f.zBase);
+		line(h, "xnodes", f.sizeX);
+		line(h, "ynodes", f.sizeY);
+		line(h, "znodes", f.sizeZ);
+		line(h, "xstepsize", f.xStepSize);
+		line(h, "ystepsize", f.yStepSize);
+		line(h, "zstepsize", f.zStepSize);
+		h.append("# End: Header\n");
+		h.append("# Begin: Data ").append(formatName(format)).append('\n');
+		return h.toString();
+	}
+
+	static void line(StringBuilder h, String key, Object value) {
+		h.append("# ").append(key).append(": ").append(value).append('\n');
+	}
+
+	// name of format, as used in "# Begin: Data" lines
+	static String formatName(int format) {
+		if (format == Header.TEXT) {
+			return "Text";
+		}
+		return "Binary " + format;
+	}
+
+	// writes the control number and values.
+	void writeBinary() throws IOException {
+		int nComp = f.nComp();
+		int sizeX = f.sizeX;
+		int nRows = f.sizeY * f.sizeZ;
+		float[][] comp = new float[nComp][sizeX];
+		float[] row = new float[nComp * sizeX]; // interleaved components, as on disk
+		double[] row8 = null;                    // same, for binary 8
+		FloatBuffer fbuf = null;
+		DoubleBuffer dbuf = null;
+		if (format == Header.BINARY_4) {
+			fbuf = buf.asFloatBuffer();
+			fbuf.put(OVF2.CONTROL_NUMBER_4);
+		} else {
+			row8 = new double[row.length];
+			dbuf = buf.asDoubleBuffer();
+			dbuf.put(OVF2.CONTROL_NUMBER_8);
+		}
+
+		for(int r=0; r<nRows; r++) {
+			int i0 = r * sizeX; // rows are contiguous, so this is index(0, y, z)
+			f.data.get(i0, comp, 0, sizeX);
+			for(int c=0; c<nComp; c++) {
+				for(int x=0; x<sizeX; x++) {
+					row[x*nComp + c] = comp[c][x];
+				}
+			}
+			if (fbuf != null) {
+				if (fbuf.remaining() < row.length) {
+					flush(4 * fbuf.position());
+					fbuf.clear();
+				}
+				fbuf.put(row);
+			} else {
+				for(int k=0; k<row.length; k++) {
+					row8[k] = row[k];
+				}
+				if (dbuf.remaining() < row8.length) {
+					flush(8 * dbuf.position());
+					dbuf.clear();
+				}
+				dbuf.put(row8);
+			}
+		}
+		flush(fbuf != null ? 4 * fbuf.position() : 8 * dbuf.position());
+	}
+
+	// writes values as text, one line per cell.
+	void writeText() throws IOException {
+		int nComp = f.nComp();
+		int n = f.len();
+		StringBuilder line = new StringBuilder();
+		for(int i=0; i<n; i++) {
+			line.setLength(0);
+			for(int c=0; c<nComp; c++) {
+				if (c > 0) {
+					line.append(' ');
+				}
+				line.append(f.data.get(c, i));
+			}
+			line.append('\n');
+			if (buf.remaining() < line.length()) {
+				flush(buf.position());
+			}
+			for(int k=0; k<line.length(); k++) {
+				buf.put((byte)(line.charAt(k)));
+			}
+		}
+		flush(buf.position());
+	}
+
+	void writeString(String s) throws IOException {
+		out.write(ByteBuffer.wrap(s.getBytes("US-ASCII")));
+	}
+
+	// writes the first n bytes of buf, and clears it.
+	void flush(int n) throws IOException {
+		buf.position(0).limit(n);
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	// main for testing: writes a field with NaN, infinite, subnormal and extreme values
+	// in each format, and checks that reading it back gives the same values.
+	public static void main(String[] args) throws IOException {
+		float[] special = {0, -0f, 1, -1.5f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+		                   Float.MIN_VALUE, Float.MAX_VALUE, -Float.MIN_NORMAL, 0.1f, 1e-30f
+		                  };
+		OVF2 f = new OVF2(3, special.length, 2, 1);
+		for(int i=0; i<f.len(); i++) {
+			for(int c=0; c<3; c++) {
+				f.data.set(c, i, special[(i + c) % special.length]);
+			}
+		}
+		int failed = 0;
+		for(int format: new int[] {Header.TEXT, Header.BINARY_4, Header.BINARY_8}) {
+			File file = File.createTempFile("ovf2writer", ".ovf");
+			int bad = 0;
+			try {
+				f.write(file, format);
+				OVF2 g = OVF2.read(file);
+				for(int i=0; i<f.len(); i++) {
+					for(int c=0; c<3; c++) {
+						if (Float.floatToIntBits(f.data.get(c, i)) != Float.floatToIntBits(g.data.get(c, i))) {
+							System.out.println(formatName(format) + ": cell " + i + " component " + c + ": wrote " + f.data.get(c, i) + ", read " + g.data.get(c, i));
+							bad++;
+						}
+					}
+				}
+				System.out.println(formatName(format) + ": round trip " + (bad == 0 ? "OK" : "FAILED"));
+				failed += bad;
+			} finally {
+				file.delete();
+			}
+		}
+		if (failed != 0) {
+			System.exit(1);
+		}
+	}
+}
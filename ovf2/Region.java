@@ -0,0 +1,91 @@
+package ovf2;
+
+// Region selects a sub-box, subsample and component subset of an OVF2 file,
+// to be loaded with OVF2.read(File, Region).
+// Ranges are half-open: cells x0 <= x < x1 are selected.
+// Ranges extending beyond the grid are clipped to it.
+public final class Region {
+
+	public int x0, x1, y0, y1, z0, z1; // selected cell ranges
+	public int xStep, yStep, zStep;    // only every step'th cell is selected
+	public int[] comp;                 // selected components, null means all
+
+	// selects the entire grid, all components.
+	public Region() {
+		x1 = y1 = z1 = Integer.MAX_VALUE;
+		xStep = yStep = zStep = 1;
+	}
+
+	// selects the box x0 <= x < x1, y0 <= y < y1, z0 <= z < z1, all components.
+	public Region(int x0, int x1, int y0, int y1, int z0, int z1) {
+		this();
+		this.x0 = x0;
+		this.x1 = x1;
+		this.y0 = y0;
+		this.y1 = y1;
+		this.z0 = z0;
+		this.z1 = z1;
+	}
+
+	// selects a single z-layer, all components.
+	public static Region layer(int z) {
+		return new Region(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, z, z + 1);
+	}
+
+	// returns a copy clipped to a grid of nComp x sizeX x sizeY x sizeZ,
+	// with comp filled in. Throws IllegalArgumentException if nothing remains selected.
+	Region clip(int nComp, int sizeX, int sizeY, int sizeZ) {
+		Region r = new Region(Math.max(0, x0), Math.min(sizeX, x1),
+		                      Math.max(0, y0), Math.min(sizeY, y1),
+		                      Math.max(0, z0), Math.min(sizeZ, z1));
+		r.xStep = xStep;
+		r.yStep = yStep;
+		r.zStep = zStep;
+		if (comp == null) {
+			r.comp = new int[nComp];
+			for(int c=0; c<nComp; c++) {
+				r.comp[c] = c;
+			}
+		} else {
+			r.comp = comp.clone();
+		}
+		for(int c: r.comp) {
+			if (c < 0 || c >= nComp) {
+				throw new IllegalArgumentException("component out of range: " + c);
+			}
+		}
+		if (xStep < 1 || yStep < 1 || zStep < 1) {
+			throw new IllegalArgumentException("step must be >= 1: " + this);
+		}
+		if (r.sizeX() < 1 || r.sizeY() < 1 || r.sizeZ() < 1 || r.comp.length == 0) {
+			throw new IllegalArgumentException("empty region: " + this);
+		}
+		return r;
+	}
+
+	// number of selected cells in X
+	int sizeX() {
+		return ceilDiv(x1 - x0, xStep);
+	}
+
+	// number of selected cells in Y
+	int sizeY() {
+		return ceilDiv(y1 - y0, yStep);
+	}
+
+	// number of selected cells in Z
+	int sizeZ() {
+		return ceilDiv(z1 - z0, zStep);
+	}
+
+	static int ceilDiv(int a, int b) {
+		if (a <= 0) {
+			return 0;
+		}
+		return (a + b - 1) / b;
+	}
+
+	public String toString() {
+		return "[" + x0 + ":" + x1 + ":" + xStep + ", " + y0 + ":" + y1 + ":" + yStep + ", " + z0 + ":" + z1 + ":" + zStep + "]";
+	}
+}
@@ -0,0 +1,134 @@
+package ovf2;
+
+import java.io.File;
+import java.io.IOException;
+
+// Stats is a Visitor that computes per-component average, minimum and maximum,
+// and for vector fields the deviation of the norm from 1, in a single pass.
+// Sums use compensated (Neumaier) summation, so averages over 10^8 cells
+// stay accurate to float precision.
+// A Stats can be re-used for many files without allocating.
+public final class Stats implements Visitor {
+
+	int nComp;
+	long n;               // number of cells seen
+	double[] sum, comp;   // per-component sum and its compensation
+	float[] min, max;     // per-component extrema
+	double normSum, normComp; // sum of squared norm deviations and its compensation
+	double maxNormDev;    // maximum absolute norm deviation
+
+	public void begin(Header h) {
+		if (sum == null || sum.length != h.nComp) {
+			sum = new double[h.nComp];
+			comp = new double[h.nComp];
+			min = new float[h.nComp];
+			max = new float[h.nComp];
+		}
+		nComp = h.nComp;
+		n = 0;
+		for(int c=0; c<nComp; c++) {
+			sum[c] = 0;
+			comp[c] = 0;
+			min[c] = Float.POSITIVE_INFINITY;
+			max[c] = Float.NEGATIVE_INFINITY;
+		}
+		normSum = 0;
+		normComp = 0;
+		maxNormDev = 0;
+	}
+
+	public void row(int y, int z, float[] values) {
+		int nComp = this.nComp;
+		int sizeX = values.length / nComp;
+		for(int c=0; c<nComp; c++) {
+			double s = sum[c];
+			double e = comp[c];
+			float lo = min[c];
+			float hi = max[c];
+			for(int x=0; x<sizeX; x++) {
+				float v = values[x*nComp + c];
+				double t = s + v;
+				if (Math.abs(s) >= Math.abs(v)) {
+					e += (s - t) + v;
+				} else {
+					e += (v - t) + s;
+				}
+				s = t;
+				if (v < lo) {
+					lo = v;
+				}
+				if (v > hi) {
+					hi = v;
+				}
+			}
+			sum[c] = s;
+			comp[c] = e;
+			min[c] = lo;
+			max[c] = hi;
+		}
+		if (nComp == 3) {
+			double s = normSum;
+			double e = normComp;
+			double m = maxNormDev;
+			for(int x=0; x<sizeX; x++) {
+				double vx = values[3*x], vy = values[3*x+1], vz = values[3*x+2];
+				double d = Math.sqrt(vx*vx + vy*vy + vz*vz) - 1;
+				double d2 = d * d;
+				double t = s + d2;
+				if (s >= d2) { // both >= 0
+					e += (s - t) + d2;
+				} else {
+					e += (d2 - t) + s;
+				}
+				s = t;
+				if (Math.abs(d) > m) {
+					m = Math.abs(d);
+				}
+			}
+			normSum = s;
+			normComp = e;
+			maxNormDev = m;
+		}
+		n += sizeX;
+	}
+
+	// average of component c
+	public double avg(int c) {
+		return (sum[c] + comp[c]) / n;
+	}
+
+	// minimum of component c
+	public float min(int c) {
+		return min[c];
+	}
+
+	// maximum of component c
+	public float max(int c) {
+		return max[c];
+	}
+
+	// root-mean-square deviation of the norm from 1, for 3-component fields
+	public double rmsNormDev() {
+		return Math.sqrt((normSum + normComp) / n);
+	}
+
+	// maximum absolute deviation of the norm from 1, for 3-component fields
+	public double maxNormDev() {
+		return maxNormDev;
+	}
+
+	// main for testing: print a table of time and averages for the files passed as args.
+	public static void main(String[] args) throws IOException {
+		Stats s = new Stats();
+		StringBuilder line = new StringBuilder();
+		for(String arg: args) {
+			Header h = OVF2.scan(new File(arg), s);
+			line.setLength(0);
+			line.append(h.time);
+			for(int c=0; c<h.nComp; c++) {
+				line.append('\t').append(s.avg(c));
+			}
+			System.out.println(line);
+		}
+	}
+}
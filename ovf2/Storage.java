@@ -0,0 +1,52 @@
+package ovf2;
+
+// Storage holds the values of a field: nComp() components of len() cells each.
+// Cells are addressed by their index, see OVF2.index().
+public abstract class Storage {
+
+	// number of components
+	public abstract int nComp();
+
+	// number of cells per component
+	public abstract int len();
+
+	// value of component c in cell i
+	public abstract float get(int c, int i);
+
+	// sets component c in cell i
+	public abstract void set(int c, int i, float v);
+
+	// copies n values of component c, starting at cell i, to dst[off...off+n]
+	public void get(int c, int i, float[] dst, int off, int n) {
+		for(int k=0; k<n; k++) {
+			dst[off + k] = get(c, i + k);
+		}
+	}
+
+	// copies n cells of all components, starting at cell i, to dst[c][off...off+n] for each component c.
+	// Storages that decode whole cells at once override this to decode each cell only once.
+	public void get(int i, float[][] dst, int off, int n) {
+		for(int c=0; c<nComp(); c++) {
+			get(c, i, dst[c], off, n);
+		}
+	}
+
+	// copies src[off...off+n] to n values of component c, starting at cell i
+	public void set(int c, int i, float[] src, int off, int n) {
+		for(int k=0; k<n; k++) {
+			set(c, i + k, src[off + k]);
+		}
+	}
+
+	// returns the heap array holding component c,
+	// or null if the data is not stored in a heap array.
+	// Used by kernels to take a fast path.
+	public float[] array(int c) {
+		return null;
+	}
+
+	// number of bytes occupied by the values
+	public long bytes() {
+		return 4L * nComp() * len();
+	}
+}
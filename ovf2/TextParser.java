@@ -0,0 +1,320 @@
+package ovf2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+
+// TextParser parses the numbers of an OVF2 "Data Text" section.
+// It reads bytes in bulk and converts them to numbers by hand,
+// without creating a String per value.
+// Up to 19 significant digits are converted exactly with the Eisel-Lemire algorithm,
+// which covers OOMMF's %.17g output. Only the rare numbers it cannot round with
+// certainty (more digits, exact halfway cases, subnormals) go through Double.parseDouble.
+// NaN and infinities are accepted as written by Java ("NaN", "Infinity") and C ("nan", "inf").
+final class TextParser {
+
+	static final int MAX_DIGITS = 19; // significant digits that fit in an unsigned long
+
+	final InputStream in;
+	final byte[] buf;
+	int pos, lim; // next byte to parse, end of valid bytes in buf
+	char[] text;  // characters of the current number, after the sign, for the slow path
+	int textLen;
+
+	// powers of ten that are exactly representable as doubles
+	static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	                               1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	                              };
+
+	TextParser(InputStream in) {
+		this.in = in;
+		this.buf = new byte[1 << 16];
+		this.text = new char[64];
+	}
+
+	// Parses n values into dst, for each cell all nComp components.
+	void parse(Storage dst) throws IOException {
+		int nComp = dst.nComp();
+		int n = dst.len();
+		for(int i=0; i<n; i++) {
+			for(int c=0; c<nComp; c++) {
+				dst.set(c, i, (float)(nextDouble()));
+			}
+		}
+		expectEnd();
+	}
+
+	// Parses the next dst.length values into dst.
+	void parse(float[] dst) throws IOException {
+		for(int i=0; i<dst.length; i++) {
+			dst[i] = (float)(nextDouble());
+		}
+	}
+
+	// Parses the next number.
+	double nextDouble() throws IOException {
+		skipWhitespace();
+		int b = peek();
+		if (b == '#' || b < 0) {
+			throw new IOException("unexpected end of data");
+		}
+
+		boolean neg = false;
+		if (b == '-' || b == '+') {
+			neg = (b == '-');
+			pos++;
+		}
+		textLen = 0;
+		b = peek();
+		if (b == 'n' || b == 'N' || b == 'i' || b == 'I') {
+			return special(neg);
+		}
+
+		long mant = 0;            // leading significant decimal digits, without point, unsigned
+		int digits = 0;           // number of significant digits in mant
+		int exp = 0;              // decimal exponent to apply to mant
+		boolean truncated = false; // nonzero digits beyond MAX_DIGITS were dropped
+		boolean any = false;
+
+		for (b = peek(); isDigit(b); b = peek()) {
+			any = true;
+			take(b);
+			if (digits < MAX_DIGITS) {
+				mant = mant * 10 + (b - '0');
+				if (mant != 0) {
+					digits++;
+				}
+			} else {
+				exp++;
+				truncated |= (b != '0');
+			}
+		}
+		if (b == '.') {
+			take(b);
+			for (b = peek(); isDigit(b); b = peek()) {
+				any = true;
+				take(b);
+				if (digits < MAX_DIGITS) {
+					mant = mant * 10 + (b - '0');
+					if (mant != 0) {
+						digits++;
+					}
+					exp--;
+				} else {
+					truncated |= (b != '0');
+				}
+			}
+		}
+		if (!any) {
+			throw new IOException("invalid number in data");
+		}
+		if (b == 'e' || b == 'E') {
+			take(b);
+			boolean eneg = false;
+			b = peek();
+			if (b == '-' || b == '+') {
+				eneg = (b == '-');
+				take(b);
+			}
+			int e = 0;
+			boolean edigits = false;
+			for (b = peek(); isDigit(b); b = peek()) {
+				take(b);
+				edigits = true;
+				if (e < 100000) {
+					e = e * 10 + (b - '0');
+				}
+			}
+			if (!edigits) {
+				throw new IOException("invalid exponent in data");
+			}
+			exp += eneg ? -e : e;
+		}
+
+		double v = toDouble(mant, exp, truncated);
+		if (Double.isNaN(v)) {
+			v = Double.parseDouble(new String(text, 0, textLen));
+		}
+		return neg ? -v : v;
+	}
+
+	// parses nan, inf or infinity, in any case.
+	double special(boolean neg) throws IOException {
+		for (int b = peek(); (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z'); b = peek()) {
+			take(b);
+		}
+		if (textIs("nan")) {
+			return Double.NaN;
+		}
+		if (textIs("inf") || textIs("infinity")) {
+			return neg ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		}
+		throw new IOException("invalid number in data");
+	}
+
+	// reports whether text holds word (lower case), ignoring case.
+	boolean textIs(String word) {
+		if (textLen != word.length()) {
+			return false;
+		}
+		for (int i=0; i<textLen; i++) {
+			if (Character.toLowerCase(text[i]) != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// consumes byte b, the current one, keeping it in text.
+	void take(int b) {
+		if (textLen == text.length) {
+			char[] t = new char[2 * text.length];
+			System.arraycopy(text, 0, t, 0, textLen);
+			text = t;
+		}
+		text[textLen++] = (char)(b);
+		pos++;
+	}
+
+	// returns mant * 10^exp, for unsigned mant, or NaN if the result cannot be
+	// determined without the exact digits.
+	// truncated means that mant holds only the leading digits of the mantissa, so the
+	// exact value lies between mant and mant+1 (times 10^exp): the result is only
+	// certain if both round to the same double.
+	static double toDouble(long mant, int exp, boolean truncated) {
+		if (mant == 0) {
+			return 0;
+		}
+		if (!truncated && mant > 0 && mant < (1L << 53)) {
+			// both the mantissa and power of ten are exact doubles, so there is only one rounding
+			if (exp >= 0 && exp < POW10.length) {
+				return mant * POW10[exp];
+			}
+			if (exp < 0 && -exp < POW10.length) {
+				return mant / POW10[-exp];
+			}
+		}
+		double v = eiselLemire(mant, exp);
+		if (truncated && v != eiselLemire(mant + 1, exp)) {
+			return Double.NaN;
+		}
+		return v;
+	}
+
+	// 128-bit approximations of the powers of ten 10^MIN_EXP10 to 10^MAX_EXP10,
+	// normalized to a set top bit and rounded down: high 64 bits in POW10_HI, low in POW10_LO.
+	static final int MIN_EXP10 = -348;
+	static final int MAX_EXP10 = 347;
+	static final long[] POW10_HI = new long[MAX_EXP10 - MIN_EXP10 + 1];
+	static final long[] POW10_LO = new long[POW10_HI.length];
+
+	static {
+		for (int e=MIN_EXP10; e<=MAX_EXP10; e++) {
+			BigInteger m;
+			if (e >= 0) {
+				BigInteger p = BigInteger.TEN.pow(e);
+				int shift = p.bitLength() - 128;
+				m = (shift > 0) ? p.shiftRight(shift) : p.shiftLeft(-shift);
+			} else {
+				BigInteger p = BigInteger.TEN.pow(-e);
+				m = BigInteger.ONE.shiftLeft(p.bitLength() + 127).divide(p);
+			}
+			POW10_HI[e - MIN_EXP10] = m.shiftRight(64).longValue();
+			POW10_LO[e - MIN_EXP10] = m.longValue();
+		}
+	}
+
+	// Eisel-Lemire: returns the correctly rounded double nearest to mant * 10^exp,
+	// for unsigned, nonzero mant, or NaN if a 128-bit approximation of 10^exp does
+	// not determine the rounding, or the result is subnormal, infinite or out of range.
+	// See D. Lemire, "Number Parsing at a Gigabyte per Second" (2021),
+	// this follows Go's strconv.eiselLemire64.
+	static double eiselLemire(long mant, int exp) {
+		if (exp < MIN_EXP10 || exp > MAX_EXP10) {
+			return Double.NaN;
+		}
+		int clz = Long.numberOfLeadingZeros(mant);
+		mant <<= clz;
+		long retExp2 = ((217706L * exp) >> 16) + 64 + 1023 - clz;
+
+		long hi = POW10_HI[exp - MIN_EXP10];
+		long xHi = unsignedMultiplyHigh(mant, hi);
+		long xLo = mant * hi;
+		if ((xHi & 0x1FF) == 0x1FF && Long.compareUnsigned(xLo + mant, mant) < 0) {
+			// the truncated high half may be off: include the low half of the power
+			long lo = POW10_LO[exp - MIN_EXP10];
+			long yHi = unsignedMultiplyHigh(mant, lo);
+			long yLo = mant * lo;
+			long mergedHi = xHi;
+			long mergedLo = xLo + yHi;
+			if (Long.compareUnsigned(mergedLo, xLo) < 0) {
+				mergedHi++;
+			}
+			if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0 && Long.compareUnsigned(yLo + mant, mant) < 0) {
+				return Double.NaN;
+			}
+			xHi = mergedHi;
+			xLo = mergedLo;
+		}
+
+		// shift to 54 bits
+		long msb = xHi >>> 63;
+		long retMant = xHi >>> (msb + 9);
+		retExp2 -= 1 ^ msb;
+
+		// exactly halfway between two doubles: the dropped digits decide
+		if (xLo == 0 && (xHi & 0x1FF) == 0 && (retMant & 3) == 1) {
+			return Double.NaN;
+		}
+
+		// round to 53 bits
+		retMant += retMant & 1;
+		retMant >>>= 1;
+		if ((retMant >>> 53) > 0) {
+			retMant >>>= 1;
+			retExp2++;
+		}
+		if (Long.compareUnsigned(retExp2 - 1, 0x7FF - 1) >= 0) {
+			return Double.NaN;
+		}
+		return Double.longBitsToDouble((retExp2 << 52) | (retMant & 0x000FFFFFFFFFFFFFL));
+	}
+
+	// high 64 bits of the unsigned 128-bit product x*y.
+	static long unsignedMultiplyHigh(long x, long y) {
+		return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+
+	// Checks that the data is followed by an "# End: Data" line.
+	void expectEnd() throws IOException {
+		skipWhitespace();
+		for(int i=0; i<OVF2.END_DATA.length(); i++) {
+			if (peek() != OVF2.END_DATA.charAt(i)) {
+				throw new IOException("expected " + OVF2.END_DATA + " after data");
+			}
+			pos++;
+		}
+	}
+
+	void skipWhitespace() throws IOException {
+		for (int b = peek(); b == ' ' || b == '\t' || b == '\r' || b == '\n'; b = peek()) {
+			pos++;
+		}
+	}
+
+	// returns the current byte without consuming it, -1 on EOF.
+	int peek() throws IOException {
+		if (pos == lim) {
+			pos = 0;
+			lim = Math.max(0, in.read(buf));
+			if (lim == 0) {
+				return -1;
+			}
+		}
+		return buf[pos];
+	}
+
+	static boolean isDigit(int b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,303 @@
+package ovf2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+// TimeStore holds a time series of OVF2 frames on disk, transposed to time-major order,
+// so that the time series of a cell or region can be read contiguously
+// (e.g. for per-cell spectral analysis).
+//
+// Cells are grouped in tiles of consecutive cell indices. Frames are grouped in blocks
+// of consecutive frames. The file holds, for each tile, for each block, for each component,
+// for each cell in the tile, the values of the frames in the block:
+//
+// 	tile 0: block 0: [c][cell][frame], block 1: ..., tile 1: ...
+//
+// When all frames fit in one block (the memory budget allows it),
+// every cell's time series is a single contiguous run.
+// Values are little-endian float32.
+public final class TimeStore {
+
+	static final int MAGIC = 0x4f565454; // "OVTT"
+	static final int VERSION = 1;
+	static final long TILE_BYTES = 1 << 22; // approximate bytes per tile (all frames)
+
+	final File file;
+	final int nComp, sizeX, sizeY, sizeZ;
+	final int nFrames;
+	final int tileCells;   // cells per tile (last tile may have fewer)
+	final int blockFrames; // frames per block (last block may have fewer)
+	final double[] time;   // simulation time per frame
+	final long dataOffset; // start of the values in file
+
+	private TimeStore(File file, int nComp, int sizeX, int sizeY, int sizeZ, int nFrames, int tileCells, int blockFrames) {
+		this.file = file;
+		this.nComp = nComp;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.nFrames = nFrames;
+		this.tileCells = tileCells;
+		this.blockFrames = blockFrames;
+		this.time = new double[nFrames];
+		this.dataOffset = 9 * 4 + 8L * nFrames;
+	}
+
+	// Transposes frames (in time order, all of the same size) into a new TimeStore in file.
+	// At most about budget bytes of frame data are held in memory (but at least two frames):
+	// a quarter goes to the frames read ahead by Batch, the rest to a block of frames,
+	// which is filled one frame at a time and then written tile by tile.
+	public static TimeStore create(File file, List<File> frames, long budget) throws IOException {
+		Header h = Header.read(frames.get(0));
+		int len = h.len();
+		long frameFloats = (long)(h.nComp) * len;
+		int nFrames = frames.size();
+
+		long frameBytes = 4 * frameFloats;
+		long readAhead = Math.max(frameBytes, budget / 4); // for frames loaded but not yet in the block
+		int blockFrames = (int)(Math.max(1, Math.min(nFrames, (budget - readAhead) / frameBytes)));
+		blockFrames = (int)(Math.min(blockFrames, Integer.MAX_VALUE / frameFloats));
+		if (blockFrames < 1) {
+			throw new IOException("frame too large to transpose: " + h);
+		}
+		int tileCells = (int)(Math.max(1, Math.min(len, TILE_BYTES / (4L * h.nComp * nFrames))));
+
+		final TimeStore s = new TimeStore(file, h.nComp, h.sizeX, h.sizeY, h.sizeZ, nFrames, tileCells, blockFrames);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(s.nComp);
+			raf.writeInt(s.sizeX);
+			raf.writeInt(s.sizeY);
+			raf.writeInt(s.sizeZ);
+			raf.writeInt(s.nFrames);
+			raf.writeInt(s.tileCells);
+			raf.writeInt(s.blockFrames);
+			raf.seek(s.dataOffset);
+			raf.setLength(s.dataOffset + 4 * frameFloats * nFrames);
+
+			final FileChannel ch = raf.getChannel();
+			final float[] block = new float[(int)(frameFloats * blockFrames)];
+			final float[] comp = new float[len];
+			for (int b0=0; b0<nFrames; b0+=blockFrames) {
+				final int b = b0;
+				final int nb = Math.min(blockFrames, nFrames - b0); // frames in this block
+				new Batch(readAhead).run(frames.subList(b0, b0 + nb), new Batch.Consumer() {
+					public void frame(int k, File f, OVF2 data) throws IOException {
+						if (data.nComp() != s.nComp || data.sizeX != s.sizeX || data.sizeY != s.sizeY || data.sizeZ != s.sizeZ) {
+							throw new IOException("frame size mismatch: " + f + ": " + data);
+						}
+						s.time[b + k] = data.time;
+						s.scatter(data, k, nb, block, comp);
+					}
+				});
+				s.writeBlock(ch, b, nb, block);
+			}
+
+			raf.seek(9 * 4);
+			for(double t: s.time) {
+				raf.writeDouble(t);
+			}
+		} finally {
+			raf.close();
+		}
+		return s;
+	}
+
+	// Opens an existing TimeStore.
+	public static TimeStore open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+				throw new IOException("not a time store: " + file);
+			}
+			TimeStore s = new TimeStore(file, raf.readInt(), raf.readInt(), raf.readInt(), raf.readInt(),
+			                            raf.readInt(), raf.readInt(), raf.readInt());
+			for(int k=0; k<s.nFrames; k++) {
+				s.time[k] = raf.readDouble();
+			}
+			return s;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// stores frame k of a block of nb frames into block, in file order.
+	void scatter(OVF2 f, int k, int nb, float[] block, float[] comp) {
+		int len = len();
+		for(int c=0; c<nComp; c++) {
+			f.data.get(c, 0, comp, 0, len);
+			for(int t=0; t<nTiles(); t++) {
+				int i0 = tileStart(t);
+				int n = tileLen(t);
+				int base = (i0 * nComp + c * n) * nb + k; // this tile's part of the block, component c
+				for(int i=0; i<n; i++) {
+					block[base + i * nb] = comp[i0 + i];
+				}
+			}
+		}
+	}
+
+	// writes a block of nb frames starting at frame b, for all tiles.
+	void writeBlock(FileChannel ch, int b, int nb, float[] block) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4 * nComp * tileCells * nb).order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer fbuf = buf.asFloatBuffer();
+		for(int t=0; t<nTiles(); t++) {
+			int n = nComp * tileLen(t) * nb;
+			fbuf.clear();
+			fbuf.put(block, tileStart(t) * nComp * nb, n);
+			buf.position(0).limit(4 * n);
+			long pos = blockOffset(t, b);
+			while (buf.hasRemaining()) {
+				pos += ch.write(buf, pos);
+			}
+		}
+	}
+
+	// position in file of the block starting at frame b in tile t
+	long blockOffset(int t, int b) {
+		return dataOffset + 4L * ((long)(tileStart(t)) * nComp * nFrames + (long)(b) * nComp * tileLen(t));
+	}
+
+	// number of cells per frame
+	public int len() {
+		return sizeX * sizeY * sizeZ;
+	}
+
+	// number of components
+	public int nComp() {
+		return nComp;
+	}
+
+	// number of frames
+	public int nFrames() {
+		return nFrames;
+	}
+
+	// simulation time of frame k
+	public double time(int k) {
+		return time[k];
+	}
+
+	// number of tiles
+	public int nTiles() {
+		return (len() + tileCells - 1) / tileCells;
+	}
+
+	// index of the first cell in tile t
+	public int tileStart(int t) {
+		return t * tileCells;
+	}
+
+	// number of cells in tile t
+	public int tileLen(int t) {
+		return Math.min(tileCells, len() - tileStart(t));
+	}
+
+	// Reads the time series of component c of cell i into dst[0...nFrames].
+	public void series(FileChannel ch, int c, int i, float[] dst) throws IOException {
+		int t = i / tileCells;
+		int n = tileLen(t);
+		int cell = i - tileStart(t);
+		ByteBuffer buf = ByteBuffer.allocate(4 * blockFrames).order(ByteOrder.LITTLE_ENDIAN);
+		for(int b=0; b<nFrames; b+=blockFrames) {
+			int nb = Math.min(blockFrames, nFrames - b);
+			buf.position(0).limit(4 * nb);
+			read(ch, buf, blockOffset(t, b) + 4L * (c * n + cell) * nb);
+			buf.flip();
+			buf.asFloatBuffer().get(dst, b, nb);
+		}
+	}
+
+	// Reads all time series of tile t into dst, indexed by [c][cell][frame]:
+	// frame k of component c of cell tileStart(t)+i is dst[(c*tileLen(t) + i)*nFrames + k].
+	public void readTile(FileChannel ch, int t, float[] dst) throws IOException {
+		int n = tileLen(t);
+		ByteBuffer buf = ByteBuffer.allocate(4 * nComp * n * blockFrames).order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer fbuf = buf.asFloatBuffer();
+		for(int b=0; b<nFrames; b+=blockFrames) {
+			int nb = Math.min(blockFrames, nFrames - b);
+			buf.position(0).limit(4 * nComp * n * nb);
+			read(ch, buf, blockOffset(t, b));
+			for(int s=0; s<nComp*n; s++) {
+				fbuf.get(s * nb, dst, s * nFrames + b, nb);
+			}
+		}
+	}
+
+	static void read(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int m = ch.read(buf, pos);
+			if (m < 0) {
+				throw new IOException("unexpected EOF");
+			}
+			pos += m;
+		}
+	}
+
+	// TileVisitor receives the time series of one tile, see readTile().
+	public interface TileVisitor {
+		void tile(int t, int i0, int n, float[] series);
+	}
+
+	// Passes every tile to v, tiles are read and visited in parallel.
+	// v must be safe for concurrent use.
+	public void forEachTile(TileVisitor v) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			new TileTask(raf.getChannel(), v, 0, nTiles()).invoke();
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			raf.close();
+		}
+	}
+
+	// TileTask visits tiles t0 to t1, splitting the range in halves visited in parallel.
+	final class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L; // sigh
+		final FileChannel ch;
+		final TileVisitor v;
+		final int t0, t1;
+
+		TileTask(FileChannel ch, TileVisitor v, int t0, int t1) {
+			this.ch = ch;
+			this.v = v;
+			this.t0 = t0;
+			this.t1 = t1;
+		}
+
+		protected void compute() {
+			if (t1 - t0 > 1) {
+				int mid = (t0 + t1) >>> 1;
+				invokeAll(new TileTask(ch, v, t0, mid), new TileTask(ch, v, mid, t1));
+				return;
+			}
+			try {
+				float[] series = new float[nComp * tileCells * nFrames];
+				for(int t=t0; t<t1; t++) {
+					readTile(ch, t, series);
+					v.tile(t, tileStart(t), tileLen(t), series);
+				}
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// main for testing: transpose the frames in the directory args[0] into the store args[1].
+	public static void main(String[] args) throws IOException {
+		TimeStore s = create(new File(args[1]), Batch.timeOrder(new File(args[0])), Runtime.getRuntime().maxMemory() / 4);
+		System.out.println(args[1] + ": " + s.nFrames + " frames, " + s.nTiles() + " tiles of " + s.tileCells + " cells, blocks of " + s.blockFrames + " frames");
+	}
+}
@@ -0,0 +1,15 @@
+package ovf2;
+
+// Visitor receives the data of an OVF2 file row by row, while it is being read
+// by OVF2.scan(). This allows single-pass reductions in constant memory.
+public interface Visitor {
+
+	// Called once per file, before the first row.
+	void begin(Header h);
+
+	// Called for each row of cells, in file order: z, then y.
+	// values holds the sizeX cells of row y, z, with all components interleaved:
+	// component c of cell x is values[x*nComp + c].
+	// values is re-used for the next row, it is only valid during the call.
+	void row(int y, int z, float[] values);
+}
@@ -1,8 +1,8 @@
 package view;
 
 import java.io.File;
-import java.io.FileInputStream;
 import javax.swing.JFrame;
+import ovf2.Cache;
 import ovf2.OVF2;
 
 public class Test {
@@ -13,7 +13,7 @@ public class Test {
 
 		View v = new View();
 
-		OVF2 data = OVF2.read(new FileInputStream(new File(args[0])));
+		OVF2 data = Cache.shared().get(new File(args[0]));
 
 		v.render(data);
 
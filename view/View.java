@@ -36,14 +36,14 @@ final class View {
 	void render(OVF2 data) {
 
 		// world size
-		float wx = data.xBase*data.sizeX();
-		float wy = data.yBase*data.sizeY();
-		float wz = data.zBase*data.sizeZ();
+		float wx = data.xStepSize*data.sizeX();
+		float wy = data.yStepSize*data.sizeY();
+		float wz = data.zStepSize*data.sizeZ();
 		float max = max(max(wx, wy), wz);
 		// cellsizes normalized so that max world size = 1
-		float cx = data.xBase/max;
-		float cy = data.yBase/max;
-		float cz = data.zBase/max;
+		float cx = data.xStepSize/max;
+		float cy = data.yStepSize/max;
+		float cz = data.zStepSize/max;
 		float rx = cx/2;
 		float ry = cy/2;
 		float rz = cz/2;